@@ -0,0 +1,77 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the garbage created per line with and without the
+ * low-allocation mode. Meant to be run with {@code -prof gc}, which
+ * reports the bytes allocated per line as {@code gc.alloc.rate.norm}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+
+    @Param({"false", "true"})
+    public boolean lowAllocationMode;
+
+    private CommandProcessor commandProcessor;
+
+    private final StringBuilder sink = new StringBuilder();
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("check", new StreamingCommand() {
+            @Override
+            public void call(ArgumentView args, Appendable out) throws IOException {
+                long sum = 0;
+                for (int i = 1; i < args.size(); i++) {
+                    sum += args.getLong(i);
+                }
+                out.append(args.contentEquals(0, "sum") && sum > 0 ? "OK" : "FAIL");
+            }
+        });
+        commandManager.registerCommand("first", new Command() {
+            @Override
+            public String call(String[] args) {
+                return args[0];
+            }
+        });
+        commandProcessor = new CommandProcessor(commandManager);
+        commandProcessor.setLowAllocationMode(lowAllocationMode);
+    }
+
+    @Benchmark
+    public StringBuilder streamingCommand() throws IOException {
+        sink.setLength(0);
+        commandProcessor.executeLineTo("!check sum 12 345 \"6789\" 42", sink);
+        return sink;
+    }
+
+    @Benchmark
+    public String plainCommand() {
+        return commandProcessor.executeLine("!first user.42.name \"Jane Doe\" x");
+    }
+
+    @Benchmark
+    public String unknownCommand() {
+        return commandProcessor.executeLine("!missing a b");
+    }
+}
@@ -0,0 +1,67 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a numeric command reading its arguments from an array of
+ * strings with one reading them through an {@link ArgumentView}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArgumentViewBenchmark {
+
+    private static final String ARGUMENTS = " 12 345 6789 -42 100000 7 8 9";
+
+    private CommandProcessor commandProcessor;
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("sum_array", new Command() {
+            @Override
+            public String call(String[] args) {
+                long sum = 0;
+                for (String arg : args) {
+                    sum += Long.parseLong(arg);
+                }
+                return Long.toString(sum);
+            }
+        });
+        commandManager.registerCommand("sum_view", new ViewCommand() {
+            @Override
+            public String call(ArgumentView args) {
+                long sum = 0;
+                for (int i = 0; i < args.size(); i++) {
+                    sum += args.getLong(i);
+                }
+                return Long.toString(sum);
+            }
+        });
+        commandProcessor = new CommandProcessor(commandManager);
+    }
+
+    @Benchmark
+    public String stringArray() {
+        return commandProcessor.executeLine("!sum_array" + ARGUMENTS);
+    }
+
+    @Benchmark
+    public String argumentView() {
+        return commandProcessor.executeLine("!sum_view" + ARGUMENTS);
+    }
+}
@@ -0,0 +1,65 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares resolving a command name from a line through a substring and
+ * the map of registered commands with the {@link CommandIndex}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandIndexBenchmark {
+
+    @Param({"10", "5000"})
+    public int commandCount;
+
+    private CommandManager commandManager;
+
+    private String line;
+
+    @Setup
+    public void setup() {
+        commandManager = new CommandManager();
+        for (int i = 0; i < commandCount; i++) {
+            commandManager.registerCommand("generated_command_" + i, new Command() {
+                @Override
+                public String call(String[] args) {
+                    return null;
+                }
+            });
+        }
+        line = "!generated_command_" + (commandCount / 2) + " arg";
+    }
+
+    @Benchmark
+    public Command substringLookup() {
+        return commandManager.findCommand(line.substring(1, line.indexOf(' ')));
+    }
+
+    @Benchmark
+    public Command indexLookup() {
+        return commandManager.findCommand(line, 1, line.indexOf(' '));
+    }
+
+    @Benchmark
+    public List<String> completion() {
+        return commandManager.getCompletions("generated_command_1");
+    }
+}
@@ -0,0 +1,80 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures {@link CommandProcessor#executeLine(String)} executed by a few
+ * threads at once, without a journal and with each of the sync policies
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+    @Param({"none", "NEVER", "INTERVAL", "ALWAYS"})
+    public String syncPolicy;
+
+    private CommandProcessor commandProcessor;
+
+    private ExecutionJournal journal;
+
+    private Path directory;
+
+    @Setup
+    public void setup() throws IOException {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("set", new Command() {
+            @Override
+            public String call(String[] args) {
+                return args[0];
+            }
+        });
+        commandProcessor = new CommandProcessor(commandManager);
+        if (!syncPolicy.equals("none")) {
+            directory = Files.createTempDirectory("jscp-journal");
+            journal = new ExecutionJournal(directory);
+            journal.setSyncPolicy(JournalSyncPolicy.valueOf(syncPolicy));
+            journal.open();
+            commandProcessor.setJournal(journal);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        journal.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String executeLine() {
+        return commandProcessor.executeLine("!set user.42.name \"Jane Doe\"");
+    }
+}
@@ -0,0 +1,91 @@
+package com.maciejors.jscp.core;
+
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.StringTokenizer;
+
+/**
+ * A copy of the {@link StringTokenizer}-based parser that
+ * {@link CommandProcessor} used before {@link LineLexer} was introduced.
+ * Kept only as a baseline for the benchmarks
+ */
+final class LegacyLineParser {
+
+    private LegacyLineParser() {
+    }
+
+    /**
+     * @param line A line of input
+     * @return An array of arguments following the command token or
+     * {@code null} if parsing failed
+     */
+    static String[] parse(String line) {
+        StringTokenizer tokenizer = new StringTokenizer(line);
+        try {
+            tokenizer.nextToken(" ");
+        } catch (NoSuchElementException err) {
+            return null;
+        }
+        return parseCommandArguments(tokenizer);
+    }
+
+    private static String[] parseCommandArguments(StringTokenizer tokenizer) {
+        Deque<String> argsDeque = new LinkedList<>();
+
+        while (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken(" ");
+            String currArg = token;
+
+            if (currArg.startsWith("\"")) {
+                currArg = currArg.substring(1);
+
+                if (currArg.length() != 1 && endsWithDoubleQuote(currArg)) {
+                    currArg = currArg.substring(0, currArg.length() - 1);
+                } else {
+                    StringBuilder currArgBuilder = new StringBuilder(currArg);
+                    while (true) {
+                        try {
+                            token = tokenizer.nextToken("\"");
+                        } catch (NoSuchElementException err) {
+                            return null;
+                        }
+                        currArgBuilder.append(token);
+                        if (!token.endsWith("\\")) {
+                            currArg = currArgBuilder.toString();
+                            tokenizer.nextToken(" ");
+                            break;
+                        } else {
+                            currArgBuilder.append("\"");
+                        }
+                    }
+                }
+            }
+
+            if (endsWithDoubleQuote(currArg)) {
+                return null;
+            }
+            for (int i = 1; i < currArg.length(); i++) {
+                if (currArg.charAt(i) == '"') {
+                    if (currArg.charAt(i - 1) != '\\') {
+                        return null;
+                    }
+                }
+            }
+
+            currArg = currArg.replace("\\\"", "\"");
+            argsDeque.add(currArg);
+        }
+
+        int numberOfArguments = argsDeque.size();
+        String[] args = new String[numberOfArguments];
+        for (int i = 0; i < numberOfArguments; i++) {
+            args[i] = argsDeque.removeFirst();
+        }
+        return args;
+    }
+
+    private static boolean endsWithDoubleQuote(String s) {
+        return s.endsWith("\"") && !s.endsWith("\\\"");
+    }
+}
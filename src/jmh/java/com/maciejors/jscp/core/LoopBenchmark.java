@@ -0,0 +1,98 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.annotations.ParallelSafe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of the loops over a large in-memory input. Each
+ * operation executes the whole input
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopBenchmark {
+
+    @ParallelSafe
+    private static class EchoCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return String.join(" ", args);
+        }
+    }
+
+    @Param({"100000"})
+    public int lineCount;
+
+    private CommandProcessor commandProcessor;
+
+    private byte[] input;
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("echo", new EchoCommand());
+        commandProcessor = new CommandProcessor(commandManager);
+
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            lines.append("!echo line ").append(i).append(" \"quoted argument\"\n");
+        }
+        input = lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void startLoop() {
+        commandProcessor.startLoop(new ByteArrayInputStream(input),
+                new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @Benchmark
+    public void channelLoop() throws IOException {
+        commandProcessor.startLoop(Channels.newChannel(new ByteArrayInputStream(input)),
+                new NullChannel());
+    }
+
+    /**
+     * Discards everything written to it
+     */
+    private static final class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a four-step runbook executed as a macro with the same steps
+ * sent line by line
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MacroBenchmark {
+
+    private CommandProcessor commandProcessor;
+
+    private int host = 0;
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        Command step = new ViewCommand() {
+            @Override
+            public String call(ArgumentView args) {
+                return args.size() == 0 ? "" : args.getString(0);
+            }
+        };
+        commandManager.registerCommand("drain", step);
+        commandManager.registerCommand("deploy", step);
+        commandManager.registerCommand("check", step);
+        commandManager.registerCommand("undrain", step);
+        commandProcessor = new CommandProcessor(commandManager);
+        commandProcessor.executeLine("def rollout !drain $1 --timeout 30s"
+                + " ; ?ok !deploy $1 \"release 2024.1\" --canary"
+                + " ; ?ok !check $1 http /health"
+                + " ; ?ok !undrain $1");
+    }
+
+    @Benchmark
+    public String macro() {
+        return commandProcessor.executeLine("!rollout web-" + (host++ & 63));
+    }
+
+    @Benchmark
+    public String separateLines() {
+        String name = "web-" + (host++ & 63);
+        commandProcessor.executeLine("!drain " + name + " --timeout 30s");
+        commandProcessor.executeLine("!deploy " + name + " \"release 2024.1\" --canary");
+        commandProcessor.executeLine("!check " + name + " http /health");
+        return commandProcessor.executeLine("!undrain " + name);
+    }
+}
@@ -0,0 +1,61 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.annotations.ParallelSafe;
+import com.maciejors.jscp.metrics.CommandMetrics;
+import com.maciejors.jscp.metrics.CommandProfiler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of {@link CommandMetrics} and of
+ * {@link CommandProfiler} on {@link CommandProcessor#executeLine(String)}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    @ParallelSafe
+    private static class NoopCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return "";
+        }
+    }
+
+    @Param({"none", "metrics", "profiler"})
+    public String instrumentation;
+
+    private CommandProcessor commandProcessor;
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("noop", new NoopCommand());
+        commandProcessor = new CommandProcessor(commandManager);
+        if (instrumentation.equals("metrics")) {
+            commandProcessor.addExecutionListener(new CommandMetrics());
+        } else if (instrumentation.equals("profiler")) {
+            commandProcessor.startProfiling(new CommandProfiler());
+        }
+    }
+
+    @Benchmark
+    public String executeLine() {
+        return commandProcessor.executeLine("!noop arg");
+    }
+}
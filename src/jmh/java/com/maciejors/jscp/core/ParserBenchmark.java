@@ -0,0 +1,63 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link LineLexer} with the {@link LegacyLineParser}.
+ * <br><br>
+ * Run with {@code -prof gc} to compare allocation rates as well
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    @Param({"short", "quoted", "escaped"})
+    public String lineType;
+
+    private String line;
+
+    @Setup
+    public void setup() {
+        switch (lineType) {
+            case "short":
+                line = "!status web-1 verbose";
+                break;
+            case "quoted":
+                line = "!deploy \"service name with spaces\" \"us east 1\" " +
+                        "--force \"a rather long quoted description of the change\"";
+                break;
+            case "escaped":
+                line = "!echo \"he said \\\"hello\\\" twice\" \\\"raw\\\" " +
+                        "\"path C:\\dir\\file\" \"\\\"\\\"\\\"\"";
+                break;
+            default:
+                throw new IllegalArgumentException(lineType);
+        }
+    }
+
+    @Benchmark
+    public String[] legacyParser() {
+        return LegacyLineParser.parse(line);
+    }
+
+    @Benchmark
+    public String[] lineLexer() {
+        return LineLexer.lex(line).getArguments();
+    }
+}
@@ -0,0 +1,58 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a three-step operation executed as a pipeline with the same
+ * steps sent as separate lines, each one built from the previous output
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    private CommandProcessor commandProcessor;
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("add", new ViewCommand() {
+            @Override
+            public String call(ArgumentView args) {
+                long sum = 0;
+                for (int i = 0; i < args.size(); i++) {
+                    sum += args.getLong(i);
+                }
+                return Long.toString(sum);
+            }
+        });
+        commandProcessor = new CommandProcessor(commandManager);
+        commandProcessor.setStatementCache(new StatementCache(1024));
+    }
+
+    @Benchmark
+    public String pipeline() {
+        return commandProcessor.executeLine("!add 1 2 | !add 3 | !add 4");
+    }
+
+    @Benchmark
+    public String separateLines() {
+        String output = commandProcessor.executeLine("!add 1 2");
+        output = commandProcessor.executeLine("!add 3 \"" + output + "\"");
+        return commandProcessor.executeLine("!add 4 \"" + output + "\"");
+    }
+}
@@ -0,0 +1,77 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.annotations.ParallelSafe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CommandProcessor#executeLine(String)} end to end, with
+ * few and many registered commands
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessorBenchmark {
+
+    @ParallelSafe
+    private static class ArgCountCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return args.length == 0 ? "" : args[0];
+        }
+    }
+
+    @Param({"1", "5000"})
+    public int commandCount;
+
+    @Param({"short", "quoted", "invalid"})
+    public String lineType;
+
+    private CommandProcessor commandProcessor;
+
+    private String line;
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        for (int i = 0; i < commandCount; i++) {
+            commandManager.registerCommand("command_" + i, new ArgCountCommand());
+        }
+        commandProcessor = new CommandProcessor(commandManager);
+
+        String name = "command_" + (commandCount / 2);
+        switch (lineType) {
+            case "short":
+                line = "!" + name + " web-1 verbose";
+                break;
+            case "quoted":
+                line = "!" + name + " \"a long quoted argument with \\\"escaped\\\" quotes\" " +
+                        "\"another one\" plain \"and the last one, a bit longer than the others\"";
+                break;
+            case "invalid":
+                line = "!" + name + " \"unterminated";
+                break;
+            default:
+                throw new IllegalArgumentException(lineType);
+        }
+    }
+
+    @Benchmark
+    public String executeLine() {
+        return commandProcessor.executeLine(line);
+    }
+}
@@ -0,0 +1,64 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares registering generated commands one by one with
+ * {@link CommandManager#registerAll(Map)}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistrationBenchmark {
+
+    @Param({"100", "5000"})
+    public int commandCount;
+
+    private Map<String, Command> commands;
+
+    @Setup
+    public void setup() {
+        commands = new LinkedHashMap<>();
+        for (int i = 0; i < commandCount; i++) {
+            commands.put("generated_command_" + i, new Command() {
+                @Override
+                public String call(String[] args) {
+                    return null;
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public CommandManager oneByOne() {
+        CommandManager commandManager = new CommandManager();
+        for (Map.Entry<String, Command> entry : commands.entrySet()) {
+            commandManager.registerCommand(entry.getKey(), entry.getValue());
+        }
+        return commandManager;
+    }
+
+    @Benchmark
+    public CommandManager registerAll() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerAll(commands);
+        return commandManager;
+    }
+}
@@ -0,0 +1,96 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CommandManager#findCommand(String)} throughput while
+ * other threads keep registering and unregistering commands
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RegistryBenchmark {
+
+    @Param({"10", "1000"})
+    public int commandCount;
+
+    private CommandManager commandManager;
+
+    private String[] names;
+
+    /**
+     * Position of a reading thread in the names, kept per thread so the
+     * readers do not race on it
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index = 0;
+
+        String next(String[] names) {
+            // floorMod keeps the position valid after the index overflows
+            return names[Math.floorMod(index++, names.length)];
+        }
+    }
+
+    @Setup
+    public void setup() {
+        commandManager = new CommandManager();
+        names = new String[commandCount];
+        for (int i = 0; i < commandCount; i++) {
+            names[i] = "command_" + i;
+            commandManager.registerCommand(names[i], new Command() {
+                @Override
+                public String call(String[] args) {
+                    return null;
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(4)
+    public Command findOnly(Cursor cursor) {
+        return commandManager.findCommand(cursor.next(names));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public Command find(Cursor cursor) {
+        return commandManager.findCommand(cursor.next(names));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public Command hotRegister() {
+        Command command = commandManager.unregisterCommand("hot");
+        if (command == null) {
+            commandManager.registerCommand("hot", new Command() {
+                @Override
+                public String call(String[] args) {
+                    return null;
+                }
+            });
+        }
+        return command;
+    }
+}
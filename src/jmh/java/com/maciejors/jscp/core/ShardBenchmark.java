@@ -0,0 +1,98 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures a batch of calls of a stateful (not thread-safe) command which
+ * waits a bit on every call, like one writing to a storage, executed one
+ * by one and by a {@link ShardedDispatcher} routing the calls by key
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    private static final int KEY_COUNT = 64;
+
+    /**
+     * Counts the calls by key
+     */
+    private static class CountCommand extends Command {
+        private final Map<String, Integer> counts = new HashMap<>();
+
+        @Override
+        public String call(String[] args) {
+            LockSupport.parkNanos(20_000);
+            return String.valueOf(counts.merge(args[0], 1, Integer::sum));
+        }
+    }
+
+    @Param({"0", "1", "4", "16"})
+    public int shardCount;
+
+    private CommandProcessor commandProcessor;
+
+    private ShardedDispatcher dispatcher;
+
+    private final String[] lines = new String[BATCH_SIZE];
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("count", new CountCommand());
+        commandProcessor = new CommandProcessor(commandManager);
+        if (shardCount > 0) {
+            dispatcher = new ShardedDispatcher(commandProcessor, shardCount);
+            dispatcher.setKeyArgument("count", 0);
+            dispatcher.start();
+        }
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            lines[i] = "!count key" + (i % KEY_COUNT);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    @Benchmark
+    public Object batch() {
+        if (dispatcher == null) {
+            String last = null;
+            for (String line : lines) {
+                last = commandProcessor.executeLine(line);
+            }
+            return last;
+        }
+        CompletableFuture<?>[] results = new CompletableFuture<?>[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            results[i] = dispatcher.submit(lines[i]).toCompletableFuture();
+        }
+        return CompletableFuture.allOf(results).join();
+    }
+}
@@ -0,0 +1,100 @@
+package com.maciejors.jscp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a command building a large listing as a string with one
+ * streaming it, both executed by the channel loop
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamingBenchmark {
+
+    private static final int ROWS = 20_000;
+
+    private CommandProcessor commandProcessor;
+
+    @Setup
+    public void setup() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("list_string", new Command() {
+            @Override
+            public String call(String[] args) {
+                StringBuilder listing = new StringBuilder();
+                for (int i = 0; i < ROWS; i++) {
+                    listing.append("row ").append(i).append(": some listed value\n");
+                }
+                return listing.toString();
+            }
+        });
+        commandManager.registerCommand("list_stream", new StreamingCommand() {
+            @Override
+            public void call(ArgumentView args, Appendable out) throws IOException {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < ROWS; i++) {
+                    row.setLength(0);
+                    out.append(row.append("row ").append(i).append(": some listed value\n"));
+                }
+            }
+        });
+        commandProcessor = new CommandProcessor(commandManager);
+    }
+
+    @Benchmark
+    public void returnedString() throws IOException {
+        run("!list_string\n");
+    }
+
+    @Benchmark
+    public void streamed() throws IOException {
+        run("!list_stream\n");
+    }
+
+    private void run(String line) throws IOException {
+        commandProcessor.startLoop(Channels.newChannel(
+                new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8))),
+                new NullChannel());
+    }
+
+    /**
+     * Discards everything written to it
+     */
+    private static final class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.maciejors.jscp.server;
+
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.core.CommandManager;
+import com.maciejors.jscp.core.CommandProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the text and the binary protocol of {@link CommandServer} over
+ * a loopback connection. Every invocation pipelines a batch of requests
+ * on one connection and reads all the responses; the score is the time
+ * per request
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+    private static final int BATCH = 256;
+
+    private static class EchoCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return String.join(" ", args);
+        }
+    }
+
+    @Param({"TEXT", "BINARY"})
+    public ServerProtocol protocol;
+
+    /**
+     * Words or a JSON document, which the text protocol has to quote and
+     * escape
+     */
+    @Param({"words", "json"})
+    public String payload;
+
+    private CommandServer server;
+    private Socket socket;
+
+    private OutputStream textOut;
+    private BufferedReader textIn;
+    private byte[] textBatch;
+
+    private OutputStream binaryOut;
+    private byte[] binaryBatch;
+    private DataInputStream binaryIn;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("echo", new EchoCommand());
+        server = new CommandServer(new CommandProcessor(commandManager));
+        server.setProtocol(protocol);
+        server.start(0);
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setTcpNoDelay(true);
+
+        textOut = new BufferedOutputStream(socket.getOutputStream());
+        textIn = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+        String[] args = payload.equals("json")
+                ? new String[]{"{\"user\":\"alice\",\"roles\":[\"admin\",\"ops\"]," +
+                "\"note\":\"said \\\"hi\\\" twice\",\"id\":12345,\"active\":true}"}
+                : new String[]{"hello", "load test", "12345"};
+        StringBuilder line = new StringBuilder("!echo");
+        for (String arg : args) {
+            line.append(" \"").append(arg.replace("\"", "\\\"")).append('"');
+        }
+        if (!server.getCommandProcessor().executeLine(line.toString())
+                .equals(String.join(" ", args))) {
+            throw new IllegalStateException("The line is not escaped properly: " + line);
+        }
+        textBatch = line.append('\n').toString().repeat(BATCH)
+                .getBytes(StandardCharsets.UTF_8);
+
+        // both batches are encoded up front, so only the server and the
+        // decoding of the responses are measured
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        DataOutputStream framesOut = new DataOutputStream(frames);
+        for (int i = 0; i < BATCH; i++) {
+            FrameCodec.writeRequest(framesOut, i, "echo", args);
+        }
+        binaryBatch = frames.toByteArray();
+        binaryOut = textOut;
+        binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        server.shutdown(Duration.ofSeconds(1));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int pipelinedRequests() throws IOException {
+        int length = 0;
+        if (protocol == ServerProtocol.TEXT) {
+            textOut.write(textBatch);
+            textOut.flush();
+            for (int i = 0; i < BATCH; i++) {
+                length += textIn.readLine().length();
+            }
+        } else {
+            binaryOut.write(binaryBatch);
+            binaryOut.flush();
+            for (int i = 0; i < BATCH; i++) {
+                length += FrameCodec.readResponse(binaryIn).getValue().length();
+            }
+        }
+        return length;
+    }
+}
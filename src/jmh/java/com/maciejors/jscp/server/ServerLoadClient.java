@@ -0,0 +1,130 @@
+package com.maciejors.jscp.server;
+
+import com.maciejors.jscp.annotations.ParallelSafe;
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.core.CommandManager;
+import com.maciejors.jscp.core.CommandProcessor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load-test client for {@link CommandServer}. Opens a number of sessions,
+ * each of them sending a line and waiting for the response in a loop, and
+ * reports the throughput and latency percentiles.
+ * <br><br>
+ * Usage: {@code ServerLoadClient [host port] [sessions] [requestsPerSession] [line]}.
+ * Without the host and port, an in-process server with an {@code echo}
+ * command is started.
+ * <br><br>
+ * Run with: {@code mvn -Pbenchmarks test-compile exec:exec
+ * -Dbenchmark.mainClass=com.maciejors.jscp.server.ServerLoadClient -Djmh.args="64 10000"}
+ */
+public class ServerLoadClient {
+
+    @ParallelSafe
+    private static class EchoCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return String.join(" ", args);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int argIndex = 0;
+        String host = "127.0.0.1";
+        int port;
+        CommandServer server = null;
+        if (args.length >= 2 && !args[0].matches("\\d+")) {
+            host = args[argIndex++];
+            port = Integer.parseInt(args[argIndex++]);
+        } else {
+            CommandManager commandManager = new CommandManager();
+            commandManager.registerCommand("echo", new EchoCommand());
+            server = new CommandServer(new CommandProcessor(commandManager));
+            server.setMaxSessions(100_000);
+            server.start(0);
+            port = server.getPort();
+        }
+        int sessions = args.length > argIndex ? Integer.parseInt(args[argIndex++]) : 64;
+        int requests = args.length > argIndex ? Integer.parseInt(args[argIndex++]) : 10_000;
+        String line = args.length > argIndex ? args[argIndex] : "!echo hello \"load test\"";
+
+        run(host, port, sessions, requests, line);
+
+        if (server != null) {
+            server.shutdown(Duration.ofSeconds(5));
+        }
+    }
+
+    private static void run(String host, int port, int sessions, int requests,
+                                String line) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<long[]>> futures = new ArrayList<>();
+        byte[] request = (line + "\n").getBytes(StandardCharsets.UTF_8);
+
+        for (int s = 0; s < sessions; s++) {
+            futures.add(executor.submit(() -> {
+                long[] latencies = new long[requests];
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(
+                            socket.getInputStream(), StandardCharsets.UTF_8));
+                    start.await();
+                    for (int i = 0; i < requests; i++) {
+                        long sent = System.nanoTime();
+                        out.write(request);
+                        out.flush();
+                        if (in.readLine() == null) {
+                            throw new IOException("Session closed by the server");
+                        }
+                        latencies[i] = System.nanoTime() - sent;
+                    }
+                }
+                return latencies;
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        long[][] results = new long[sessions][];
+        for (int s = 0; s < sessions; s++) {
+            results[s] = futures.get(s).get();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        executor.shutdown();
+
+        report(results, elapsed);
+    }
+
+    private static void report(long[][] results, long elapsedNanos) {
+        long[] all = Arrays.stream(results).flatMapToLong(Arrays::stream).toArray();
+        Arrays.sort(all);
+        System.out.printf("sessions: %d, requests: %d, time: %.2f s%n",
+                results.length, all.length, elapsedNanos / 1e9);
+        System.out.printf("throughput: %.0f requests/s%n",
+                all.length / (elapsedNanos / 1e9));
+        System.out.printf("latency [us]: p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                percentile(all, 0.5), percentile(all, 0.99),
+                percentile(all, 0.999), all[all.length - 1] / 1e3);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e3;
+    }
+}
@@ -0,0 +1,33 @@
+package com.maciejors.jscp.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a command as a pure function of its arguments. The values it
+ * returns are memoized, keyed by the arguments, and identical calls made
+ * while the command is running wait for its value instead of calling it
+ * again.
+ * <br><br>
+ * Exceptions and values starting with {@code Error: } are not memoized.
+ * Memoized values can be discarded with
+ * {@code CommandManager.invalidateCache(String)}.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Cacheable {
+
+    /**
+     * Time after which a memoized value expires, in milliseconds. By
+     * default, values do not expire
+     */
+    long ttlMillis() default 0;
+
+    /**
+     * Maximum number of memoized values. When it is exceeded, the values
+     * memoized first are evicted
+     */
+    int maxEntries() default 1024;
+}
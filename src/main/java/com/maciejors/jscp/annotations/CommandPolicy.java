@@ -0,0 +1,41 @@
+package com.maciejors.jscp.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Limits how a command is dispatched. A call exceeding any of the limits
+ * fails fast with an error instead of waiting. Limits left at their
+ * default values are disabled.
+ * <br><br>
+ * A policy passed explicitly to
+ * {@code CommandManager.registerCommand(String, Command, DispatchPolicy)}
+ * takes precedence over this annotation.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CommandPolicy {
+
+    /**
+     * Time after which a call is abandoned, in milliseconds
+     */
+    long timeoutMillis() default 0;
+
+    /**
+     * Maximum number of calls executed at once
+     */
+    int maxConcurrency() default 0;
+
+    /**
+     * Number of calls allowed per second on average
+     */
+    double permitsPerSecond() default 0;
+
+    /**
+     * Number of calls allowed at once after a period of inactivity, when
+     * {@link #permitsPerSecond()} is set
+     */
+    int burst() default 1;
+}
@@ -0,0 +1,18 @@
+package com.maciejors.jscp.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a command as thread-safe. Such command can be executed
+ * concurrently with any other command, including itself.
+ * <br><br>
+ * Commands without this annotation are never executed concurrently by
+ * the batch execution of the command processor
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ParallelSafe {
+}
@@ -0,0 +1,27 @@
+package com.maciejors.jscp.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Adds a command to the command catalog generated at compile time, so that
+ * it can be registered without creating it by hand. The annotated class
+ * has to be a public, non-abstract command with a public no-argument
+ * constructor.
+ * <br><br>
+ * The catalog lists the names, descriptions (from
+ * {@link CommandDescription}) and factories of the commands. It is
+ * registered with {@code CommandManager.registerDiscoveredCommands()}.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface RegisteredCommand {
+
+    /**
+     * Name of the command. It should consist only of alphanumeric
+     * characters and underscores.
+     */
+    String value();
+}
@@ -0,0 +1,303 @@
+package com.maciejors.jscp.core;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Arguments of a command call, viewed straight in the line they come from.
+ * <br><br>
+ * An argument becomes a {@link String} only when it is asked for one.
+ * Integers are parsed and arguments are compared without creating any
+ * strings. An argument containing escaped double quotes is unescaped
+ * (once) when it is first accessed.
+ * <br><br>
+ * Views created with {@link #of(String...)} are backed by the given
+ * strings instead.
+ * <br><br>
+ * In the low-allocation mode of {@link CommandProcessor}, a thread reuses
+ * a single view for all the lines it executes, so a view (and the array
+ * returned by {@link #toArray()}) is only valid during the call it has
+ * been passed to.
+ *
+ * @see ViewCommand
+ */
+public final class ArgumentView {
+
+    private static final int STRIDE = 3;
+
+    // the line, the bounds and the size are only reassigned by a reusable
+    // view, which never leaves the thread owning it
+
+    /**
+     * Line containing the arguments, {@code null} when the view is backed
+     * by strings
+     */
+    private CharSequence line;
+
+    /**
+     * Start, end and a flag set if there are escapes, for every argument
+     */
+    private int[] bounds;
+
+    private int size;
+
+    /**
+     * Arrays materializing the arguments of a reusable view, indexed by
+     * their size, {@code null} if the view is not reusable
+     */
+    private final String[][] arraysBySize;
+
+    /**
+     * Materialized arguments, created on demand
+     */
+    private volatile String[] strings;
+
+    ArgumentView(CharSequence line, int[] bounds, int size) {
+        this.line = line;
+        this.bounds = bounds;
+        this.size = size;
+        this.arraysBySize = null;
+    }
+
+    private ArgumentView(String[] strings) {
+        this.line = null;
+        this.bounds = null;
+        this.size = strings.length;
+        this.strings = strings;
+        this.arraysBySize = null;
+    }
+
+    /**
+     * Creates a reusable view, which has no arguments until it is
+     * {@link #reset}
+     *
+     * @param maxReusedSize Maximum number of arguments materialized into
+     *                      a reused array
+     */
+    ArgumentView(int maxReusedSize) {
+        this.line = "";
+        this.bounds = new int[0];
+        this.size = 0;
+        this.arraysBySize = new String[maxReusedSize + 1][];
+    }
+
+    /**
+     * Makes a reusable view show the arguments of another line
+     */
+    void reset(CharSequence line, int[] bounds, int size) {
+        String[] materialized = strings;
+        if (materialized != null) {
+            // the previous arguments are not kept reachable
+            Arrays.fill(materialized, null);
+            strings = null;
+        }
+        this.line = line;
+        this.bounds = bounds;
+        this.size = size;
+    }
+
+    /**
+     * Creates a view of already materialized arguments
+     *
+     * @param args Arguments
+     * @return A view backed by the array
+     */
+    public static ArgumentView of(String... args) {
+        return new ArgumentView(Objects.requireNonNull(args));
+    }
+
+    /**
+     * @return Number of arguments
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return {@code true} if there are no arguments
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns an argument without copying it
+     *
+     * @param index Index of the argument
+     * @return The argument as a read-only sequence of characters
+     */
+    public CharSequence get(int index) {
+        Objects.checkIndex(index, size);
+        if (line == null || hasEscapes(index)) {
+            return getString(index);
+        }
+        return CharBuffer.wrap(line, start(index), end(index));
+    }
+
+    /**
+     * @param index Index of the argument
+     * @return The argument as a {@link String}
+     */
+    public String getString(int index) {
+        Objects.checkIndex(index, size);
+        String[] materialized = strings;
+        if (materialized != null) {
+            return materialized[index];
+        }
+        return hasEscapes(index)
+                ? LineLexer.unescape(line, start(index), end(index))
+                : line.subSequence(start(index), end(index)).toString();
+    }
+
+    /**
+     * @param index Index of the argument
+     * @return Number of characters of the argument
+     */
+    public int length(int index) {
+        Objects.checkIndex(index, size);
+        if (line == null || hasEscapes(index)) {
+            return getString(index).length();
+        }
+        return end(index) - start(index);
+    }
+
+    /**
+     * Parses an argument as a decimal {@code int}
+     *
+     * @param index Index of the argument
+     * @return Parsed value
+     * @throws NumberFormatException if the argument is not an {@code int}
+     */
+    public int getInt(int index) {
+        Objects.checkIndex(index, size);
+        if (line == null || hasEscapes(index)) {
+            return Integer.parseInt(getString(index));
+        }
+        return Integer.parseInt(line, start(index), end(index), 10);
+    }
+
+    /**
+     * Parses an argument as a decimal {@code long}
+     *
+     * @param index Index of the argument
+     * @return Parsed value
+     * @throws NumberFormatException if the argument is not a {@code long}
+     */
+    public long getLong(int index) {
+        Objects.checkIndex(index, size);
+        if (line == null || hasEscapes(index)) {
+            return Long.parseLong(getString(index));
+        }
+        return Long.parseLong(line, start(index), end(index), 10);
+    }
+
+    /**
+     * Parses an argument as a {@code double}, just like
+     * {@link Double#parseDouble(String)}. Unlike the integers, it is parsed
+     * from a {@link String}, so it gets materialized
+     *
+     * @param index Index of the argument
+     * @return Parsed value
+     * @throws NumberFormatException if the argument is not a {@code double}
+     */
+    public double getDouble(int index) {
+        return Double.parseDouble(getString(index));
+    }
+
+    /**
+     * @param index Index of the argument
+     * @param value Value to compare the argument with
+     * @return {@code true} if the argument is equal to the value
+     */
+    public boolean contentEquals(int index, String value) {
+        Objects.checkIndex(index, size);
+        if (line == null || hasEscapes(index)) {
+            return getString(index).equals(value);
+        }
+        int length = end(index) - start(index);
+        return length == value.length()
+                && regionMatches(false, start(index), value, length);
+    }
+
+    /**
+     * @param index Index of the argument
+     * @param value Value to compare the argument with
+     * @return {@code true} if the argument is equal to the value, ignoring
+     * case
+     */
+    public boolean equalsIgnoreCase(int index, String value) {
+        Objects.checkIndex(index, size);
+        if (line == null || hasEscapes(index)) {
+            return getString(index).equalsIgnoreCase(value);
+        }
+        int length = end(index) - start(index);
+        return length == value.length()
+                && regionMatches(true, start(index), value, length);
+    }
+
+    private boolean regionMatches(boolean ignoreCase, int start, String value, int length) {
+        if (line instanceof String) {
+            return ((String) line).regionMatches(ignoreCase, start, value, 0, length);
+        }
+        for (int i = 0; i < length; i++) {
+            char a = line.charAt(start + i);
+            char b = value.charAt(i);
+            if (a != b && (!ignoreCase
+                    || Character.toUpperCase(a) != Character.toUpperCase(b)
+                    && Character.toLowerCase(a) != Character.toLowerCase(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Materializes all the arguments. The array is created once and then
+     * returned by every call, so it should not be modified. A reusable
+     * view materializes the arguments into an array reused by the
+     * following lines with as many arguments
+     *
+     * @return An array of the arguments
+     */
+    public String[] toArray() {
+        String[] materialized = strings;
+        if (materialized == null) {
+            materialized = newArray(size);
+            for (int i = 0; i < size; i++) {
+                materialized[i] = getString(i);
+            }
+            strings = materialized;
+        }
+        return materialized;
+    }
+
+    private String[] newArray(int size) {
+        if (arraysBySize == null || size >= arraysBySize.length) {
+            return new String[size];
+        }
+        String[] array = arraysBySize[size];
+        if (array == null) {
+            array = new String[size];
+            arraysBySize[size] = array;
+        }
+        return array;
+    }
+
+    private int start(int index) {
+        return bounds[index * STRIDE];
+    }
+
+    private int end(int index) {
+        return bounds[index * STRIDE + 1];
+    }
+
+    private boolean hasEscapes(int index) {
+        return bounds != null && bounds[index * STRIDE + 2] != 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" ", toArray());
+    }
+}
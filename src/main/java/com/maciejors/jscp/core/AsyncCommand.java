@@ -0,0 +1,46 @@
+package com.maciejors.jscp.core;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Parent class for commands which complete asynchronously, e.g. because
+ * they wait for I/O.
+ * <br><br>
+ * When executed by an {@link AsyncLoop}, such a command does not block the
+ * loop - the following lines are executed while it is still running.
+ * Elsewhere it is called synchronously, i.e. {@link #call(String[])} waits
+ * for the result.
+ */
+public abstract class AsyncCommand extends Command {
+
+    /**
+     * Method invoked when calling the command. It should start the work
+     * and return without waiting for it to finish
+     *
+     * @param args argument passed when calling the command
+     * @return a stage completed with the value returned by command (which
+     * can be {@code null}). The stage might get cancelled, e.g. when the
+     * command times out
+     */
+    @Override
+    public abstract CompletionStage<String> callAsync(String[] args);
+
+    /**
+     * Calls the command and waits for the result
+     *
+     * @param args argument passed when calling the command
+     * @return the value returned by command, can be {@code null}
+     */
+    @Override
+    public String call(String[] args) {
+        try {
+            return callAsync(args).toCompletableFuture().join();
+        } catch (CompletionException err) {
+            if (err.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) err.getCause();
+            }
+            throw err;
+        }
+    }
+}
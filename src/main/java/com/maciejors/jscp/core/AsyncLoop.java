@@ -0,0 +1,260 @@
+package com.maciejors.jscp.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A loop which does not wait for {@link AsyncCommand}s to complete before
+ * executing the following lines. Up to a given number of lines can be in
+ * flight at once.
+ * <br><br>
+ * The results are printed either in the order of the input lines, or as
+ * soon as they are available. In the latter case each result is preceded
+ * by the request ID - the number of its line (starting from 1) prefixed
+ * with {@code #}, e.g. {@code #3 result}.
+ * <br><br>
+ * Other statements (including calls to regular {@link Command}s) are
+ * executed by the loop thread, just like in
+ * {@link CommandProcessor#startLoop(InputStream, PrintStream)}. If a
+ * command fails, times out or gets cancelled, an error is printed instead
+ * of its result.
+ */
+public class AsyncLoop {
+
+    private final CommandProcessor commandProcessor;
+
+    private int maxInFlight = 64;
+
+    private Duration timeout = Duration.ZERO;
+
+    private ResultOrder resultOrder = ResultOrder.INPUT;
+
+    /**
+     * Commands which have not completed yet
+     */
+    private final Set<CompletableFuture<String>> running = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param commandProcessor A processor executing the lines
+     */
+    public AsyncLoop(CommandProcessor commandProcessor) {
+        this.commandProcessor = commandProcessor;
+    }
+
+    /**
+     * Executes lines until the end of the input or until the loop is
+     * cancelled, and waits for all the results to be printed
+     *
+     * @param inputStream A stream providing lines to be executed
+     * @param printStream A stream where the output will be printed
+     */
+    public void run(InputStream inputStream, PrintStream printStream) {
+        try {
+            new Run(printStream).run(commandProcessor.newLineReader(new InputStreamReader(inputStream)));
+        } finally {
+            // cleared only once the run is over, so a cancel coming before
+            // the run has started is not lost
+            cancelled = false;
+        }
+    }
+
+    /**
+     * Cancels all the running commands and stops the loop once the line
+     * being read is complete. If the loop is not running yet, the next run
+     * stops before executing any line
+     */
+    public void cancel() {
+        cancelled = true;
+        for (CompletableFuture<String> command : running) {
+            command.cancel(true);
+        }
+    }
+
+    /**
+     * State of a single {@link #run} call
+     */
+    private final class Run {
+
+        private final PrintStream printStream;
+
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+
+        /**
+         * Results waiting to be printed in the input order
+         */
+        private final Deque<CompletableFuture<String>> pending = new ArrayDeque<>();
+
+        Run(PrintStream printStream) {
+            this.printStream = printStream;
+        }
+
+        void run(LineReader reader) {
+            try {
+                long requestId = 0;
+                while (!cancelled && reader.next()) {
+                    inFlight.acquire();
+                    submit(reader.getError() == null
+                            ? execute(reader.getLine())
+                            : CompletableFuture.completedFuture("Error: " + reader.getError()),
+                            ++requestId);
+                }
+                // all permits are available again once everything is printed
+                inFlight.acquire(maxInFlight);
+            } catch (IOException err) {
+                throw new UncheckedIOException(err);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                cancel();
+            }
+        }
+
+        private void submit(CompletableFuture<String> result, long requestId) {
+            if (resultOrder == ResultOrder.INPUT) {
+                synchronized (pending) {
+                    pending.addLast(result);
+                }
+                result.thenRun(this::printCompleted);
+            } else {
+                result.thenAccept(output -> {
+                    synchronized (pending) {
+                        printStream.println("#" + requestId + " " + output);
+                        printStream.flush();
+                    }
+                    inFlight.release();
+                });
+            }
+        }
+
+        /**
+         * Prints the results which are complete, stopping at the first
+         * result which is not
+         */
+        private void printCompleted() {
+            synchronized (pending) {
+                while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+                    printStream.println(pending.removeFirst().join());
+                    inFlight.release();
+                }
+                printStream.flush();
+            }
+        }
+    }
+
+    /**
+     * Starts executing a line
+     *
+     * @return A future completed with the output of the line, never
+     * completed exceptionally
+     */
+    private CompletableFuture<String> execute(String line) {
+        CompletableFuture<String> command;
+        try {
+            command = commandProcessor.executeLineAsync(line).toCompletableFuture();
+        } catch (RuntimeException err) {
+            command = CompletableFuture.failedFuture(err);
+        }
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        if (!command.isDone()) {
+            running.add(command);
+            if (!timeout.isZero()) {
+                CompletableFuture<String> timedCommand = command;
+                CompletableFuture.delayedExecutor(timeout.toNanos(), TimeUnit.NANOSECONDS)
+                        .execute(() -> {
+                            // the command is cancelled before its result is
+                            // printed, so the loop never outlives it
+                            timedOut.set(true);
+                            timedCommand.cancel(true);
+                        });
+            }
+        }
+        CompletableFuture<String> startedCommand = command;
+        command.whenComplete((output, err) -> {
+            running.remove(startedCommand);
+            result.complete(err == null ? String.valueOf(output)
+                    : timedOut.get() ? "Error: timed out"
+                    : describe(err));
+        });
+        return result;
+    }
+
+    private static String describe(Throwable err) {
+        if (err instanceof CompletionException && err.getCause() != null) {
+            err = err.getCause();
+        }
+        if (err instanceof CancellationException) {
+            return "Error: cancelled";
+        }
+        return "Error: " + (err.getMessage() != null
+                ? err.getMessage()
+                : err.getClass().getSimpleName());
+    }
+
+    /**
+     * Limits the number of lines whose results have not been printed yet.
+     * The loop stops reading the input when the limit is reached. The
+     * default is 64
+     *
+     * @param maxInFlight Maximum number of lines in flight
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the time after which a command which has not completed gets
+     * cancelled and an error is printed instead of its result
+     *
+     * @param timeout Timeout, {@link Duration#ZERO} disables it
+     */
+    public void setTimeout(Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout cannot be negative");
+        }
+        this.timeout = timeout;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the order in which results are printed. With
+     * {@link ResultOrder#COMPLETION}, results are tagged with request IDs.
+     * The default is {@link ResultOrder#INPUT}
+     *
+     * @param resultOrder Order of the results
+     */
+    public void setResultOrder(ResultOrder resultOrder) {
+        this.resultOrder = Objects.requireNonNull(resultOrder);
+    }
+
+    public ResultOrder getResultOrder() {
+        return resultOrder;
+    }
+}
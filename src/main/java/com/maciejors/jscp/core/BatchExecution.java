@@ -0,0 +1,149 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.core.CommandProcessor.ParsedStatement;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * A single run of {@link CommandProcessor#executeAll(Stream, ResultOrder, ObjLongConsumer)}.
+ * <br><br>
+ * Every line is parsed and executed on the executor. Statements which are
+ * not parallel-safe go through a serial lane: they are executed one at a
+ * time, in the order of the input lines.
+ */
+final class BatchExecution {
+
+    private final CommandProcessor processor;
+    private final Executor executor;
+    private final ResultOrder resultOrder;
+    private final ObjLongConsumer<String> resultConsumer;
+
+    /**
+     * Limits the number of lines which have been submitted, but whose
+     * results have not been delivered yet
+     */
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    /**
+     * Completes when the last statement submitted to the serial lane
+     * finishes executing
+     */
+    private CompletableFuture<?> serialLane = CompletableFuture.completedFuture(null);
+
+    /**
+     * Completes when the last result submitted for ordered delivery has
+     * been delivered
+     */
+    private CompletableFuture<?> deliveryTail = CompletableFuture.completedFuture(null);
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Makes sure results delivered in {@link ResultOrder#COMPLETION} order
+     * are never delivered concurrently
+     */
+    private final Object deliveryLock = new Object();
+
+    BatchExecution(CommandProcessor processor, Executor executor, int maxInFlight,
+                   ResultOrder resultOrder, ObjLongConsumer<String> resultConsumer) {
+        this.processor = processor;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.resultOrder = resultOrder;
+        this.resultConsumer = resultConsumer;
+    }
+
+    /**
+     * Executes all the lines and waits until all the results are delivered
+     */
+    void run(Stream<String> lines) {
+        Iterator<String> iterator = lines.iterator();
+        long index = 0;
+        try {
+            while (iterator.hasNext() && failure.get() == null) {
+                String line = iterator.next();
+                inFlight.acquire();
+                submit(line, index++);
+            }
+            // all permits are available again once everything is delivered
+            inFlight.acquire(maxInFlight);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(err);
+        }
+
+        Throwable err = failure.get();
+        if (err instanceof RuntimeException) {
+            throw (RuntimeException) err;
+        }
+        if (err instanceof Error) {
+            throw (Error) err;
+        }
+        if (err != null) {
+            throw new CompletionException(err);
+        }
+    }
+
+    private void submit(String line, long index) {
+        CompletableFuture<ParsedStatement> parsed =
+                CompletableFuture.supplyAsync(() -> processor.parseMeasured(line, null), executor);
+
+        // every line passes through the serial lane, but only the
+        // statements which are not parallel-safe get executed there
+        CompletableFuture<String> serialStep = serialLane.thenCombineAsync(parsed,
+                (previous, statement) -> isParallelSafe(statement)
+                        ? null
+                        : execute(statement),
+                executor);
+        serialLane = serialStep;
+
+        CompletableFuture<String> result = parsed.thenCompose(statement ->
+                isParallelSafe(statement)
+                        ? CompletableFuture.supplyAsync(() -> execute(statement), executor)
+                        : serialStep);
+
+        if (resultOrder == ResultOrder.INPUT) {
+            deliveryTail = deliveryTail.thenCombine(result, (ignored, output) -> {
+                resultConsumer.accept(output, index);
+                return null;
+            }).whenComplete((ignored, err) -> complete(err));
+        } else {
+            result.thenAccept(output -> {
+                synchronized (deliveryLock) {
+                    resultConsumer.accept(output, index);
+                }
+            }).whenComplete((ignored, err) -> complete(err));
+        }
+    }
+
+    private void complete(Throwable err) {
+        if (err != null) {
+            failure.compareAndSet(null,
+                    err instanceof CompletionException && err.getCause() != null
+                            ? err.getCause()
+                            : err);
+        }
+        inFlight.release();
+    }
+
+    private static boolean isParallelSafe(ParsedStatement parsed) {
+        // blank lines do not execute anything
+        return parsed == null || parsed.statement.isParallelSafe();
+    }
+
+    private String execute(ParsedStatement parsed) {
+        if (parsed == null) {
+            return "";
+        }
+        return processor.execute(parsed);
+    }
+}
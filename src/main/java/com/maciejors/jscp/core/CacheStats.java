@@ -0,0 +1,88 @@
+package com.maciejors.jscp.core;
+
+/**
+ * Statistics of the memoized values of a command annotated with
+ * {@link com.maciejors.jscp.annotations.Cacheable}
+ *
+ * @see CommandManager#getCacheStats(String)
+ */
+public final class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long coalesced;
+    private final long evictions;
+    private final long expirations;
+    private final int size;
+
+    CacheStats(long hits, long misses, long coalesced, long evictions,
+               long expirations, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.coalesced = coalesced;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.size = size;
+    }
+
+    /**
+     * @return Number of calls answered with a memoized value
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of calls which executed the command
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Number of calls which waited for an identical call which was
+     * already running
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return Number of values discarded because the cache was full
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of values replaced after they had expired
+     */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * @return Number of values memoized at the moment
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return Fraction of the calls which did not execute the command
+     */
+    public double getHitRate() {
+        long calls = hits + coalesced + misses;
+        return calls == 0 ? 0 : (double) (hits + coalesced) / calls;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits +
+                ", misses=" + misses +
+                ", coalesced=" + coalesced +
+                ", evictions=" + evictions +
+                ", expirations=" + expirations +
+                ", size=" + size + "}";
+    }
+}
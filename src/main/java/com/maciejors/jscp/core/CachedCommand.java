@@ -0,0 +1,275 @@
+package com.maciejors.jscp.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A command whose values are memoized, keyed by the arguments. See
+ * {@link com.maciejors.jscp.annotations.Cacheable}.
+ * <br><br>
+ * Memoized values are looked up without locking. Calls which do not find
+ * a value lock the cache just to create an entry for it, and the first of
+ * the identical calls executes the command, while the other ones wait for
+ * the same entry to be completed.
+ */
+final class CachedCommand extends Command {
+
+    /**
+     * Arguments of a call
+     */
+    private static final class Key {
+        private final String[] args;
+        private final int hash;
+
+        Key(String[] args) {
+            this.args = args;
+            this.hash = Arrays.hashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(args, ((Key) o).args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A value which is memoized or being computed
+     */
+    private static final class Entry {
+        final CompletableFuture<String> value = new CompletableFuture<>();
+        final long createdAt;
+
+        Entry(long createdAt) {
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final Command command;
+
+    private final long ttlNanos;
+    private final int maxEntries;
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The same entries in the order of their creation, used to evict the
+     * oldest ones. Guarded by itself
+     */
+    private final LinkedHashMap<Key, Entry> creationOrder = new LinkedHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param ttlMillis  Time after which values expire, {@code 0} if they
+     *                   do not
+     * @param maxEntries Maximum number of memoized values
+     */
+    CachedCommand(Command command, long ttlMillis, int maxEntries) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("ttlMillis cannot be negative");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.command = command;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.maxEntries = maxEntries;
+    }
+
+    Command getCommand() {
+        return command;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return ttlNanos != 0 && now - entry.createdAt >= ttlNanos;
+    }
+
+    /**
+     * Finds the entry of a call or creates it
+     *
+     * @return An entry to be completed by the caller or {@code null} if
+     * the entry of the call is already in the cache
+     */
+    private Entry createEntry(Key key, Entry[] found) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null && !isExpired(entry, now)) {
+            found[0] = entry;
+            return null;
+        }
+        synchronized (creationOrder) {
+            entry = entries.get(key);
+            if (entry != null) {
+                if (!isExpired(entry, now)) {
+                    found[0] = entry;
+                    return null;
+                }
+                expirations.increment();
+                creationOrder.remove(key);
+            }
+            Entry created = new Entry(now);
+            entries.put(key, created);
+            creationOrder.put(key, created);
+            misses.increment();
+            return created;
+        }
+    }
+
+    private void countFound(Entry entry) {
+        if (entry.value.isDone()) {
+            hits.increment();
+        } else {
+            coalesced.increment();
+        }
+    }
+
+    /**
+     * Completes an entry created by the caller, discarding it unless the
+     * value can be memoized
+     */
+    private void complete(Key key, Entry entry, String value, Throwable err) {
+        if (err != null || (value != null && value.startsWith("Error: "))) {
+            discard(key, entry);
+        } else {
+            evictOverflow();
+        }
+        if (err != null) {
+            entry.value.completeExceptionally(err);
+        } else {
+            entry.value.complete(value);
+        }
+    }
+
+    /**
+     * Evicts the oldest entries if there are too many of them. Entries are
+     * only evicted once a value is memoized, so calls whose values are not
+     * memoized (e.g. errors) do not push out the memoized ones
+     */
+    private void evictOverflow() {
+        synchronized (creationOrder) {
+            Iterator<Key> oldest = creationOrder.keySet().iterator();
+            while (creationOrder.size() > maxEntries) {
+                entries.remove(oldest.next());
+                oldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void discard(Key key, Entry entry) {
+        synchronized (creationOrder) {
+            if (entries.remove(key, entry)) {
+                creationOrder.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public String call(String[] args) {
+        return call(ArgumentView.of(args));
+    }
+
+    @Override
+    public String call(ArgumentView args) {
+        // the array of a reusable view is overwritten by the next line
+        Key key = new Key(args.toArray().clone());
+        Entry[] found = new Entry[1];
+        Entry created = createEntry(key, found);
+        if (created == null) {
+            countFound(found[0]);
+            return join(found[0].value);
+        }
+        String value;
+        try {
+            value = command.call(args);
+        } catch (RuntimeException | Error err) {
+            complete(key, created, null, err);
+            throw err;
+        }
+        complete(key, created, value, null);
+        return value;
+    }
+
+    private static String join(CompletableFuture<String> value) {
+        try {
+            return value.join();
+        } catch (CompletionException err) {
+            if (err.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) err.getCause();
+            }
+            throw err;
+        }
+    }
+
+    @Override
+    public void call(ArgumentView args, Appendable out) throws IOException {
+        out.append(String.valueOf(call(args)));
+    }
+
+    @Override
+    public CompletionStage<String> callAsync(String[] args) {
+        return callAsync(ArgumentView.of(args));
+    }
+
+    @Override
+    public CompletionStage<String> callAsync(ArgumentView args) {
+        Key key = new Key(args.toArray().clone());
+        Entry[] found = new Entry[1];
+        Entry created = createEntry(key, found);
+        if (created == null) {
+            countFound(found[0]);
+            // a caller cancelling its copy does not affect the others
+            return found[0].value.copy();
+        }
+        try {
+            command.callAsync(args).whenComplete((value, err) ->
+                    complete(key, created, value, err));
+        } catch (RuntimeException | Error err) {
+            complete(key, created, null, err);
+        }
+        return created.value.copy();
+    }
+
+    /**
+     * Discards all the memoized values. Calls which are running complete
+     * normally, but their values are not memoized
+     */
+    void invalidate() {
+        synchronized (creationOrder) {
+            entries.clear();
+            creationOrder.clear();
+        }
+    }
+
+    CacheStats getStats() {
+        return new CacheStats(hits.sum(), misses.sum(), coalesced.sum(),
+                evictions.sum(), expirations.sum(), entries.size());
+    }
+
+    @Override
+    public boolean isParallelSafe() {
+        return command.isParallelSafe();
+    }
+
+    @Override
+    public String getDescription() {
+        return command.getDescription();
+    }
+}
@@ -0,0 +1,426 @@
+package com.maciejors.jscp.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * A loop executing lines read from a channel and writing their output to
+ * another channel. It is a faster equivalent of
+ * {@link CommandProcessor#startLoop(java.io.InputStream, java.io.PrintStream)}.
+ * <br><br>
+ * Lines are decoded (as UTF-8) straight from a reused input buffer. The
+ * output is encoded into an output buffer, which is written to the output
+ * channel when:
+ * <ul>
+ *     <li>it is full</li>
+ *     <li>the oldest buffered output is older than the flush interval</li>
+ *     <li>all the input read so far has been executed, i.e. right before
+ *     the loop waits for more input</li>
+ * </ul>
+ * So the output is written in large batches when piping a file through
+ * the processor, while an interactive user still gets each result
+ * immediately. The output of a {@link StreamingCommand} is encoded as it
+ * is produced, so the command is held back while the output channel
+ * cannot take more.
+ * <br><br>
+ * Both blocking and non-blocking {@link SelectableChannel}s are supported.
+ */
+public class ChannelLoop {
+
+    private static final byte NEWLINE = '\n';
+
+    /**
+     * Number of characters encoded at once
+     */
+    private static final int PENDING_CHARS = 1024;
+
+    /**
+     * How often (in appended pieces, a power of two) a streaming command
+     * gets its output flushed when it is due
+     */
+    private static final int APPENDS_PER_CLOCK_CHECK = 64;
+
+    private final CommandProcessor commandProcessor;
+
+    private int inputBufferSize = 64 * 1024;
+
+    private int outputBufferSize = 64 * 1024;
+
+    private long flushIntervalNanos = Duration.ofMillis(50).toNanos();
+
+    /**
+     * @param commandProcessor A processor executing the lines
+     */
+    public ChannelLoop(CommandProcessor commandProcessor) {
+        this.commandProcessor = commandProcessor;
+    }
+
+    /**
+     * Executes lines until the end of the input
+     *
+     * @param input  A channel providing lines to be executed
+     * @param output A channel where the output will be written
+     * @throws IOException if reading or writing fails
+     */
+    public void run(ReadableByteChannel input, WritableByteChannel output)
+            throws IOException {
+        new Run(input, output).run();
+    }
+
+    /**
+     * State of a single {@link #run} call
+     */
+    private final class Run {
+
+        private final ReadableByteChannel input;
+        private final WritableByteChannel output;
+
+        private ByteBuffer inputBuffer = ByteBuffer.allocate(inputBufferSize);
+        private final ByteBuffer outputBuffer = ByteBuffer.allocate(outputBufferSize);
+
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /**
+         * {@link System#nanoTime()} of the moment the oldest unflushed
+         * output has been buffered
+         */
+        private long firstUnflushedAt = 0;
+
+        private Selector selector = null;
+
+        /**
+         * Whether the rest of the current line is being skipped, because it
+         * exceeds the maximum line length
+         */
+        private boolean discarding = false;
+
+        private final OutputSink sink = new OutputSink();
+
+        Run(ReadableByteChannel input, WritableByteChannel output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        void run() throws IOException {
+            try {
+                while (fill()) {
+                    executeBufferedLines();
+                }
+                // the last line might not be terminated
+                inputBuffer.flip();
+                if (discarding) {
+                    skipLine();
+                } else if (inputBuffer.hasRemaining()) {
+                    executeLine(inputBuffer.array(), inputBuffer.position(),
+                            inputBuffer.limit());
+                }
+                flush();
+            } finally {
+                if (selector != null) {
+                    selector.close();
+                }
+            }
+        }
+
+        /**
+         * Reads more input into the input buffer (which is in the writing
+         * mode afterwards)
+         *
+         * @return {@code false} at the end of the input
+         */
+        private boolean fill() throws IOException {
+            if (!inputBuffer.hasRemaining()) {
+                // a UTF-16 character never takes more than 3 bytes in UTF-8
+                if (discarding || inputBuffer.capacity()
+                        > 3L * commandProcessor.getMaxLineLength()) {
+                    // the line is too long to be executed, so it is not
+                    // kept in memory either
+                    discarding = true;
+                    inputBuffer.clear();
+                }
+            }
+            if (!inputBuffer.hasRemaining()) {
+                // a line longer than the buffer
+                ByteBuffer grown = ByteBuffer.allocate(inputBuffer.capacity() * 2);
+                inputBuffer.flip();
+                grown.put(inputBuffer);
+                inputBuffer = grown;
+            }
+
+            // the loop might wait for the input, so all the results have to
+            // be delivered first
+            flush();
+            while (true) {
+                int read = input.read(inputBuffer);
+                if (read < 0) {
+                    return false;
+                }
+                if (read > 0) {
+                    return true;
+                }
+                await(input, SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Executes all the complete lines from the input buffer
+         */
+        private void executeBufferedLines() throws IOException {
+            byte[] bytes = inputBuffer.array();
+            int end = inputBuffer.position();
+            int lineStart = 0;
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == NEWLINE) {
+                    if (discarding) {
+                        discarding = false;
+                        skipLine();
+                    } else {
+                        executeLine(bytes, lineStart, i);
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            // keeping the incomplete line for later
+            inputBuffer.limit(end);
+            inputBuffer.position(lineStart);
+            inputBuffer.compact();
+        }
+
+        private void executeLine(byte[] bytes, int start, int end) throws IOException {
+            if (end > start && bytes[end - 1] == '\r') {
+                end--;
+            }
+            String line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            commandProcessor.executeLineTo(line, sink);
+            sink.endLine();
+            flushIfDue();
+        }
+
+        private void skipLine() throws IOException {
+            sink.append("Error: line too long (max "
+                    + commandProcessor.getMaxLineLength() + " characters)");
+            sink.endLine();
+            flushIfDue();
+        }
+
+        private void flushIfDue() throws IOException {
+            if (outputBuffer.position() > 0
+                    && System.nanoTime() - firstUnflushedAt >= flushIntervalNanos) {
+                flush();
+            }
+        }
+
+        /**
+         * Encodes the output of lines into the output buffer. The output of
+         * a line can be appended piece by piece
+         */
+        private final class OutputSink implements Appendable {
+
+            /**
+             * Characters waiting to be encoded (in the writing mode). A high
+             * surrogate ending a piece stays here until the next piece
+             */
+            private final CharBuffer pending = CharBuffer.allocate(PENDING_CHARS);
+
+            private int appends = 0;
+
+            @Override
+            public Appendable append(CharSequence csq) throws IOException {
+                CharSequence chars = csq == null ? "null" : csq;
+                return append(chars, 0, chars.length());
+            }
+
+            @Override
+            public Appendable append(CharSequence csq, int start, int end)
+                    throws IOException {
+                CharSequence chars = csq == null ? "null" : csq;
+                if (start < end) {
+                    markUnflushed();
+                }
+                while (start < end) {
+                    if (!pending.hasRemaining()) {
+                        encodePending(false);
+                    }
+                    int count = Math.min(end - start, pending.remaining());
+                    copy(chars, start, start + count);
+                    start += count;
+                }
+                afterAppend();
+                return this;
+            }
+
+            @Override
+            public Appendable append(char c) throws IOException {
+                markUnflushed();
+                if (!pending.hasRemaining()) {
+                    encodePending(false);
+                }
+                pending.put(c);
+                afterAppend();
+                return this;
+            }
+
+            /**
+             * Makes sure a long-running command still delivers its output
+             * in time. The clock is checked only every few appends
+             */
+            private void afterAppend() throws IOException {
+                if ((++appends & (APPENDS_PER_CLOCK_CHECK - 1)) == 0
+                        && System.nanoTime() - firstUnflushedAt >= flushIntervalNanos) {
+                    encodePending(false);
+                    flush();
+                }
+            }
+
+            /**
+             * Copies characters into the pending buffer, which has enough
+             * space for them
+             */
+            private void copy(CharSequence chars, int start, int end) {
+                char[] array = pending.array();
+                int position = pending.position();
+                if (chars instanceof String) {
+                    ((String) chars).getChars(start, end, array, position);
+                } else if (chars instanceof StringBuilder) {
+                    ((StringBuilder) chars).getChars(start, end, array, position);
+                } else {
+                    for (int i = start; i < end; i++) {
+                        array[position + i - start] = chars.charAt(i);
+                    }
+                }
+                pending.position(position + end - start);
+            }
+
+            /**
+             * Completes the output of a line with a newline
+             */
+            void endLine() throws IOException {
+                encodePending(true);
+                while (encoder.flush(outputBuffer).isOverflow()) {
+                    flush();
+                }
+                encoder.reset();
+                if (!outputBuffer.hasRemaining()) {
+                    flush();
+                }
+                markUnflushed();
+                outputBuffer.put(NEWLINE);
+                if (!outputBuffer.hasRemaining()) {
+                    flush();
+                }
+            }
+
+            private void encodePending(boolean endOfInput) throws IOException {
+                pending.flip();
+                while (encoder.encode(pending, outputBuffer, endOfInput).isOverflow()) {
+                    flush();
+                }
+                pending.compact();
+            }
+
+            /**
+             * Notes when the buffered output starts getting old
+             */
+            private void markUnflushed() {
+                if (outputBuffer.position() == 0 && pending.position() == 0) {
+                    firstUnflushedAt = System.nanoTime();
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            outputBuffer.flip();
+            while (outputBuffer.hasRemaining()) {
+                if (output.write(outputBuffer) == 0) {
+                    await(output, SelectionKey.OP_WRITE);
+                }
+            }
+            outputBuffer.clear();
+            // output which has not been encoded yet is as old as the flush
+            firstUnflushedAt = System.nanoTime();
+        }
+
+        /**
+         * Waits until a non-blocking channel is ready
+         */
+        private void await(Object channel, int operation) throws IOException {
+            if (!(channel instanceof SelectableChannel)
+                    || ((SelectableChannel) channel).isBlocking()) {
+                // a blocking channel which transferred no bytes
+                Thread.onSpinWait();
+                return;
+            }
+            SelectableChannel selectable = (SelectableChannel) channel;
+            if (selector == null) {
+                selector = Selector.open();
+            }
+            SelectionKey key = selectable.register(selector, operation);
+            selector.select();
+            key.cancel();
+            selector.selectNow();
+        }
+    }
+
+    /**
+     * Sets the initial size of the input buffer. The buffer grows when a
+     * line does not fit into it
+     *
+     * @param inputBufferSize Size in bytes
+     */
+    public void setInputBufferSize(int inputBufferSize) {
+        if (inputBufferSize <= 0) {
+            throw new IllegalArgumentException("inputBufferSize must be positive");
+        }
+        this.inputBufferSize = inputBufferSize;
+    }
+
+    public int getInputBufferSize() {
+        return inputBufferSize;
+    }
+
+    /**
+     * Sets the size of the output buffer, i.e. the maximum number of bytes
+     * written to the output channel at once
+     *
+     * @param outputBufferSize Size in bytes
+     */
+    public void setOutputBufferSize(int outputBufferSize) {
+        if (outputBufferSize <= 0) {
+            throw new IllegalArgumentException("outputBufferSize must be positive");
+        }
+        this.outputBufferSize = outputBufferSize;
+    }
+
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    /**
+     * Sets the maximum time the output can stay buffered while the loop
+     * keeps executing lines. The default is 50 ms
+     *
+     * @param flushInterval Flush interval
+     */
+    public void setFlushInterval(Duration flushInterval) {
+        if (flushInterval.isNegative()) {
+            throw new IllegalArgumentException("flushInterval cannot be negative");
+        }
+        this.flushIntervalNanos = flushInterval.toNanos();
+    }
+
+    public Duration getFlushInterval() {
+        return Duration.ofNanos(flushIntervalNanos);
+    }
+}
@@ -1,6 +1,11 @@
 package com.maciejors.jscp.core;
 
 import com.maciejors.jscp.annotations.CommandDescription;
+import com.maciejors.jscp.annotations.ParallelSafe;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Parent class for all the commands.
@@ -10,12 +15,29 @@ import com.maciejors.jscp.annotations.CommandDescription;
  * <br><br>
  * To add a description to the command, annotate it with
  * {@link CommandDescription}.
+ * <br><br>
+ * Commands which are thread-safe should be annotated with
+ * {@link ParallelSafe}, so that they can be executed in parallel.
  *
  * @see CommandManager
  * @see CommandProcessor
  */
 public abstract class Command {
 
+    /**
+     * Descriptions of the command classes, looked up once per class
+     */
+    private static final ClassValue<String> DESCRIPTIONS = new ClassValue<>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            CommandDescription description = type.getAnnotation(CommandDescription.class);
+            return description == null ? null : description.value();
+        }
+    };
+
+    private final boolean parallelSafe =
+            getClass().isAnnotationPresent(ParallelSafe.class);
+
     /**
      * Method invoked when calling the command
      *
@@ -23,4 +45,77 @@ public abstract class Command {
      * @return the value returned by command, can be {@code null}
      */
     public abstract String call(String[] args);
+
+    /**
+     * Method invoked when calling the command asynchronously, e.g. by
+     * {@link AsyncLoop}. By default, it calls {@link #call(String[])}
+     * right away. Commands doing slow I/O should rather extend
+     * {@link AsyncCommand}
+     *
+     * @param args argument passed when calling the command
+     * @return a stage completed with the value returned by command
+     */
+    public CompletionStage<String> callAsync(String[] args) {
+        try {
+            return CompletableFuture.completedFuture(call(args));
+        } catch (RuntimeException err) {
+            return CompletableFuture.failedFuture(err);
+        }
+    }
+
+    /**
+     * Method invoked when calling the command with arguments viewed in the
+     * line they come from. By default, it materializes the arguments and
+     * calls {@link #call(String[])}. Commands which can make use of the
+     * view should extend {@link ViewCommand}
+     *
+     * @param args arguments passed when calling the command
+     * @return the value returned by command, can be {@code null}
+     */
+    public String call(ArgumentView args) {
+        return call(args.toArray());
+    }
+
+    /**
+     * Method invoked when the output of the command is written straight to
+     * a sink, e.g. by the loops. By default, it calls
+     * {@link #call(ArgumentView)} and writes the returned value at once
+     * ({@code null} is written as {@code "null"}). Commands producing
+     * large outputs should rather extend {@link StreamingCommand}
+     *
+     * @param args arguments passed when calling the command
+     * @param out  a sink for the value
+     * @throws IOException if writing to the sink fails
+     */
+    public void call(ArgumentView args, Appendable out) throws IOException {
+        out.append(String.valueOf(call(args)));
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #call(ArgumentView)}. By default,
+     * it materializes the arguments and calls {@link #callAsync(String[])}
+     *
+     * @param args arguments passed when calling the command
+     * @return a stage completed with the value returned by command
+     */
+    public CompletionStage<String> callAsync(ArgumentView args) {
+        return callAsync(args.toArray());
+    }
+
+    /**
+     * @return {@code true} if the command can be executed concurrently with
+     * other commands. By default, only the commands annotated with
+     * {@link ParallelSafe} are
+     */
+    public boolean isParallelSafe() {
+        return parallelSafe;
+    }
+
+    /**
+     * @return Description of the command, by default the one from its
+     * {@link CommandDescription} annotation, or {@code null} if it has none
+     */
+    public String getDescription() {
+        return DESCRIPTIONS.get(getClass());
+    }
 }
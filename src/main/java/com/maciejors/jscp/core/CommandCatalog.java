@@ -0,0 +1,77 @@
+package com.maciejors.jscp.core;
+
+/**
+ * A static list of commands which can be registered without creating them
+ * up front. Implementations are generated at compile time for classes
+ * annotated with {@link com.maciejors.jscp.annotations.RegisteredCommand}
+ * and found with {@link java.util.ServiceLoader}.
+ * <br><br>
+ * Commands are identified by their positions in the catalog, from
+ * {@code 0} to {@code size() - 1}.
+ *
+ * @see CommandManager#registerDiscoveredCommands()
+ * @see CommandManager#registerCatalog(CommandCatalog)
+ */
+public interface CommandCatalog {
+
+    /**
+     * @return Number of commands in the catalog
+     */
+    int size();
+
+    /**
+     * @return Name of the command
+     */
+    String getName(int index);
+
+    /**
+     * @return Description of the command or {@code null} if it has none
+     */
+    String getDescription(int index);
+
+    /**
+     * @return {@code true} if the command is known to be parallel-safe
+     * without creating it
+     */
+    boolean isParallelSafe(int index);
+
+    /**
+     * @return Policy described by the
+     * {@link com.maciejors.jscp.annotations.CommandPolicy} annotation of
+     * the command, {@link DispatchPolicy#NONE} if it has none
+     */
+    default DispatchPolicy getPolicy(int index) {
+        return DispatchPolicy.NONE;
+    }
+
+    /**
+     * @return {@code true} if the command is annotated with
+     * {@link com.maciejors.jscp.annotations.Cacheable}
+     */
+    default boolean isCacheable(int index) {
+        return false;
+    }
+
+    /**
+     * @return {@code ttlMillis} of the
+     * {@link com.maciejors.jscp.annotations.Cacheable} annotation of the
+     * command
+     */
+    default long getCacheTtlMillis(int index) {
+        return 0;
+    }
+
+    /**
+     * @return {@code maxEntries} of the
+     * {@link com.maciejors.jscp.annotations.Cacheable} annotation of the
+     * command
+     */
+    default int getCacheMaxEntries(int index) {
+        return 1024;
+    }
+
+    /**
+     * Creates a new instance of the command
+     */
+    Command create(int index);
+}
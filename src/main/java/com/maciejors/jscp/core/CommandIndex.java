@@ -0,0 +1,296 @@
+package com.maciejors.jscp.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index of command names, built once per set of registered
+ * commands.
+ * <br><br>
+ * Names are looked up straight from a range of characters, so resolving a
+ * command from a line does not allocate. Exact names are found in an open
+ * addressing hash table, hashing the range in place. Prefix queries
+ * (abbreviations, completion) use a char trie whose nodes are laid out in
+ * the order of the sorted names, so the names starting with any prefix
+ * form a contiguous range and a query only has to walk the prefix.
+ */
+final class CommandIndex {
+
+    /**
+     * Returned when no command matches
+     */
+    static final int NOT_FOUND = -1;
+
+    /**
+     * Returned when an abbreviation matches more than one command
+     */
+    static final int AMBIGUOUS = -2;
+
+    private static final int HASHED_HEAD = 4;
+    private static final int HASHED_TAIL = 8;
+
+    /**
+     * Sorted command names, the position of a name is its entry number
+     */
+    private final String[] names;
+    private final Command[] commands;
+
+    /**
+     * Hash table of the names: entry number + 1, or 0 in empty slots. Its
+     * size is a power of two, at least twice the number of names
+     */
+    private final int[] slots;
+
+    /**
+     * Hash of every name
+     */
+    private final int[] hashes;
+
+    /**
+     * Outgoing edges of node {@code n} are stored at positions from
+     * {@code edgeStart[n]} to {@code edgeStart[n + 1]} of {@link #edgeLabels}
+     * and {@link #edgeTargets}, sorted by their labels
+     */
+    private final int[] edgeStart;
+    private final char[] edgeLabels;
+    private final int[] edgeTargets;
+
+    /**
+     * Entry of the name ending at a node or {@link #NOT_FOUND}
+     */
+    private final int[] terminal;
+
+    /**
+     * Names from {@code namesFrom[n]} to {@code namesTo[n]} (exclusive)
+     * start with the prefix leading to node {@code n}
+     */
+    private final int[] namesFrom;
+    private final int[] namesTo;
+
+    private int nodeCount = 0;
+    private int edgeCount = 0;
+
+    private CommandIndex(String[] names, Command[] commands) {
+        this.names = names;
+        this.commands = commands;
+
+        // every character of every name adds at most one node
+        int maxNodes = 1;
+        for (String name : names) {
+            maxNodes += name.length();
+        }
+        edgeStart = new int[maxNodes + 1];
+        edgeLabels = new char[maxNodes];
+        edgeTargets = new int[maxNodes];
+        terminal = new int[maxNodes];
+        namesFrom = new int[maxNodes];
+        namesTo = new int[maxNodes];
+
+        build(0, names.length, 0);
+        edgeStart[nodeCount] = edgeCount;
+
+        slots = new int[Math.max(2, Integer.highestOneBit(names.length * 2 - 1) << 1)];
+        hashes = new int[names.length];
+        for (int entry = 0; entry < names.length; entry++) {
+            int hash = hash(names[entry], 0, names[entry].length());
+            hashes[entry] = hash;
+            int slot = hash & (slots.length - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+
+    /**
+     * @param registeredCommands Commands keyed by their names
+     * @param guards             Commands to be dispatched instead of the
+     *                           registered ones with the same names
+     */
+    static CommandIndex of(Map<String, Command> registeredCommands,
+                           Map<String, ? extends Command> guards) {
+        String[] names = registeredCommands.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        Command[] commands = new Command[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Command guard = guards.get(names[i]);
+            commands[i] = guard != null ? guard : registeredCommands.get(names[i]);
+        }
+        return new CommandIndex(names, commands);
+    }
+
+    /**
+     * Creates a node for the names from {@code from} to {@code to}, which
+     * share their first {@code depth} characters
+     *
+     * @return Number of the node
+     */
+    private int build(int from, int to, int depth) {
+        int node = nodeCount++;
+        namesFrom[node] = from;
+        namesTo[node] = to;
+        terminal[node] = NOT_FOUND;
+        // the name equal to the prefix is sorted before the longer ones
+        if (from < to && names[from].length() == depth) {
+            terminal[node] = from;
+            from++;
+        }
+
+        // edges of a node have to be contiguous, so they are reserved
+        // before the children get created
+        int edges = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || names[i].charAt(depth) != names[i - 1].charAt(depth)) {
+                edges++;
+            }
+        }
+        int edge = edgeCount;
+        edgeStart[node] = edge;
+        edgeCount += edges;
+
+        int groupStart = from;
+        for (int i = from + 1; i <= to; i++) {
+            if (i == to || names[i].charAt(depth) != names[groupStart].charAt(depth)) {
+                edgeLabels[edge] = names[groupStart].charAt(depth);
+                edgeTargets[edge] = build(groupStart, i, depth + 1);
+                edge++;
+                groupStart = i;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return The node reached by following the characters from
+     * {@code start} to {@code end} or {@link #NOT_FOUND}
+     */
+    private int walk(CharSequence chars, int start, int end) {
+        if (names.length == 0) {
+            return NOT_FOUND;
+        }
+        int node = 0;
+        for (int i = start; i < end; i++) {
+            node = child(node, chars.charAt(i));
+            if (node == NOT_FOUND) {
+                return NOT_FOUND;
+            }
+        }
+        return node;
+    }
+
+    private int child(int node, char label) {
+        int low = edgeStart[node];
+        int high = edgeStart[node + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char middleLabel = edgeLabels[middle];
+            if (middleLabel < label) {
+                low = middle + 1;
+            } else if (middleLabel > label) {
+                high = middle - 1;
+            } else {
+                return edgeTargets[middle];
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Hashes the length, the first {@link #HASHED_HEAD} and the last
+     * {@link #HASHED_TAIL} characters of a name. Generated names tend to
+     * differ only at their ends, while hashing their long common middle
+     * parts would slow down every lookup; whole names are compared anyway
+     */
+    private static int hash(CharSequence chars, int start, int end) {
+        int hash = end - start;
+        int headEnd = Math.min(end, start + HASHED_HEAD);
+        for (int i = start; i < headEnd; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        for (int i = Math.max(headEnd, end - HASHED_TAIL); i < end; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        // spreading the higher bits, as only the lower ones select a slot
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String name, CharSequence chars, int start, int end) {
+        int length = end - start;
+        if (name.length() != length) {
+            return false;
+        }
+        if (chars instanceof String) {
+            return ((String) chars).regionMatches(start, name, 0, length);
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Searches for a command whose name is equal to the characters from
+     * {@code start} to {@code end}
+     *
+     * @return Number of the entry or {@link #NOT_FOUND}
+     */
+    int find(CharSequence chars, int start, int end) {
+        int hash = hash(chars, start, end);
+        int slot = hash & (slots.length - 1);
+        int entry;
+        while ((entry = slots[slot] - 1) != NOT_FOUND) {
+            if (hashes[entry] == hash && matches(names[entry], chars, start, end)) {
+                return entry;
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Searches for a command whose name is equal to the characters from
+     * {@code start} to {@code end} or, if there is no such command, for the
+     * only command whose name starts with them. An empty name abbreviates
+     * nothing, even if there is only one command
+     *
+     * @return Number of the entry, {@link #NOT_FOUND} or {@link #AMBIGUOUS}
+     */
+    int findAbbreviated(CharSequence chars, int start, int end) {
+        if (start == end) {
+            return NOT_FOUND;
+        }
+        int entry = find(chars, start, end);
+        if (entry != NOT_FOUND) {
+            return entry;
+        }
+        int node = walk(chars, start, end);
+        if (node == NOT_FOUND) {
+            return NOT_FOUND;
+        }
+        return namesTo[node] - namesFrom[node] == 1 ? namesFrom[node] : AMBIGUOUS;
+    }
+
+    /**
+     * @return Sorted names starting with the prefix
+     */
+    List<String> namesStartingWith(CharSequence prefix) {
+        int node = walk(prefix, 0, prefix.length());
+        if (node == NOT_FOUND) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(
+                Arrays.asList(names).subList(namesFrom[node], namesTo[node]));
+    }
+
+    String getName(int entry) {
+        return names[entry];
+    }
+
+    Command getCommand(int entry) {
+        return commands[entry];
+    }
+}
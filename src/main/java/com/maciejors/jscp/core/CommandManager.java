@@ -1,22 +1,87 @@
 package com.maciejors.jscp.core;
 
+import com.maciejors.jscp.annotations.Cacheable;
 import com.maciejors.jscp.annotations.CommandDescription;
 import com.maciejors.jscp.defaultcommands.DefaultExitCommand;
 import com.maciejors.jscp.defaultcommands.DefaultHelpCommand;
+import com.maciejors.jscp.defaultcommands.DefaultStatsCommand;
+import com.maciejors.jscp.metrics.CommandMetrics;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.ServiceLoader;
 
 /**
  * A class used to manage commands. Possible operations include registering
  * commands and searching for them
+ * <br><br>
+ * The command manager is thread-safe. Searching for commands never locks:
+ * registered commands are kept in an immutable snapshot which is replaced
+ * as a whole on every registration. Registrations are serialized with
+ * each other.
  */
 public class CommandManager {
 
     /**
-     * A set of registered commands. Keys are commands' names
+     * An immutable state of the registered commands
      */
-    private final Map<String, Command> registeredCommands = new HashMap<>();
+    private static final class Snapshot {
+
+        /**
+         * A set of registered commands. Keys are commands' names
+         */
+        final Map<String, Command> commands;
+
+        /**
+         * Commands dispatched in place of the registered ones: guards of
+         * the commands registered with a {@link DispatchPolicy} and caches
+         * of the {@link com.maciejors.jscp.annotations.Cacheable} ones.
+         * They are kept from one snapshot to the next, so that their state
+         * survives registrations of other commands
+         */
+        final Map<String, Command> dispatched;
+
+        /**
+         * Incremented every time the set of registered commands changes
+         */
+        final long version;
+
+        /**
+         * Index of the commands, built on first use. Racing threads might
+         * build it more than once, but the index is immutable, so any of
+         * the copies can be used
+         */
+        private CommandIndex index = null;
+
+        Snapshot(Map<String, Command> commands, Map<String, Command> dispatched,
+                 long version) {
+            this.commands = commands;
+            this.dispatched = dispatched;
+            this.version = version;
+        }
+
+        CommandIndex index() {
+            CommandIndex result = index;
+            if (result == null) {
+                result = CommandIndex.of(commands, dispatched);
+                index = result;
+            }
+            return result;
+        }
+    }
+
+    private volatile Snapshot snapshot =
+            new Snapshot(Collections.emptyMap(), Collections.emptyMap(), 0);
+
+    /**
+     * Guards replacing the snapshot
+     */
+    private final Object registrationLock = new Object();
 
     /**
      * Searches for a registered command with the specified name
@@ -26,12 +91,63 @@ public class CommandManager {
      * such command has not been registered
      */
     public Command findCommand(String commandName) {
-        return registeredCommands.getOrDefault(commandName, null);
+        return snapshot.commands.get(commandName);
+    }
+
+    /**
+     * Searches for a registered command whose name is equal to a range of
+     * characters, without extracting it
+     *
+     * @param chars Characters containing the name
+     * @param start Index of the first character of the name
+     * @param end   Index following the last character of the name
+     * @return A {@link Command} with the specified name or {@code null} if
+     * such command has not been registered
+     */
+    public Command findCommand(CharSequence chars, int start, int end) {
+        Objects.checkFromToIndex(start, end, chars.length());
+        CommandIndex index = getCommandIndex();
+        int entry = index.find(chars, start, end);
+        if (entry == CommandIndex.NOT_FOUND) {
+            return null;
+        }
+        return snapshot.commands.get(index.getName(entry));
+    }
+
+    /**
+     * Resolves an abbreviated command name
+     *
+     * @param abbreviation Full name of a command or a prefix of it
+     * @return The name itself if such a command has been registered,
+     * otherwise the name of the only registered command starting with the
+     * abbreviation, or {@code null} if there is no such command or there
+     * are more of them
+     */
+    public String resolveAbbreviation(String abbreviation) {
+        CommandIndex index = getCommandIndex();
+        int entry = index.findAbbreviated(abbreviation, 0, abbreviation.length());
+        return entry < 0 ? null : index.getName(entry);
+    }
+
+    /**
+     * Lists the names of registered commands starting with a given prefix,
+     * e.g. to complete a partially typed command
+     *
+     * @param prefix Beginning of the names, without the command prefix
+     * @return Sorted, immutable list of the matching names
+     */
+    public List<String> getCompletions(String prefix) {
+        return getCommandIndex().namesStartingWith(prefix);
     }
 
     /**
      * Adds the command to the command set. If a command with the specified
      * name has already been registered, it will be overridden.
+     * <br><br>
+     * The command is dispatched according to its
+     * {@link com.maciejors.jscp.annotations.CommandPolicy} annotation, if
+     * present. The same goes for the other registration methods, except for
+     * {@link #registerCommand(String, Command, DispatchPolicy)}.
      *
      * @param commandName Name of the command. It should consist only of
      *                    alphanumeric characters and underscores.
@@ -40,14 +156,352 @@ public class CommandManager {
      * overridden when adding this command to the command set
      */
     public boolean registerCommand(String commandName, Command command) {
-        if (!commandName.matches("[a-zA-z0-9_]+")) {
+        if (!isValidCommandName(commandName)) {
             System.err.println("Warning: command with an invalid name of \"" +
                     commandName + "\" not registered");
             return false;
         }
-        boolean isOverriding = findCommand(commandName) != null;
-        registeredCommands.put(commandName, command);
-        return isOverriding;
+        return put(commandName, command, null, true) != null;
+    }
+
+    /**
+     * Adds the command to the command set, overriding a command with the
+     * same name if it has already been registered. The command is
+     * dispatched according to the given policy, which replaces its
+     * {@link com.maciejors.jscp.annotations.CommandPolicy} annotation
+     *
+     * @param commandName Name of the command. It should consist only of
+     *                    alphanumeric characters and underscores.
+     * @param command     Command to register
+     * @param policy      Limits of the calls of the command
+     * @return A command that has been overridden or {@code null} if there
+     * was no command with the specified name
+     * @throws IllegalArgumentException if the command name is invalid
+     */
+    public Command registerCommand(String commandName, Command command,
+                                   DispatchPolicy policy) {
+        requireValidCommandName(commandName);
+        Objects.requireNonNull(policy, "policy");
+        return put(commandName, command, policy, true);
+    }
+
+    /**
+     * Atomically adds the command to the command set, overriding a command
+     * with the same name if it has already been registered
+     *
+     * @param commandName Name of the command. It should consist only of
+     *                    alphanumeric characters and underscores.
+     * @param command     Command to register
+     * @return A command that has been overridden or {@code null} if there
+     * was no command with the specified name
+     * @throws IllegalArgumentException if the command name is invalid
+     */
+    public Command replaceCommand(String commandName, Command command) {
+        requireValidCommandName(commandName);
+        return put(commandName, command, null, true);
+    }
+
+    /**
+     * Atomically adds the command to the command set, unless a command
+     * with the same name has already been registered
+     *
+     * @param commandName Name of the command. It should consist only of
+     *                    alphanumeric characters and underscores.
+     * @param command     Command to register
+     * @return A command registered under the specified name before or
+     * {@code null} if the command has been registered
+     * @throws IllegalArgumentException if the command name is invalid
+     */
+    public Command registerCommandIfAbsent(String commandName, Command command) {
+        requireValidCommandName(commandName);
+        return put(commandName, command, null, false);
+    }
+
+    /**
+     * Atomically adds many commands to the command set, overriding the
+     * commands with the same names that have already been registered. The
+     * commands are added in a single step, so they become visible all at
+     * once, and registering many commands this way takes much less time
+     * than registering them one by one.
+     * <br><br>
+     * Commands with invalid names and {@code null} commands are skipped and
+     * reported in the result, the other ones are registered anyway.
+     *
+     * @param commands Commands to register, keyed by their names
+     * @return Names of the registered, replaced and rejected commands
+     */
+    public RegistrationResult registerAll(Map<String, ? extends Command> commands) {
+        Map<String, Command> accepted = new LinkedHashMap<>();
+        Map<String, String> rejected = new LinkedHashMap<>();
+        for (Map.Entry<String, ? extends Command> entry : commands.entrySet()) {
+            String commandName = entry.getKey();
+            if (!isValidCommandName(commandName)) {
+                rejected.put(commandName, "invalid command name");
+            } else if (entry.getValue() == null) {
+                rejected.put(commandName, "command is null");
+            } else {
+                accepted.put(commandName, entry.getValue());
+            }
+        }
+
+        List<String> registered = new ArrayList<>();
+        List<String> replaced = new ArrayList<>();
+        if (!accepted.isEmpty()) {
+            synchronized (registrationLock) {
+                Snapshot current = snapshot;
+                Map<String, Command> updated = new HashMap<>(
+                        (int) ((current.commands.size() + accepted.size()) / 0.75f) + 1);
+                updated.putAll(current.commands);
+                Map<String, Command> dispatched = new HashMap<>(current.dispatched);
+                for (Map.Entry<String, Command> entry : accepted.entrySet()) {
+                    if (updated.put(entry.getKey(), entry.getValue()) == null) {
+                        registered.add(entry.getKey());
+                    } else {
+                        replaced.add(entry.getKey());
+                    }
+                    putDispatched(dispatched, entry.getKey(), entry.getValue(), null);
+                }
+                publish(updated, dispatched);
+            }
+        }
+        return new RegistrationResult(registered, replaced, rejected);
+    }
+
+    /**
+     * Registers all the commands of a catalog. The commands are created
+     * when they are called for the first time, while their descriptions
+     * are available right away
+     *
+     * @param catalog A catalog of commands
+     * @return Names of the registered, replaced and rejected commands
+     */
+    public RegistrationResult registerCatalog(CommandCatalog catalog) {
+        Map<String, Command> commands = new LinkedHashMap<>();
+        addCatalog(commands, catalog);
+        return registerAll(commands);
+    }
+
+    /**
+     * Registers the commands of all the {@link CommandCatalog}s found by
+     * {@link ServiceLoader}, i.e. all the commands annotated with
+     * {@link com.maciejors.jscp.annotations.RegisteredCommand} on the class
+     * path or module path. No classes are scanned and no commands are
+     * created until they are called
+     *
+     * @return Names of the registered, replaced and rejected commands
+     */
+    public RegistrationResult registerDiscoveredCommands() {
+        Map<String, Command> commands = new LinkedHashMap<>();
+        for (CommandCatalog catalog : ServiceLoader.load(CommandCatalog.class)) {
+            addCatalog(commands, catalog);
+        }
+        return registerAll(commands);
+    }
+
+    private static void addCatalog(Map<String, Command> commands, CommandCatalog catalog) {
+        for (int i = 0; i < catalog.size(); i++) {
+            commands.put(catalog.getName(i), new LazyCommand(catalog, i));
+        }
+    }
+
+    /**
+     * Atomically removes the command from the command set
+     *
+     * @param commandName Name of the command
+     * @return A removed command or {@code null} if there was no command
+     * with the specified name
+     */
+    public Command unregisterCommand(String commandName) {
+        synchronized (registrationLock) {
+            Snapshot current = snapshot;
+            if (!current.commands.containsKey(commandName)) {
+                return null;
+            }
+            Map<String, Command> commands = new HashMap<>(current.commands);
+            Command previous = commands.remove(commandName);
+            Map<String, Command> dispatched = new HashMap<>(current.dispatched);
+            dispatched.remove(commandName);
+            publish(commands, dispatched);
+            return previous;
+        }
+    }
+
+    /**
+     * Returns all registered commands. The returned map is an immutable
+     * snapshot - it is not affected by later registrations
+     *
+     * @return Registered commands, keyed by their names
+     */
+    public Map<String, Command> getRegisteredCommands() {
+        return snapshot.commands;
+    }
+
+    /**
+     * @param commandName Name of a command
+     * @return Policy according to which the command is dispatched or
+     * {@code null} if there is no such command
+     */
+    public DispatchPolicy getDispatchPolicy(String commandName) {
+        Snapshot current = snapshot;
+        Command command = current.dispatched.get(commandName);
+        if (command instanceof CachedCommand) {
+            command = ((CachedCommand) command).getCommand();
+        }
+        if (command instanceof GuardedCommand) {
+            return ((GuardedCommand) command).getPolicy();
+        }
+        return current.commands.containsKey(commandName) ? DispatchPolicy.NONE : null;
+    }
+
+    /**
+     * Discards the values memoized for a command annotated with
+     * {@link Cacheable}, e.g. after the data it reads has changed
+     *
+     * @param commandName Name of the command
+     * @return {@code false} if there is no such cacheable command
+     */
+    public boolean invalidateCache(String commandName) {
+        Command command = snapshot.dispatched.get(commandName);
+        if (!(command instanceof CachedCommand)) {
+            return false;
+        }
+        ((CachedCommand) command).invalidate();
+        return true;
+    }
+
+    /**
+     * Discards the values memoized for all the cacheable commands
+     */
+    public void invalidateCaches() {
+        for (Command command : snapshot.dispatched.values()) {
+            if (command instanceof CachedCommand) {
+                ((CachedCommand) command).invalidate();
+            }
+        }
+    }
+
+    /**
+     * @param commandName Name of a command annotated with {@link Cacheable}
+     * @return Statistics of the values memoized for the command or
+     * {@code null} if there is no such cacheable command
+     */
+    public CacheStats getCacheStats(String commandName) {
+        Command command = snapshot.dispatched.get(commandName);
+        return command instanceof CachedCommand
+                ? ((CachedCommand) command).getStats()
+                : null;
+    }
+
+    /**
+     * @param policy Policy of the command or {@code null} to use its
+     *               annotation
+     */
+    private Command put(String commandName, Command command, DispatchPolicy policy,
+                        boolean override) {
+        Objects.requireNonNull(command, "command");
+        synchronized (registrationLock) {
+            Snapshot current = snapshot;
+            Command previous = current.commands.get(commandName);
+            if (previous != null && !override) {
+                return previous;
+            }
+            Map<String, Command> commands = new HashMap<>(current.commands);
+            commands.put(commandName, command);
+            Map<String, Command> dispatched = new HashMap<>(current.dispatched);
+            putDispatched(dispatched, commandName, command, policy);
+            publish(commands, dispatched);
+            return previous;
+        }
+    }
+
+    /**
+     * Wraps a newly registered command in a guard enforcing its policy and
+     * in a cache if it is cacheable. Commands which need neither are
+     * dispatched directly
+     *
+     * @param policy Policy of the command or {@code null} to use its
+     *               annotation
+     */
+    private static void putDispatched(Map<String, Command> dispatched, String commandName,
+                                      Command command, DispatchPolicy policy) {
+        if (policy == null) {
+            policy = DispatchPolicy.of(command);
+        }
+        Command wrapped = command;
+        if (!policy.isUnlimited()) {
+            wrapped = new GuardedCommand(wrapped, policy);
+        }
+        // memoized values are returned without taking permits
+        Cacheable cacheable = command.getClass().getAnnotation(Cacheable.class);
+        if (cacheable != null) {
+            wrapped = new CachedCommand(wrapped, cacheable.ttlMillis(), cacheable.maxEntries());
+        } else if (command instanceof LazyCommand && ((LazyCommand) command).isCacheable()) {
+            LazyCommand lazy = (LazyCommand) command;
+            wrapped = new CachedCommand(wrapped, lazy.getCacheTtlMillis(),
+                    lazy.getCacheMaxEntries());
+        }
+        if (wrapped == command) {
+            dispatched.remove(commandName);
+        } else {
+            dispatched.put(commandName, wrapped);
+        }
+    }
+
+    /**
+     * Replaces the snapshot. Has to be called while holding
+     * {@link #registrationLock}
+     */
+    private void publish(Map<String, Command> commands, Map<String, Command> dispatched) {
+        snapshot = new Snapshot(Collections.unmodifiableMap(commands),
+                dispatched.isEmpty()
+                        ? Collections.emptyMap()
+                        : Collections.unmodifiableMap(dispatched),
+                snapshot.version + 1);
+    }
+
+    /**
+     * Checks if a name is not empty and consists only of ASCII letters,
+     * digits and underscores
+     */
+    static boolean isValidCommandName(String commandName) {
+        if (commandName == null || commandName.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < commandName.length(); i++) {
+            char c = commandName.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z')
+                    || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9')
+                    || c == '_';
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void requireValidCommandName(String commandName) {
+        if (!isValidCommandName(commandName)) {
+            throw new IllegalArgumentException(
+                    "Invalid command name: \"" + commandName + "\"");
+        }
+    }
+
+    /**
+     * @return A number that changes every time the set of registered
+     * commands changes. Used to invalidate anything derived from the
+     * registered commands
+     */
+    long getRegistrationVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * @return Index of the currently registered commands. It is built once
+     * per change of the registered commands, when it is first needed
+     */
+    CommandIndex getCommandIndex() {
+        return snapshot.index();
     }
 
     /**
@@ -70,4 +524,15 @@ public class CommandManager {
         registerCommand("exit",
                 new DefaultExitCommand());
     }
+
+    /**
+     * Registers the default stats command. It returns a table with
+     * statistics of the executed commands, collected by the given metrics
+     *
+     * @param metrics Metrics added as a listener to the command processor
+     */
+    public void registerDefaultStatsCommand(CommandMetrics metrics) {
+        registerCommand("stats",
+                new DefaultStatsCommand(metrics));
+    }
 }
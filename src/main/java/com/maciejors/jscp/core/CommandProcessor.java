@@ -2,17 +2,40 @@ package com.maciejors.jscp.core;
 
 import com.maciejors.jscp.core.statements.CommandCall;
 import com.maciejors.jscp.core.statements.InvalidStatement;
+import com.maciejors.jscp.core.statements.MacroDefinition;
+import com.maciejors.jscp.core.statements.Pipeline;
 import com.maciejors.jscp.core.statements.Statement;
+import com.maciejors.jscp.defaultcommands.DefaultProfileCommand;
+import com.maciejors.jscp.metrics.CommandProfiler;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.*;
+import java.io.Reader;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
 
 /**
  * Contains methods to process lines and execute them
  * <br><br>
  * Command call syntax (given the prefix is "!"):<br>
  * !commandName arg1 arg2 "arg with spaces" ...
+ * <br><br>
+ * Pipeline syntax, passing the value returned by each command to the next
+ * one as its last argument:<br>
+ * !first arg1 | !second arg2 | !third
  */
 public class CommandProcessor {
 
@@ -23,6 +46,78 @@ public class CommandProcessor {
      */
     private final String commandPrefix;
 
+    /**
+     * Optional cache of parsed statements, {@code null} if disabled
+     */
+    private volatile StatementCache statementCache = null;
+
+    /**
+     * Executor running lines passed to {@code executeAll}
+     */
+    private volatile Executor batchExecutor = ForkJoinPool.commonPool();
+
+    /**
+     * Maximum number of lines being executed by {@code executeAll} at once
+     */
+    private volatile int maxLinesInFlight = 1024;
+
+    /**
+     * Whether commands can be called by unique prefixes of their names
+     */
+    private volatile boolean abbreviationsEnabled = false;
+
+    /**
+     * Whether pipelines stop at the first failing command
+     */
+    private volatile boolean pipelineShortCircuit = false;
+
+    private volatile int maxLineLength = 1024 * 1024;
+
+    private volatile int maxArgumentLength = 1024 * 1024;
+
+    /**
+     * Whether lines are parsed into statements reused by each thread
+     */
+    private volatile boolean lowAllocationMode = false;
+
+    /**
+     * Statement of each thread executing lines in the low-allocation mode
+     */
+    private final ThreadLocal<ReusableCall> reusableCalls =
+            ThreadLocal.withInitial(ReusableCall::new);
+
+    /**
+     * First token of a macro definition
+     */
+    private static final String MACRO_KEYWORD = "def";
+
+    // errors which do not depend on the line are shared by all the lines
+    private static final Statement INVALID_STATEMENT =
+            new InvalidStatement("Parsing error: invalid statement");
+    private static final Statement COMMAND_NOT_FOUND =
+            new InvalidStatement("command not found");
+    private static final Statement AMBIGUOUS_COMMAND =
+            new InvalidStatement("ambiguous command abbreviation");
+
+    private static final ExecutionListener[] NO_LISTENERS = new ExecutionListener[0];
+
+    /**
+     * Listeners notified about executed commands. Replaced as a whole, so
+     * that the executing threads never lock
+     */
+    private volatile ExecutionListener[] executionListeners = NO_LISTENERS;
+
+    /**
+     * Listener receiving the resources used by the executed commands,
+     * {@code null} unless profiling
+     */
+    private volatile ProfilingListener profilingListener = null;
+
+    /**
+     * Journal recording the executed statements, {@code null} if disabled
+     */
+    private volatile ExecutionJournal journal = null;
+
     /**
      * @param commandManager A command manager containing a set of
      *                       commands registered by the user
@@ -43,138 +138,356 @@ public class CommandProcessor {
      * @return A {@link Statement} object that can be later executed
      */
     private Statement parseStatement(String line) {
+        if (line.length() > maxLineLength) {
+            return new InvalidStatement("line too long (max " + maxLineLength + " characters)");
+        }
+
         // command name and arguments are separated by spaces
-        StringTokenizer tokenizer = new StringTokenizer(line);
+        LineLexer lexer = LineLexer.lex(line);
 
-        // First token determines the type of statement.
-        // For now the only statement type is the command call, so the program
-        // just makes sure that the call starts with the command prefix
-        String firstToken;
-        try {
-            firstToken = tokenizer.nextToken(" ");
-        } catch (NoSuchElementException err) {
-            // when the input is blank
+        // when the input is blank
+        if (lexer.isBlank()) {
             return null;
         }
 
-        if (firstToken.startsWith(commandPrefix)) {
-            Command command = commandManager.findCommand(firstToken.substring(1));
+        // First token determines the type of statement: either a macro
+        // definition, or a command call (possibly piped into other calls),
+        // which has to start with the command prefix
+        if (lexer.getCommandEnd() - lexer.getCommandStart() == MACRO_KEYWORD.length()
+                && line.startsWith(MACRO_KEYWORD, lexer.getCommandStart())) {
+            return parseMacroDefinition(lexer, line);
+        }
+        if (!lexer.commandTokenStartsWith(commandPrefix)) {
+            return INVALID_STATEMENT;
+        }
+
+        // entries are positions in a snapshot of the index, so the whole
+        // line is resolved against the same one
+        CommandIndex index = commandManager.getCommandIndex();
 
-            // command not found
-            if (command == null) {
-                return new InvalidStatement("command not found");
-            }
+        // the name is resolved straight from the line
+        int entry = findCommand(index, line, lexer.getCommandStart(), lexer.getCommandEnd());
 
-            String[] args = parseCommandArguments(tokenizer);
+        // command not found
+        if (entry == CommandIndex.NOT_FOUND) {
+            return COMMAND_NOT_FOUND;
+        }
+        if (entry == CommandIndex.AMBIGUOUS) {
+            return AMBIGUOUS_COMMAND;
+        }
 
-            // arguments failed to parse
-            if (args == null) {
-                return new InvalidStatement("error parsing arguments");
-            }
+        // arguments failed to parse
+        if (lexer.hasError()) {
+            return new InvalidStatement("error parsing arguments: " +
+                    lexer.getErrorMessage());
+        }
+
+        int limit = maxArgumentLength;
+        if (hasArgumentLongerThan(lexer, limit)) {
+            return new InvalidStatement("argument too long (max " + limit + " characters)");
+        }
+
+        int pipe = findPipe(lexer, line, 0);
+        if (pipe < 0) {
+            return new CommandCall(index.getName(entry), index.getCommand(entry),
+                    lexer.getArgumentView());
+        }
+        return parsePipeline(index, lexer, line, entry, pipe);
+    }
 
-            return new CommandCall(command, args);
+    private static boolean hasArgumentLongerThan(LineLexer lexer, int limit) {
+        for (int i = 0; i < lexer.getArgumentCount(); i++) {
+            if (lexer.getArgumentEnd(i) - lexer.getArgumentStart(i) > limit) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        return new InvalidStatement("Parsing error: invalid statement");
+    /**
+     * Parses a line into the reusable call of the current thread, if the
+     * line is a call of a single command. Other lines, including invalid
+     * ones, are parsed as usual
+     *
+     * @param line A line of input
+     * @return The reusable call, another {@link Statement} or {@code null}
+     * if the line is blank
+     */
+    private Statement parseReusing(CharSequence line, ReusableCall reusable) {
+        if (line.length() > maxLineLength) {
+            return parseStatement(line.toString());
+        }
+        LineLexer lexer = reusable.getLexer();
+        lexer.reset(line);
+        if (lexer.isBlank()) {
+            return null;
+        }
+        if (!lexer.commandTokenStartsWith(commandPrefix)) {
+            return parseStatement(line.toString());
+        }
+        CommandIndex index = commandManager.getCommandIndex();
+        int entry = findCommand(index, line, lexer.getCommandStart(), lexer.getCommandEnd());
+        if (entry == CommandIndex.NOT_FOUND) {
+            return COMMAND_NOT_FOUND;
+        }
+        if (entry == CommandIndex.AMBIGUOUS) {
+            return AMBIGUOUS_COMMAND;
+        }
+        if (lexer.hasError()
+                || hasArgumentLongerThan(lexer, maxArgumentLength)
+                || findPipe(lexer, line, 0) >= 0) {
+            return parseStatement(line.toString());
+        }
+        reusable.set(index.getName(entry), index.getCommand(entry));
+        return reusable;
     }
 
     /**
-     * Parses an array of arguments as Strings from user's input
+     * Parses the stages of a pipeline, following the first command
      *
-     * @param tokenizer A tokenizer that initiated statement parsing
-     * @return An array of command parameters or {@code null} if parsing failed
+     * @param index      Index the first command has been resolved with
+     * @param firstEntry Index entry of the first command
+     * @param firstPipe  Index of the argument which is the first pipe
+     */
+    private Statement parsePipeline(CommandIndex index, LineLexer lexer, String line,
+                                    int firstEntry, int firstPipe) {
+        List<CommandCall> stages = new ArrayList<>();
+        stages.add(new CommandCall(index.getName(firstEntry), index.getCommand(firstEntry),
+                lexer.getArgumentView(0, firstPipe)));
+
+        int pipe = firstPipe;
+        while (pipe >= 0) {
+            // the command token follows the pipe
+            int commandArgument = pipe + 1;
+            int entry = findCommand(index, line, lexer.getArgumentStart(commandArgument),
+                    lexer.getArgumentEnd(commandArgument));
+            if (entry == CommandIndex.NOT_FOUND) {
+                return new InvalidStatement("command not found in stage " +
+                        (stages.size() + 1));
+            }
+            if (entry == CommandIndex.AMBIGUOUS) {
+                return new InvalidStatement("ambiguous command abbreviation in stage " +
+                        (stages.size() + 1));
+            }
+
+            int nextPipe = findPipe(lexer, line, commandArgument + 1);
+            int end = nextPipe < 0 ? lexer.getArgumentCount() : nextPipe;
+            stages.add(new CommandCall(index.getName(entry), index.getCommand(entry),
+                    lexer.getArgumentView(commandArgument + 1, end)));
+            pipe = nextPipe;
+        }
+        return new Pipeline(stages.toArray(new CommandCall[0]), pipelineShortCircuit);
+    }
+
+    /**
+     * Parses and compiles a macro definition:
+     * {@code def NAME STEP [; STEP]...}, where a step is a command call
+     * optionally preceded by a condition: {@code ?ok}, {@code ?error} or
+     * {@code ?= VALUE}. Unquoted {@code $1}, {@code $2}... arguments are
+     * the parameters
      */
-    private String[] parseCommandArguments(StringTokenizer tokenizer) {
-        Deque<String> argsDeque = new LinkedList<>();
+    private Statement parseMacroDefinition(LineLexer lexer, String line) {
+        if (lexer.hasError()) {
+            return new InvalidStatement("error parsing arguments: " +
+                    lexer.getErrorMessage());
+        }
+        String[] tokens = lexer.getArguments();
+        if (tokens.length < 2) {
+            return new InvalidStatement("usage: def <name> <step> [; <step>]...");
+        }
+        String macroName = tokens[0];
+        if (!CommandManager.isValidCommandName(macroName)) {
+            return new InvalidStatement("invalid macro name");
+        }
+
+        CommandIndex index = commandManager.getCommandIndex();
+        List<Macro.Step> steps = new ArrayList<>();
+        List<Command> commands = new ArrayList<>();
+        int arity = 0;
+        int i = 1;
+        while (i <= tokens.length) {
+            int stepNumber = steps.size() + 1;
+            int end = i;
+            while (end < tokens.length && !(lexer.isUnquoted(end) && tokens[end].equals(";"))) {
+                end++;
+            }
 
-        while (tokenizer.hasMoreTokens()) {
-            String token = tokenizer.nextToken(" ");
-            String currArg = token;
+            int condition = Macro.ALWAYS;
+            String expected = null;
+            int expectedParameter = -1;
+            if (i < end && lexer.isUnquoted(i)) {
+                if (tokens[i].equals("?ok")) {
+                    condition = Macro.IF_OK;
+                    i++;
+                } else if (tokens[i].equals("?error")) {
+                    condition = Macro.IF_ERROR;
+                    i++;
+                } else if (tokens[i].equals("?=") && i + 1 < end) {
+                    condition = Macro.IF_EQUALS;
+                    expectedParameter = parameterOf(lexer, tokens, i + 1);
+                    expected = expectedParameter < 0 ? tokens[i + 1] : null;
+                    arity = Math.max(arity, expectedParameter + 1);
+                    i += 2;
+                }
+            }
+            if (i == end) {
+                return new InvalidStatement("empty step " + stepNumber);
+            }
 
-            // double quotes begin
-            if (currArg.startsWith("\"")) {
-                // removing " from the beginning
-                currArg = currArg.substring(1);
+            int entry = lexer.isUnquoted(i) && tokens[i].startsWith(commandPrefix)
+                    ? findCommand(index, line, lexer.getArgumentStart(i), lexer.getArgumentEnd(i))
+                    : CommandIndex.NOT_FOUND;
+            if (entry == CommandIndex.NOT_FOUND) {
+                return new InvalidStatement("command not found in step " + stepNumber);
+            }
+            if (entry == CommandIndex.AMBIGUOUS) {
+                return new InvalidStatement("ambiguous command abbreviation in step "
+                        + stepNumber);
+            }
+            String commandName = index.getName(entry);
+            if (commandName.equals(macroName)) {
+                return new InvalidStatement("macro cannot call itself");
+            }
 
-                // the following condition will be true if the token
-                // looks like this: "quotedArgument"
-                if (currArg.length() != 1 && endsWithDoubleQuote(currArg)) {
-                    // removing " from the end
-                    currArg = currArg.substring(0, currArg.length() - 1);
+            String[] args = Arrays.copyOfRange(tokens, i + 1, end);
+            int[] parameters = null;
+            for (int j = 0; j < args.length; j++) {
+                int parameter = parameterOf(lexer, tokens, i + 1 + j);
+                if (parameter < 0) {
+                    continue;
                 }
-                // otherwise, program will look for the closing quote
-                // somewhere further after the token
-                else {
-                    // tokens will be concatenated until an unescaped
-                    // double quote is found
-                    StringBuilder currArgBuilder = new StringBuilder(currArg);
-
-                    // looking for the closing quote
-                    while (true) {
-                        // looking for the next double quote
-                        try {
-                            token = tokenizer.nextToken("\"");
-                        } catch (NoSuchElementException err) {
-                            // unmatched double quote produces error
-                            return null;
-                        }
-                        currArgBuilder.append(token);
-
-                        // when the quote is not escaped it is treated as a
-                        // closing quote
-                        if (!token.endsWith("\\")) {
-                            currArg = currArgBuilder.toString();
-                            // "skipping" the closing double quote (it
-                            // follows the token in the input string)
-                            tokenizer.nextToken(" ");
-                            break;
-                        } else {
-                            // adding an escaped double quote
-                            currArgBuilder.append("\"");
-                        }
-                    }
+                if (parameters == null) {
+                    parameters = new int[args.length];
+                    Arrays.fill(parameters, -1);
                 }
+                parameters[j] = parameter;
+                args[j] = null;
+                arity = Math.max(arity, parameter + 1);
             }
+            steps.add(new Macro.Step(condition, expected, expectedParameter,
+                    commandName, args, parameters));
+            commands.add(index.getCommand(entry));
+            i = end + 1;
+        }
 
-            // Here the program looks for unescaped quotes in the middle
-            // of the passed argument. Theoretically they could be left,
-            // but for consistency all double quotes have to be escaped.
+        Macro macro = new Macro(macroName, line.trim(), steps.toArray(new Macro.Step[0]),
+                commands.toArray(new Command[0]), arity, commandManager);
+        return new MacroDefinition(macroName, macro, commandManager);
+    }
 
-            // check if an unescaped quote appears at the end of the token
-            if (endsWithDoubleQuote(currArg)) {
-                return null;
+    /**
+     * @return 0-based index of the parameter which is the argument, or
+     * {@code -1} if it is not an unquoted {@code $N} argument
+     */
+    private static int parameterOf(LineLexer lexer, String[] tokens, int argument) {
+        String token = tokens[argument];
+        if (!lexer.isUnquoted(argument) || token.length() < 2 || token.charAt(0) != '$'
+                || token.charAt(1) == '0' || token.length() > 4) {
+            return -1;
+        }
+        for (int i = 1; i < token.length(); i++) {
+            if (token.charAt(i) < '0' || token.charAt(i) > '9') {
+                return -1;
             }
+        }
+        return Integer.parseInt(token.substring(1)) - 1;
+    }
 
-            // look for unescaped quotes in the middle of the token
-            for (int i = 1; i < currArg.length(); i++) {
-                if (currArg.charAt(i) == '"') {
-                    if (currArg.charAt(i - 1) != '\\') {
-                        return null;
-                    }
-                }
+    /**
+     * Resolves a command token (including the prefix) into an entry of the
+     * command index
+     *
+     * @param index Snapshot of the index, which the entry is only valid in
+     * @return Index entry, {@link CommandIndex#NOT_FOUND} or
+     * {@link CommandIndex#AMBIGUOUS}
+     */
+    int findCommand(CommandIndex index, CharSequence line, int tokenStart, int tokenEnd) {
+        int nameStart = tokenStart + commandPrefix.length();
+        return abbreviationsEnabled
+                ? index.findAbbreviated(line, nameStart, tokenEnd)
+                : index.find(line, nameStart, tokenEnd);
+    }
+
+    /**
+     * Searches for a pipe, i.e. an unquoted {@code |} argument followed by
+     * an unquoted argument starting with the command prefix
+     *
+     * @param from Index of the argument to start searching from
+     * @return Index of the argument which is a pipe or {@code -1}
+     */
+    int findPipe(LineLexer lexer, CharSequence line, int from) {
+        for (int i = from; i + 1 < lexer.getArgumentCount(); i++) {
+            int start = lexer.getArgumentStart(i);
+            if (lexer.getArgumentEnd(i) - start == 1
+                    && line.charAt(start) == '|'
+                    && lexer.isUnquoted(i)
+                    && lexer.isUnquoted(i + 1)
+                    && LineLexer.startsWith(line, commandPrefix, lexer.getArgumentStart(i + 1))) {
+                return i;
             }
+        }
+        return -1;
+    }
 
-            // remove backslashes from escaped double quotes
-            currArg = currArg.replace("\\\"", "\"");
-            argsDeque.add(currArg);
+    /**
+     * Parses a statement from the input, using the statement cache if it
+     * is enabled
+     *
+     * @param line A line of input
+     * @return A {@link Statement} object that can be later executed or
+     * {@code null} if the line is blank
+     */
+    Statement parse(String line) {
+        StatementCache cache = statementCache;
+        if (cache == null) {
+            return parseStatement(line);
         }
 
-        int numberOfArguments = argsDeque.size();
-        String[] args = new String[numberOfArguments];
-        for (int i = 0; i < numberOfArguments; i++) {
-            args[i] = argsDeque.removeFirst();
+        long registrationVersion = commandManager.getRegistrationVersion();
+        long parseSettings = getParseSettings();
+        Statement statement = cache.get(line, parseSettings, registrationVersion);
+        if (statement == null) {
+            statement = parseStatement(line);
+            // blank lines are not worth caching
+            if (statement != null) {
+                cache.put(line, parseSettings, statement, registrationVersion);
+            }
         }
-        return args;
+        return statement;
+    }
+
+    /**
+     * @return The settings which parsed statements depend on, packed into
+     * a single value. Both limits are positive, so they take 31 bits each
+     */
+    private long getParseSettings() {
+        return (long) maxLineLength << 33
+                | (long) maxArgumentLength << 2
+                | (abbreviationsEnabled ? 2 : 0)
+                | (pipelineShortCircuit ? 1 : 0);
     }
 
     /**
-     * Checks if a string ends with an unescaped double quote.
+     * Parses a line into the reusable call if there is one, otherwise into
+     * new objects, using the statement cache if it is enabled
      *
-     * @param s A {@link String} object to be checked
+     * @param reusable An acquired reusable call or {@code null}
+     */
+    private Statement parse(CharSequence line, ReusableCall reusable) {
+        return reusable != null ? parseReusing(line, reusable) : parse(line.toString());
+    }
+
+    /**
+     * @return The reusable call of the current thread, acquired, or
+     * {@code null} if the line has to be parsed into new objects
      */
-    private boolean endsWithDoubleQuote(String s) {
-        return s.endsWith("\"") &&  // does it end with "?
-                !s.endsWith("\\\"");  // is " not escaped?
+    private ReusableCall acquireReusableCall() {
+        // cached and journaled statements outlive the line
+        if (!lowAllocationMode || statementCache != null || journal != null) {
+            return null;
+        }
+        ReusableCall reusable = reusableCalls.get();
+        return reusable.acquire() ? reusable : null;
     }
 
     /**
@@ -185,33 +498,801 @@ public class CommandProcessor {
      * if no value has been returned
      */
     public String executeLine(String line) {
-        Statement statement = parseStatement(line);
+        ReusableCall reusable = acquireReusableCall();
+        try {
+            return executeLine(line, reusable);
+        } finally {
+            if (reusable != null) {
+                reusable.release();
+            }
+        }
+    }
+
+    private String executeLine(String line, ReusableCall reusable) {
+        if (profilingListener != null || executionListeners.length > 0) {
+            ParsedStatement parsed = parseMeasured(line, reusable);
+            return parsed == null ? "" : execute(parsed);
+        }
+
+        Statement statement = parse(line, reusable);
         if (statement == null) {
             return "";
         }
-        return statement.execute();
+        return execute(statement);
+    }
+
+    /**
+     * A parsed statement together with the resources used to parse it and
+     * the listeners to notify once it is executed. It lets the paths which
+     * execute a statement later or on another thread than the one which
+     * has parsed it report the same measurements as {@code executeLine}
+     */
+    static final class ParsedStatement {
+        final Statement statement;
+        final ProfilingListener profiler;
+        final ExecutionListener[] listeners;
+        final long parseNanos;
+        final long parseCpuNanos;
+        final long parseAllocatedBytes;
+
+        ParsedStatement(Statement statement, ProfilingListener profiler,
+                        ExecutionListener[] listeners, long parseNanos,
+                        long parseCpuNanos, long parseAllocatedBytes) {
+            this.statement = statement;
+            this.profiler = profiler;
+            this.listeners = listeners;
+            this.parseNanos = parseNanos;
+            this.parseCpuNanos = parseCpuNanos;
+            this.parseAllocatedBytes = parseAllocatedBytes;
+        }
+
+        /**
+         * @return Whether anybody is notified about the execution
+         */
+        boolean isMeasured() {
+            return statement.getCommandName() != null
+                    && (profiler != null || listeners.length > 0);
+        }
+    }
+
+    /**
+     * Parses a line, measuring the parse phase for the listeners. The CPU
+     * time and the allocated bytes are measured only while profiling
+     *
+     * @return The parsed statement or {@code null} if the line is blank
+     */
+    ParsedStatement parseMeasured(CharSequence line, ReusableCall reusable) {
+        ProfilingListener profiler = profilingListener;
+        ExecutionListener[] listeners = executionListeners;
+        long start = System.nanoTime();
+        long startCpu = profiler != null ? ThreadUsage.cpuNanos() : 0;
+        long startAllocated = profiler != null ? ThreadUsage.allocatedBytes() : 0;
+        Statement statement = parse(line, reusable);
+        if (statement == null) {
+            return null;
+        }
+        return measured(statement, profiler, listeners, start, startCpu, startAllocated);
+    }
+
+    /**
+     * Finishes measuring the parse phase started by the caller
+     */
+    private static ParsedStatement measured(Statement statement, ProfilingListener profiler,
+                                            ExecutionListener[] listeners, long start,
+                                            long startCpu, long startAllocated) {
+        long end = System.nanoTime();
+        long endCpu = profiler != null ? ThreadUsage.cpuNanos() : 0;
+        long endAllocated = profiler != null ? ThreadUsage.allocatedBytes() : 0;
+        return new ParsedStatement(statement, profiler, listeners, end - start,
+                ThreadUsage.delta(startCpu, endCpu),
+                ThreadUsage.delta(startAllocated, endAllocated));
+    }
+
+    /**
+     * Executes a parsed statement, measuring the execution phase and
+     * notifying the listeners taken when it was parsed
+     *
+     * @return A value returned by the statement
+     */
+    String execute(ParsedStatement parsed) {
+        try {
+            return executeMeasured(parsed, null);
+        } catch (IOException err) {
+            // nothing is written without a sink
+            throw new IllegalStateException(err);
+        }
+    }
+
+    /**
+     * @param out A sink for the output or {@code null} to return it
+     * @return The output if there is no sink
+     */
+    private String executeMeasured(ParsedStatement parsed, Appendable out) throws IOException {
+        Statement statement = parsed.statement;
+        if (!parsed.isMeasured()) {
+            if (out == null) {
+                return execute(statement);
+            }
+            executeTo(statement, out);
+            return null;
+        }
+
+        boolean profiling = parsed.profiler != null;
+        long start = System.nanoTime();
+        long startCpu = profiling ? ThreadUsage.cpuNanos() : 0;
+        long startAllocated = profiling ? ThreadUsage.allocatedBytes() : 0;
+        boolean failed = true;
+        try {
+            String output = null;
+            if (out == null) {
+                output = execute(statement);
+            } else {
+                executeTo(statement, out);
+            }
+            failed = false;
+            return output;
+        } finally {
+            long end = System.nanoTime();
+            long endCpu = profiling ? ThreadUsage.cpuNanos() : 0;
+            long endAllocated = profiling ? ThreadUsage.allocatedBytes() : 0;
+            notifyListeners(parsed, end - start, ThreadUsage.delta(startCpu, endCpu),
+                    ThreadUsage.delta(startAllocated, endAllocated), failed);
+        }
+    }
+
+    /**
+     * Executes a parsed statement asynchronously, notifying the listeners
+     * once it completes. The wall time lasts until the completion, while
+     * the CPU time and the allocated bytes are those of the calling thread
+     * until the command returns its stage
+     */
+    private CompletionStage<String> executeAsync(ParsedStatement parsed) {
+        Statement statement = parsed.statement;
+        if (!parsed.isMeasured()) {
+            return executeAsync(statement);
+        }
+
+        boolean profiling = parsed.profiler != null;
+        long start = System.nanoTime();
+        long startCpu = profiling ? ThreadUsage.cpuNanos() : 0;
+        long startAllocated = profiling ? ThreadUsage.allocatedBytes() : 0;
+        CompletionStage<String> output;
+        try {
+            output = executeAsync(statement);
+        } catch (RuntimeException | Error err) {
+            notifyListeners(parsed, System.nanoTime() - start,
+                    ThreadUsage.delta(startCpu, profiling ? ThreadUsage.cpuNanos() : 0),
+                    ThreadUsage.delta(startAllocated, profiling ? ThreadUsage.allocatedBytes() : 0),
+                    true);
+            throw err;
+        }
+        long cpuNanos = ThreadUsage.delta(startCpu, profiling ? ThreadUsage.cpuNanos() : 0);
+        long allocatedBytes = ThreadUsage.delta(startAllocated,
+                profiling ? ThreadUsage.allocatedBytes() : 0);
+        return afterCompletion(output, (value, err) -> notifyListeners(parsed,
+                System.nanoTime() - start, cpuNanos, allocatedBytes, err != null));
+    }
+
+    /**
+     * Runs an action once the stage of a command completes. The returned
+     * stage completes after the action, and cancelling it cancels the
+     * command's own stage first, so e.g. {@link AsyncLoop} can still cancel
+     * a command or time it out
+     */
+    private static CompletionStage<String> afterCompletion(
+            CompletionStage<String> output, BiConsumer<String, Throwable> action) {
+        CompletableFuture<String> command = output.toCompletableFuture();
+        CompletableFuture<String> result = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // completes this stage too, through the action
+                command.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning) || isCancelled();
+            }
+        };
+        command.whenComplete((value, err) -> {
+            try {
+                action.accept(value, err);
+            } catch (RuntimeException | Error actionErr) {
+                result.completeExceptionally(actionErr);
+                return;
+            }
+            if (err != null) {
+                result.completeExceptionally(err);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    private static void notifyListeners(ParsedStatement parsed, long executionNanos,
+                                        long executionCpuNanos, long executionAllocatedBytes,
+                                        boolean failed) {
+        String commandName = parsed.statement.getCommandName();
+        if (parsed.profiler != null) {
+            parsed.profiler.commandProfiled(commandName,
+                    parsed.parseNanos, parsed.parseCpuNanos, parsed.parseAllocatedBytes,
+                    executionNanos, executionCpuNanos, executionAllocatedBytes, failed);
+        }
+        for (ExecutionListener listener : parsed.listeners) {
+            listener.commandExecuted(commandName, parsed.parseNanos, executionNanos, failed);
+        }
+    }
+
+    /**
+     * Executes a parsed statement, recording it in the journal if there is
+     * one
+     *
+     * @return A value returned by the statement
+     */
+    String execute(Statement statement) {
+        ExecutionJournal journal = this.journal;
+        if (journal == null) {
+            return statement.execute();
+        }
+        long timestamp = System.currentTimeMillis();
+        String output;
+        try {
+            output = statement.execute();
+        } catch (RuntimeException | Error err) {
+            journal.append(statement, timestamp, JournalStatus.FAILED);
+            throw err;
+        }
+        journal.append(statement, timestamp, JournalStatus.ofOutput(output));
+        return output;
+    }
+
+    /**
+     * Executes a parsed statement writing to a sink, recording it in the
+     * journal if there is one
+     */
+    private void executeTo(Statement statement, Appendable out) throws IOException {
+        ExecutionJournal journal = this.journal;
+        if (journal == null) {
+            statement.executeTo(out);
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
+        ErrorDetectingSink sink = new ErrorDetectingSink(out);
+        try {
+            statement.executeTo(sink);
+        } catch (IOException | RuntimeException | Error err) {
+            journal.append(statement, timestamp, JournalStatus.FAILED);
+            throw err;
+        }
+        journal.append(statement, timestamp, sink.isError()
+                ? JournalStatus.ERROR
+                : JournalStatus.OK);
+    }
+
+    /**
+     * Executes a parsed statement asynchronously, recording it in the
+     * journal once it completes if there is a journal
+     */
+    private CompletionStage<String> executeAsync(Statement statement) {
+        ExecutionJournal journal = this.journal;
+        if (journal == null) {
+            return statement.executeAsync();
+        }
+        long timestamp = System.currentTimeMillis();
+        CompletionStage<String> output;
+        try {
+            output = statement.executeAsync();
+        } catch (RuntimeException | Error err) {
+            journal.append(statement, timestamp, JournalStatus.FAILED);
+            throw err;
+        }
+        // a failure to journal fails the returned stage
+        return afterCompletion(output, (value, err) -> journal.append(statement, timestamp,
+                err != null ? JournalStatus.FAILED : JournalStatus.ofOutput(value)));
+    }
+
+    /**
+     * Passes the output on, telling whether it is an error value
+     */
+    private static final class ErrorDetectingSink implements Appendable {
+        private static final String ERROR_PREFIX = "Error: ";
+
+        private final Appendable out;
+
+        /**
+         * Number of characters of the prefix matched so far, {@code -1} on
+         * a mismatch
+         */
+        private int matched = 0;
+
+        ErrorDetectingSink(Appendable out) {
+            this.out = out;
+        }
+
+        boolean isError() {
+            return matched == ERROR_PREFIX.length();
+        }
+
+        private void check(char c) {
+            if (matched >= 0 && matched < ERROR_PREFIX.length()) {
+                matched = c == ERROR_PREFIX.charAt(matched) ? matched + 1 : -1;
+            }
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            CharSequence chars = csq == null ? "null" : csq;
+            return append(chars, 0, chars.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            CharSequence chars = csq == null ? "null" : csq;
+            for (int i = start; i < end && matched >= 0 && matched < ERROR_PREFIX.length(); i++) {
+                check(chars.charAt(i));
+            }
+            out.append(chars, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            check(c);
+            out.append(c);
+            return this;
+        }
+    }
+
+    /**
+     * Executes a line, writing its output straight to a sink. Commands
+     * extending {@link StreamingCommand} write their output piece by piece,
+     * so it is never held in memory as a whole; the values returned by
+     * other commands are written at once. A blank line writes nothing,
+     * and a {@code null} value is written as {@code "null"}.
+     * <br><br>
+     * A sink which blocks when it cannot take more output (e.g. a socket
+     * or a channel) slows the command down accordingly.
+     *
+     * @param line A line of input
+     * @param out  A sink for the output
+     * @throws IOException if writing to the sink fails
+     */
+    public void executeLineTo(String line, Appendable out) throws IOException {
+        executeCharsTo(line, out);
+    }
+
+    /**
+     * Executes a line which may be a mutable sequence of characters, e.g.
+     * the buffer of a {@link LineReader}. It is copied into a
+     * {@link String} unless it is parsed into the reusable call
+     */
+    private void executeCharsTo(CharSequence line, Appendable out) throws IOException {
+        ReusableCall reusable = acquireReusableCall();
+        try {
+            executeLineTo(line, out, reusable);
+        } finally {
+            if (reusable != null) {
+                reusable.release();
+            }
+        }
+    }
+
+    private void executeLineTo(CharSequence line, Appendable out, ReusableCall reusable)
+            throws IOException {
+        if (profilingListener != null || executionListeners.length > 0) {
+            ParsedStatement parsed = parseMeasured(line, reusable);
+            if (parsed != null) {
+                executeMeasured(parsed, out);
+            }
+            return;
+        }
+
+        Statement statement = parse(line, reusable);
+        if (statement != null) {
+            executeTo(statement, out);
+        }
+    }
+
+    /**
+     * Executes a line asynchronously. Statements other than calls to
+     * {@link AsyncCommand}s are executed right away
+     *
+     * @param line Line to be executed
+     * @return A stage completed with the value returned by the executed
+     * statement
+     */
+    public CompletionStage<String> executeLineAsync(String line) {
+        ParsedStatement parsed = parseMeasured(line, null);
+        if (parsed == null) {
+            return CompletableFuture.completedFuture("");
+        }
+        return executeAsync(parsed);
+    }
+
+    /**
+     * Calls a command with arguments which have already been split, e.g.
+     * received from a binary protocol, so they are neither quoted nor
+     * escaped. Calls to {@link AsyncCommand}s and to commands annotated
+     * with {@link com.maciejors.jscp.annotations.ParallelSafe} (the latter
+     * executed by the batch executor) may complete in any order, other
+     * commands are executed right away.
+     *
+     * @param commandName Name of the command, without the prefix. It can be
+     *                    abbreviated if abbreviations are enabled
+     * @param args        Arguments of the call
+     * @return A stage completed with the value returned by the command or
+     * {@code null} if there is no such command
+     * @see #setBatchExecutor(Executor)
+     */
+    public CompletionStage<String> executeCommandAsync(String commandName, ArgumentView args) {
+        // resolving the command is the parse phase of such a call
+        ProfilingListener profiler = profilingListener;
+        ExecutionListener[] listeners = executionListeners;
+        long start = System.nanoTime();
+        long startCpu = profiler != null ? ThreadUsage.cpuNanos() : 0;
+        long startAllocated = profiler != null ? ThreadUsage.allocatedBytes() : 0;
+        CommandIndex index = commandManager.getCommandIndex();
+        int entry = abbreviationsEnabled
+                ? index.findAbbreviated(commandName, 0, commandName.length())
+                : index.find(commandName, 0, commandName.length());
+        if (entry < 0) {
+            return null;
+        }
+        CommandCall call = new CommandCall(index.getName(entry), index.getCommand(entry), args);
+        ParsedStatement parsed = measured(call, profiler, listeners,
+                start, startCpu, startAllocated);
+        if (call.isParallelSafe()) {
+            return CompletableFuture.supplyAsync(() -> execute(parsed), batchExecutor);
+        }
+        try {
+            return executeAsync(parsed);
+        } catch (RuntimeException err) {
+            return CompletableFuture.failedFuture(err);
+        }
+    }
+
+    /**
+     * Executes multiple lines concurrently, using the batch executor.
+     * Commands which are not annotated with
+     * {@link com.maciejors.jscp.annotations.ParallelSafe} are still executed
+     * one at a time, in the order of the lines.
+     *
+     * @param lines Lines to be executed
+     * @return Values returned by the executed statements, in the order of
+     * the lines
+     * @see #setBatchExecutor(Executor)
+     */
+    public List<String> executeAll(List<String> lines) {
+        String[] results = new String[lines.size()];
+        executeAll(lines.stream(), ResultOrder.COMPLETION,
+                (result, index) -> results[(int) index] = result);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Executes multiple lines concurrently, using the batch executor.
+     * Commands which are not annotated with
+     * {@link com.maciejors.jscp.annotations.ParallelSafe} are still executed
+     * one at a time, in the order of the lines.
+     * <br><br>
+     * This method returns once all the results have been delivered. If
+     * any of the commands throws an exception, no more lines are executed
+     * and the exception is rethrown.
+     *
+     * @param lines          Lines to be executed. The stream is consumed
+     *                       lazily, so it can be arbitrarily long
+     * @param resultOrder    Order in which the results are delivered
+     * @param resultConsumer Receives the value returned by each executed
+     *                       statement together with the 0-based index of
+     *                       its line. It is never invoked concurrently
+     * @see #setBatchExecutor(Executor)
+     */
+    public void executeAll(Stream<String> lines, ResultOrder resultOrder,
+                           ObjLongConsumer<String> resultConsumer) {
+        new BatchExecution(this, batchExecutor, maxLinesInFlight,
+                resultOrder, resultConsumer).run(lines);
     }
 
     /**
      * Starts a loop, where in each iteration a single statement gets
      * executed.
+     * <br><br>
+     * The input is read in chunks, so a line exceeding the maximum line
+     * or argument length is never held in memory, and an error is printed
+     * instead of its output.
      *
      * @param inputStream A stream providing lines to be executed
      * @param printStream A stream where the output will be printed
+     * @see #setMaxLineLength(int)
+     * @see #setMaxArgumentLength(int)
      */
     public void startLoop(InputStream inputStream, PrintStream printStream) {
-        Scanner scanner = new Scanner(inputStream);
-        while (scanner.hasNext()) {
-            String line = scanner.nextLine();
-            String output = executeLine(line);
-            printStream.println(output);
+        LineReader reader = newLineReader(new InputStreamReader(inputStream));
+        try {
+            while (reader.next()) {
+                executeLineTo(reader, printStream);
+                printStream.println();
+            }
+        } catch (IOException err) {
+            // like the end of the input, a failing input ends the loop
+        }
+    }
+
+    /**
+     * @return A reader of lines enforcing the limits of this processor
+     */
+    LineReader newLineReader(Reader reader) {
+        return new LineReader(reader, maxLineLength, maxArgumentLength);
+    }
+
+    /**
+     * Executes the line read by a {@link LineReader} or reports why it has
+     * been skipped
+     *
+     * @throws IOException if writing to the sink fails
+     */
+    void executeLineTo(LineReader reader, Appendable out) throws IOException {
+        if (reader.getError() != null) {
+            out.append("Error: ").append(reader.getError());
+        } else if (lowAllocationMode) {
+            // the line is parsed straight from the buffer of the reader
+            executeCharsTo(reader.getLineChars(), out);
+        } else {
+            executeLineTo(reader.getLine(), out);
         }
     }
 
+    /**
+     * Starts a loop, where in each iteration a single statement gets
+     * executed. Unlike {@link #startLoop(InputStream, PrintStream)}, the
+     * output is written in batches.
+     *
+     * @param input  A channel providing lines to be executed
+     * @param output A channel where the output will be written
+     * @throws IOException if reading or writing fails
+     * @see ChannelLoop
+     */
+    public void startLoop(ReadableByteChannel input, WritableByteChannel output)
+            throws IOException {
+        new ChannelLoop(this).run(input, output);
+    }
+
+    /**
+     * Adds a listener notified about every executed command, whichever way
+     * it is executed: line by line, asynchronously, in batches, by a
+     * {@link ScriptRunner}, by the loops and by the server in both its
+     * protocols. When there are no listeners, commands are not timed at all
+     *
+     * @param listener A listener to add
+     * @see com.maciejors.jscp.metrics.CommandMetrics
+     */
+    public synchronized void addExecutionListener(ExecutionListener listener) {
+        Objects.requireNonNull(listener);
+        ExecutionListener[] listeners = Arrays.copyOf(executionListeners,
+                executionListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        executionListeners = listeners;
+    }
+
+    /**
+     * Removes a listener added with
+     * {@link #addExecutionListener(ExecutionListener)}
+     *
+     * @param listener A listener to remove
+     * @return {@code true} if the listener has been removed
+     */
+    public synchronized boolean removeExecutionListener(ExecutionListener listener) {
+        List<ExecutionListener> listeners = new ArrayList<>(Arrays.asList(executionListeners));
+        boolean removed = listeners.remove(listener);
+        executionListeners = listeners.toArray(NO_LISTENERS);
+        return removed;
+    }
+
+    /**
+     * Enables caching of parsed statements. A single cache can be shared
+     * by processors using the same {@link CommandManager}, whatever their
+     * settings are
+     *
+     * @param statementCache A cache to use or {@code null} to disable
+     *                       caching
+     */
+    public void setStatementCache(StatementCache statementCache) {
+        this.statementCache = statementCache;
+    }
+
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * Sets the executor used by {@code executeAll}. By default, it is the
+     * {@link ForkJoinPool#commonPool()}. On Java 21+ an executor creating
+     * a virtual thread per task can be used as well
+     *
+     * @param batchExecutor Executor running the lines
+     */
+    public void setBatchExecutor(Executor batchExecutor) {
+        this.batchExecutor = Objects.requireNonNull(batchExecutor);
+    }
+
+    public Executor getBatchExecutor() {
+        return batchExecutor;
+    }
+
+    /**
+     * Limits the number of lines which {@code executeAll} executes (or
+     * holds results of) at once. The default is 1024
+     *
+     * @param maxLinesInFlight Maximum number of lines in flight
+     */
+    public void setMaxLinesInFlight(int maxLinesInFlight) {
+        if (maxLinesInFlight <= 0) {
+            throw new IllegalArgumentException("maxLinesInFlight must be positive");
+        }
+        this.maxLinesInFlight = maxLinesInFlight;
+    }
+
+    public int getMaxLinesInFlight() {
+        return maxLinesInFlight;
+    }
+
+    /**
+     * Allows calling commands by unique prefixes of their names, e.g.
+     * {@code !he} calls {@code help} unless another registered command
+     * starts with {@code he}. A command whose name is equal to the called
+     * name is always preferred. Disabled by default
+     *
+     * @param abbreviationsEnabled Whether abbreviations are allowed
+     */
+    public void setAbbreviationsEnabled(boolean abbreviationsEnabled) {
+        this.abbreviationsEnabled = abbreviationsEnabled;
+    }
+
+    public boolean isAbbreviationsEnabled() {
+        return abbreviationsEnabled;
+    }
+
+    /**
+     * Makes pipelines stop at the first command which fails, i.e. throws
+     * an exception or returns an error. The error becomes the output of
+     * the pipeline. Disabled by default
+     *
+     * @param pipelineShortCircuit Whether pipelines stop at the first
+     *                             failure
+     * @see Pipeline
+     */
+    public void setPipelineShortCircuit(boolean pipelineShortCircuit) {
+        this.pipelineShortCircuit = pipelineShortCircuit;
+    }
+
+    public boolean isPipelineShortCircuit() {
+        return pipelineShortCircuit;
+    }
+
+    /**
+     * Starts measuring the wall time, the CPU time and the allocated bytes
+     * of every executed command, whichever way it is executed (see
+     * {@link #addExecutionListener(ExecutionListener)}), split into the
+     * parse and the execution phase. It can be switched on and
+     * off at any time, also while a loop is running. Measuring costs about
+     * 2 us per command, mostly spent reading the thread CPU time
+     *
+     * @param listener A listener receiving the measurements, replacing the
+     *                 previous one
+     * @see com.maciejors.jscp.metrics.CommandProfiler
+     */
+    public void startProfiling(ProfilingListener listener) {
+        Objects.requireNonNull(listener);
+        ThreadUsage.enable();
+        profilingListener = listener;
+    }
+
+    /**
+     * Stops the measurements started with
+     * {@link #startProfiling(ProfilingListener)}
+     */
+    public void stopProfiling() {
+        profilingListener = null;
+    }
+
+    public boolean isProfiling() {
+        return profilingListener != null;
+    }
+
+    /**
+     * Registers the {@code profile} command, which switches profiling on
+     * and off and prints the report of the profiler
+     *
+     * @param profiler Profiler collecting the measurements
+     */
+    public void registerDefaultProfileCommand(CommandProfiler profiler) {
+        commandManager.registerCommand("profile",
+                new DefaultProfileCommand(this, profiler));
+    }
+
+    /**
+     * Sets a journal recording every statement calling a command, together
+     * with its arguments, the time it started and whether it succeeded.
+     * Statements are recorded once they complete, so a statement which
+     * cannot be journaled fails after it has been executed. Disabled by
+     * default
+     *
+     * @param journal An open journal or {@code null} to stop journaling
+     * @see ExecutionJournal#replay(java.nio.file.Path, CommandManager)
+     */
+    public void setJournal(ExecutionJournal journal) {
+        this.journal = journal;
+    }
+
+    public ExecutionJournal getJournal() {
+        return journal;
+    }
+
     public String getCommandPrefix() {
         return commandPrefix;
     }
 
+    /**
+     * Limits the length of a line. Longer lines are not executed, an error
+     * is returned instead, and the loops skip them without reading them
+     * into memory as a whole. The default is 1 048 576 characters
+     *
+     * @param maxLineLength Maximum number of characters in a line
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("maxLineLength must be positive");
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * Limits the length of a single argument (as written in the line,
+     * including escape characters). Lines with longer arguments are not
+     * executed, an error is returned instead. The default is 1 048 576
+     * characters
+     *
+     * @param maxArgumentLength Maximum number of characters in an argument
+     */
+    public void setMaxArgumentLength(int maxArgumentLength) {
+        if (maxArgumentLength <= 0) {
+            throw new IllegalArgumentException("maxArgumentLength must be positive");
+        }
+        this.maxArgumentLength = maxArgumentLength;
+    }
+
+    public int getMaxArgumentLength() {
+        return maxArgumentLength;
+    }
+
+    /**
+     * Makes each thread executing lines with {@code executeLine} or
+     * {@code executeLineTo} (so also the loops and the server) parse
+     * them into objects it reuses from one line to the next: a command
+     * call, the view of its arguments and the arrays materializing them,
+     * one per number of arguments. The loop over an {@link InputStream}
+     * additionally parses the lines straight from its buffer. A line
+     * calling a {@link ViewCommand} or a {@link StreamingCommand} is then
+     * executed without allocating anything but what the command itself
+     * allocates. Pipelines, macro definitions and invalid lines, as well
+     * as all the lines while a statement cache or a journal is set, are
+     * parsed as usual. Disabled by default
+     * <br><br>
+     * In this mode, a command must not keep its {@link ArgumentView} or
+     * the array of its arguments after the call returns, as both are
+     * overwritten by the next line.
+     *
+     * @param lowAllocationMode Whether the parsed lines are reused
+     */
+    public void setLowAllocationMode(boolean lowAllocationMode) {
+        this.lowAllocationMode = lowAllocationMode;
+    }
+
+    public boolean isLowAllocationMode() {
+        return lowAllocationMode;
+    }
+
     public CommandManager getCommandManager() {
         return commandManager;
     }
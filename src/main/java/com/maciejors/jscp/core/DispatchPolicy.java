@@ -0,0 +1,153 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.annotations.CommandPolicy;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Limits how a command is dispatched: how long a call may take, how many
+ * calls may run at once and how many calls are allowed per second. A call
+ * exceeding any of the limits fails fast with an error (e.g.
+ * {@code Error: rate limit exceeded}) instead of waiting.
+ * <br><br>
+ * Policies are immutable; every {@code with...} method returns a new one.
+ *
+ * @see CommandPolicy
+ * @see CommandManager#registerCommand(String, Command, DispatchPolicy)
+ */
+public final class DispatchPolicy {
+
+    /**
+     * A policy without any limits
+     */
+    public static final DispatchPolicy NONE =
+            new DispatchPolicy(Duration.ZERO, 0, 0, 1);
+
+    private final Duration timeout;
+    private final int maxConcurrency;
+    private final double permitsPerSecond;
+    private final int burst;
+
+    private DispatchPolicy(Duration timeout, int maxConcurrency,
+                           double permitsPerSecond, int burst) {
+        this.timeout = timeout;
+        this.maxConcurrency = maxConcurrency;
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * @param timeout Time after which a call is abandoned and an error is
+     *                returned, {@link Duration#ZERO} disables it. The
+     *                abandoned call gets interrupted. An abandoned call
+     *                may still be running, so if no concurrency limit is
+     *                set, the calls are limited to one at a time, or to 64
+     *                if the command is parallel-safe
+     */
+    public DispatchPolicy withTimeout(Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout cannot be negative");
+        }
+        return new DispatchPolicy(timeout, maxConcurrency, permitsPerSecond, burst);
+    }
+
+    /**
+     * @param maxConcurrency Maximum number of calls executed at once (calls
+     *                       abandoned after a timeout count until they
+     *                       actually finish), {@code 0} disables the limit
+     */
+    public DispatchPolicy withMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 0) {
+            throw new IllegalArgumentException("maxConcurrency cannot be negative");
+        }
+        return new DispatchPolicy(timeout, maxConcurrency, permitsPerSecond, burst);
+    }
+
+    /**
+     * Sets a token bucket rate limit
+     *
+     * @param permitsPerSecond Number of calls allowed per second on average,
+     *                         {@code 0} disables the limit
+     * @param burst            Number of calls allowed at once after a
+     *                         period of inactivity
+     */
+    public DispatchPolicy withRateLimit(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond >= 0) || Double.isInfinite(permitsPerSecond)) {
+            throw new IllegalArgumentException("permitsPerSecond must be a non-negative number");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst must be positive");
+        }
+        return new DispatchPolicy(timeout, maxConcurrency, permitsPerSecond, burst);
+    }
+
+    /**
+     * @return A policy described by the {@link CommandPolicy} annotation of
+     * the command or {@link #NONE}
+     */
+    static DispatchPolicy of(Command command) {
+        if (command instanceof LazyCommand) {
+            // the catalog has recorded the annotation of the command class
+            return ((LazyCommand) command).getPolicy();
+        }
+        CommandPolicy annotation = command.getClass().getAnnotation(CommandPolicy.class);
+        if (annotation == null) {
+            return NONE;
+        }
+        return NONE.withTimeout(Duration.ofMillis(annotation.timeoutMillis()))
+                .withMaxConcurrency(annotation.maxConcurrency())
+                .withRateLimit(annotation.permitsPerSecond(), annotation.burst());
+    }
+
+    /**
+     * @return {@code true} if the policy does not limit anything
+     */
+    public boolean isUnlimited() {
+        return timeout.isZero() && maxConcurrency == 0 && permitsPerSecond == 0;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DispatchPolicy)) {
+            return false;
+        }
+        DispatchPolicy that = (DispatchPolicy) o;
+        return maxConcurrency == that.maxConcurrency
+                && Double.compare(permitsPerSecond, that.permitsPerSecond) == 0
+                && burst == that.burst
+                && timeout.equals(that.timeout);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(timeout, maxConcurrency, permitsPerSecond, burst);
+    }
+
+    @Override
+    public String toString() {
+        return "DispatchPolicy{timeout=" + timeout +
+                ", maxConcurrency=" + maxConcurrency +
+                ", permitsPerSecond=" + permitsPerSecond +
+                ", burst=" + burst + "}";
+    }
+}
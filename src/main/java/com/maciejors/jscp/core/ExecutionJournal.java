@@ -0,0 +1,679 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.core.statements.CommandCall;
+import com.maciejors.jscp.core.statements.MacroDefinition;
+import com.maciejors.jscp.core.statements.Pipeline;
+import com.maciejors.jscp.core.statements.Statement;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the statements executed by a
+ * {@link CommandProcessor}, used as an audit trail and to recover the
+ * state of the commands after a crash (see
+ * {@link #replay(Path, CommandManager)}).
+ * <br><br>
+ * Statements are encoded by the threads executing them and written by a
+ * single journal thread, which takes all the records waiting at once and
+ * writes them with a single gathering write (group commit). How often the
+ * records are forced to the device depends on the
+ * {@link JournalSyncPolicy}.
+ * <br><br>
+ * The journal is a directory of segments ({@code 0000000000000001.journal}
+ * and so on), each starting with a magic number and a version. A new
+ * segment is started whenever the journal is opened and whenever the
+ * current one exceeds the maximum segment size. A record:
+ * <pre>
+ * int    length of the rest of the record
+ * int    CRC32 of the rest of the record, after this field
+ * long   timestamp, in milliseconds since the epoch
+ * byte   {@link JournalStatus} code
+ * byte   flags, bit 0 set for a short-circuiting pipeline, bit 1 for a
+ *        macro definition
+ * short  number of command calls (unsigned)
+ * short  length of the command name (unsigned), followed by the name
+ * int    number of arguments
+ * int    length of an argument, followed by the argument (for each one)
+ * </pre>
+ * The last three fields are repeated for each command call, and all the
+ * strings are UTF-8. A macro definition is recorded as a single call with
+ * the name of the macro and the definition line as its only argument, so
+ * that the macro is defined again on replay.
+ */
+public final class ExecutionJournal implements Closeable {
+
+    private static final int MAGIC = 0x4a53434a;
+    private static final short VERSION = 1;
+    private static final int SEGMENT_HEADER = Integer.BYTES + Short.BYTES;
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * Length of the fixed part of a record, following the record length
+     */
+    private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES
+            + Byte.BYTES + Byte.BYTES + Short.BYTES;
+
+    private static final int SHORT_CIRCUIT = 1;
+    private static final int MACRO_DEFINITION = 2;
+
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * A record waiting for the journal thread
+     */
+    private static final class Pending {
+        final byte[] record;
+
+        /**
+         * Completed once the record is forced to the device, {@code null}
+         * if nobody waits for it
+         */
+        final CompletableFuture<Void> synced;
+
+        Pending(byte[] record, CompletableFuture<Void> synced) {
+            this.record = record;
+            this.synced = synced;
+        }
+    }
+
+    /**
+     * Tells the journal thread to stop
+     */
+    private static final Pending CLOSE = new Pending(null, null);
+
+    private final Path directory;
+
+    private volatile JournalSyncPolicy syncPolicy = JournalSyncPolicy.INTERVAL;
+
+    private Duration syncInterval = Duration.ofMillis(100);
+
+    private long maxSegmentSize = 64L * 1024 * 1024;
+
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(8 * MAX_BATCH);
+
+    /**
+     * Read-locked while appending, write-locked while closing, so that no
+     * record can be queued after {@link #CLOSE}
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    private volatile boolean open = false;
+
+    private boolean closed = false;
+
+    private volatile IOException failure = null;
+
+    private Thread journalThread = null;
+
+    private FileChannel segment = null;
+    private long segmentIndex = 0;
+    private long segmentSize = 0;
+
+    /**
+     * @param directory Directory of the segments, created if it does not
+     *                  exist
+     */
+    public ExecutionJournal(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens a new segment and starts the journal thread
+     *
+     * @throws IOException if the segment cannot be created
+     */
+    public synchronized void open() throws IOException {
+        checkNotOpened();
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments(directory);
+        long lastIndex = segments.isEmpty()
+                ? 0
+                : indexOf(segments.get(segments.size() - 1));
+        openSegment(lastIndex + 1);
+
+        journalThread = new Thread(this::writeLoop, "jscp-journal");
+        journalThread.setDaemon(true);
+        journalThread.start();
+        open = true;
+    }
+
+    private void checkNotOpened() {
+        if (open || closed) {
+            throw new IllegalStateException("Journal already opened");
+        }
+    }
+
+    /**
+     * Sets when the records are forced to the device, the default is
+     * {@link JournalSyncPolicy#INTERVAL}. Has to be called before
+     * {@link #open()}
+     */
+    public synchronized void setSyncPolicy(JournalSyncPolicy syncPolicy) {
+        checkNotOpened();
+        this.syncPolicy = Objects.requireNonNull(syncPolicy);
+    }
+
+    public JournalSyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Sets how often the records are forced to the device with
+     * {@link JournalSyncPolicy#INTERVAL}, the default is 100 ms. Has to be
+     * called before {@link #open()}
+     */
+    public synchronized void setSyncInterval(Duration syncInterval) {
+        checkNotOpened();
+        if (syncInterval.isNegative() || syncInterval.isZero()) {
+            throw new IllegalArgumentException("syncInterval must be positive");
+        }
+        this.syncInterval = syncInterval;
+    }
+
+    public Duration getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Sets the size after which a new segment is started, the default is
+     * 64 MiB. Records written at once always go to the same segment, so a
+     * segment can be slightly larger. Has to be called before
+     * {@link #open()}
+     */
+    public synchronized void setMaxSegmentSize(long maxSegmentSize) {
+        checkNotOpened();
+        if (maxSegmentSize <= 0) {
+            throw new IllegalArgumentException("maxSegmentSize must be positive");
+        }
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    // ========================================= //
+    // ================ Writing ================ //
+    // ========================================= //
+
+    /**
+     * Records an executed statement. With {@link JournalSyncPolicy#ALWAYS},
+     * waits until the record is forced to the device
+     *
+     * @param timestamp Time the statement started executing, in
+     *                  milliseconds since the epoch
+     * @throws UncheckedIOException  if the journal cannot be written
+     * @throws IllegalStateException if the journal is not open
+     */
+    void append(Statement statement, long timestamp, JournalStatus status) {
+        byte[] record = encode(statement, timestamp, status);
+        if (record == null) {
+            return;
+        }
+        Pending pending = new Pending(record, syncPolicy == JournalSyncPolicy.ALWAYS
+                ? new CompletableFuture<>()
+                : null);
+
+        closeLock.readLock().lock();
+        try {
+            if (!open) {
+                throw new IllegalStateException("Journal is not open");
+            }
+            checkFailure();
+            queue.put(pending);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while journaling");
+        } finally {
+            closeLock.readLock().unlock();
+        }
+
+        if (pending.synced != null) {
+            try {
+                pending.synced.join();
+            } catch (CompletionException err) {
+                checkFailure();
+                throw err;
+            }
+        }
+    }
+
+    private void checkFailure() {
+        IOException err = failure;
+        if (err != null) {
+            throw new UncheckedIOException("Journal cannot be written", err);
+        }
+    }
+
+    /**
+     * @return The record of a statement or {@code null} if the statement
+     * neither calls any command nor defines a macro
+     */
+    private static byte[] encode(Statement statement, long timestamp, JournalStatus status) {
+        CommandCall[] calls;
+        int flags = 0;
+        if (statement instanceof MacroDefinition) {
+            MacroDefinition definition = (MacroDefinition) statement;
+            String source = ((Macro) definition.getMacro()).getSource();
+            // encoded like a call, with the definition as the argument
+            calls = new CommandCall[]{new CommandCall(definition.getMacroName(),
+                    definition.getMacro(), new String[]{source})};
+            flags |= MACRO_DEFINITION;
+        } else if (statement instanceof CommandCall) {
+            calls = new CommandCall[]{(CommandCall) statement};
+        } else if (statement instanceof Pipeline) {
+            calls = ((Pipeline) statement).getStages();
+            if (((Pipeline) statement).isShortCircuit()) {
+                flags |= SHORT_CIRCUIT;
+            }
+        } else {
+            return null;
+        }
+
+        byte[][] names = new byte[calls.length][];
+        byte[][][] args = new byte[calls.length][][];
+        long length = RECORD_HEADER;
+        for (int i = 0; i < calls.length; i++) {
+            names[i] = String.valueOf(calls[i].getCommandName()).getBytes(StandardCharsets.UTF_8);
+            String[] callArgs = calls[i].getArgs();
+            args[i] = new byte[callArgs.length][];
+            length += Short.BYTES + names[i].length + Integer.BYTES;
+            for (int j = 0; j < callArgs.length; j++) {
+                args[i][j] = callArgs[j].getBytes(StandardCharsets.UTF_8);
+                length += Integer.BYTES + args[i][j].length;
+            }
+        }
+        if (length > Integer.MAX_VALUE - Integer.BYTES) {
+            throw new IllegalArgumentException("Statement too large to be journaled");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + (int) length);
+        record.putInt((int) length);
+        record.putInt(0);
+        record.putLong(timestamp);
+        record.put((byte) status.getCode());
+        record.put((byte) flags);
+        record.putShort((short) calls.length);
+        for (int i = 0; i < calls.length; i++) {
+            record.putShort((short) names[i].length);
+            record.put(names[i]);
+            record.putInt(args[i].length);
+            for (byte[] arg : args[i]) {
+                record.putInt(arg.length);
+                record.put(arg);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 2 * Integer.BYTES, (int) length - Integer.BYTES);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Body of the journal thread
+     */
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+        long intervalNanos = syncInterval.toNanos();
+        long lastSyncAt = System.nanoTime();
+        boolean unsynced = false;
+        boolean closing = false;
+        try {
+            while (!closing) {
+                Pending first;
+                if (unsynced) {
+                    long untilSync = lastSyncAt + intervalNanos - System.nanoTime();
+                    first = queue.poll(Math.max(0, untilSync), TimeUnit.NANOSECONDS);
+                } else {
+                    first = queue.take();
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    // nothing is queued after it
+                    closing = batch.get(batch.size() - 1) == CLOSE;
+                    int count = closing ? batch.size() - 1 : batch.size();
+                    if (count > 0) {
+                        write(batch, count, buffers);
+                        unsynced = syncPolicy != JournalSyncPolicy.NEVER;
+                    }
+                }
+
+                if (unsynced && (closing || syncPolicy == JournalSyncPolicy.ALWAYS
+                        || System.nanoTime() - lastSyncAt >= intervalNanos)) {
+                    segment.force(false);
+                    lastSyncAt = System.nanoTime();
+                    unsynced = false;
+                }
+                for (Pending pending : batch) {
+                    if (pending.synced != null) {
+                        pending.synced.complete(null);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (IOException err) {
+            failure = err;
+            failAll(batch, closing);
+        } catch (InterruptedException err) {
+            // the journal thread is never interrupted
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes records to the current segment, starting a new one if the
+     * current one is full
+     */
+    private void write(List<Pending> batch, int count, ByteBuffer[] buffers) throws IOException {
+        long size = 0;
+        for (int i = 0; i < count; i++) {
+            buffers[i] = ByteBuffer.wrap(batch.get(i).record);
+            size += buffers[i].remaining();
+        }
+        if (segmentSize > SEGMENT_HEADER && segmentSize + size > maxSegmentSize) {
+            if (syncPolicy != JournalSyncPolicy.NEVER) {
+                segment.force(false);
+            }
+            segment.close();
+            openSegment(segmentIndex + 1);
+        }
+        long remaining = size;
+        while (remaining > 0) {
+            remaining -= segment.write(buffers, 0, count);
+        }
+        segmentSize += size;
+        for (int i = 0; i < count; i++) {
+            buffers[i] = null;
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting for their records once the journal
+     * cannot be written, until the journal is closed
+     */
+    private void failAll(List<Pending> batch, boolean closing) {
+        IOException err = failure;
+        for (Pending pending : batch) {
+            if (pending.synced != null) {
+                pending.synced.completeExceptionally(err);
+            }
+        }
+        while (!closing) {
+            Pending pending;
+            try {
+                pending = queue.take();
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            closing = pending == CLOSE;
+            if (pending.synced != null) {
+                pending.synced.completeExceptionally(err);
+            }
+        }
+    }
+
+    private void openSegment(long index) throws IOException {
+        Path path = directory.resolve(String.format("%016d%s", index, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        header.putInt(MAGIC).putShort(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        segment = channel;
+        segmentIndex = index;
+        segmentSize = SEGMENT_HEADER;
+    }
+
+    /**
+     * Writes and forces the remaining records, then closes the journal.
+     * Statements executed afterwards are not journaled, they fail instead
+     *
+     * @throws IOException if the journal could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!open) {
+                closed = true;
+                return;
+            }
+            closeLock.writeLock().lock();
+            try {
+                open = false;
+                closed = true;
+                queue.put(CLOSE);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while closing the journal");
+            } finally {
+                closeLock.writeLock().unlock();
+            }
+        }
+        try {
+            journalThread.join();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the journal");
+        }
+        segment.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // ========================================= //
+    // ================ Reading ================ //
+    // ========================================= //
+
+    /**
+     * Reads all the records of a journal, in the order they have been
+     * written. A record which is truncated or fails its checksum ends its
+     * segment, as it has been torn by a crash
+     *
+     * @param directory Directory of the segments
+     * @param consumer  Receives the records
+     * @return Number of the records read
+     * @throws IOException if a segment cannot be read
+     */
+    public static long read(Path directory, Consumer<JournalRecord> consumer) throws IOException {
+        long count = 0;
+        for (Path path : listSegments(directory)) {
+            count += readSegment(path, consumer);
+        }
+        return count;
+    }
+
+    private static long readSegment(Path path, Consumer<JournalRecord> consumer)
+            throws IOException {
+        long remaining = Files.size(path) - SEGMENT_HEADER;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (remaining < 0 || in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new IOException("Not a journal segment: " + path);
+            }
+            long count = 0;
+            byte[] body = new byte[256];
+            while (remaining >= Integer.BYTES) {
+                int length = in.readInt();
+                remaining -= Integer.BYTES;
+                if (length < RECORD_HEADER || length > remaining) {
+                    break;
+                }
+                if (body.length < length) {
+                    body = new byte[length];
+                }
+                in.readFully(body, 0, length);
+                remaining -= length;
+
+                CRC32 crc = new CRC32();
+                crc.update(body, Integer.BYTES, length - Integer.BYTES);
+                ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+                if (record.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+                consumer.accept(decode(record, path));
+                count++;
+            }
+            return count;
+        } catch (EOFException err) {
+            throw new IOException("Truncated journal segment: " + path, err);
+        }
+    }
+
+    private static JournalRecord decode(ByteBuffer record, Path path) throws IOException {
+        try {
+            long timestamp = record.getLong();
+            JournalStatus status = JournalStatus.of(record.get());
+            int flags = record.get();
+            boolean shortCircuit = (flags & SHORT_CIRCUIT) != 0;
+            boolean macroDefinition = (flags & MACRO_DEFINITION) != 0;
+            int callCount = Short.toUnsignedInt(record.getShort());
+            String[] names = new String[callCount];
+            String[][] args = new String[callCount][];
+            for (int i = 0; i < callCount; i++) {
+                names[i] = readString(record, Short.toUnsignedInt(record.getShort()));
+                args[i] = new String[record.getInt()];
+                for (int j = 0; j < args[i].length; j++) {
+                    args[i][j] = readString(record, record.getInt());
+                }
+            }
+            return new JournalRecord(timestamp, status, shortCircuit, macroDefinition,
+                    names, args);
+        } catch (RuntimeException err) {
+            // the checksum matched, so it has been written this way
+            throw new IOException("Malformed journal record in " + path, err);
+        }
+    }
+
+    private static String readString(ByteBuffer record, int length) {
+        String value = new String(record.array(), record.position(), length,
+                StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+
+    /**
+     * Re-executes the statements of a journal, e.g. to restore the state of
+     * the commands after a crash. Only the statements which have succeeded
+     * ({@link JournalStatus#OK}) are executed, in the order they have been
+     * recorded. The commands are called directly, bypassing their
+     * {@link DispatchPolicy}s and memoized values. Macro definitions are
+     * parsed again and register the macros in the manager
+     *
+     * @param directory      Directory of the segments
+     * @param commandManager Manager holding the commands to be called,
+     *                       usually a fresh one
+     * @return Number of the executed statements
+     * @throws IOException           if a segment cannot be read
+     * @throws IllegalStateException if a recorded command is not
+     *                               registered
+     */
+    public static long replay(Path directory, CommandManager commandManager) throws IOException {
+        long[] executed = new long[1];
+        // the definitions have been parsed with or without abbreviations,
+        // and the full names are found either way
+        CommandProcessor definitions = new CommandProcessor(commandManager);
+        definitions.setAbbreviationsEnabled(true);
+        read(directory, record -> {
+            if (record.getStatus() != JournalStatus.OK) {
+                return;
+            }
+            if (record.isMacroDefinition()) {
+                Statement statement = definitions.parse(record.args(0)[0]);
+                if (!(statement instanceof MacroDefinition)) {
+                    throw new IllegalStateException("Cannot define macro "
+                            + record.getCommandName(0) + ": "
+                            + (statement == null ? "blank definition" : statement.execute()));
+                }
+                statement.execute();
+                executed[0]++;
+                return;
+            }
+            CommandCall[] calls = new CommandCall[record.getCallCount()];
+            for (int i = 0; i < calls.length; i++) {
+                String name = record.getCommandName(i);
+                Command command = commandManager.findCommand(name);
+                if (command == null) {
+                    throw new IllegalStateException("Command not found: " + name);
+                }
+                calls[i] = new CommandCall(name, command, record.args(i));
+            }
+            if (calls.length == 1) {
+                calls[0].execute();
+            } else {
+                new Pipeline(calls, record.isShortCircuit()).execute();
+            }
+            executed[0]++;
+        });
+        return executed[0];
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                if (indexOf(path) > 0) {
+                    segments.add(path);
+                }
+            }
+        }
+        // the names are zero-padded
+        segments.sort(null);
+        return segments;
+    }
+
+    /**
+     * @return Index of a segment or {@code -1} if the name is not one of a
+     * segment
+     */
+    private static long indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        String index = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+        if (index.length() != 16) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(index);
+        } catch (NumberFormatException err) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.maciejors.jscp.core;
+
+/**
+ * Receives notifications about executed commands. Listeners are called by
+ * the thread executing the command, right after it returns, so they
+ * should be fast and thread-safe. Calls to {@link AsyncCommand}s are
+ * reported once their stage completes, by the completing thread, with the
+ * execution time lasting until then.
+ *
+ * @see CommandProcessor#addExecutionListener(ExecutionListener)
+ * @see com.maciejors.jscp.metrics.CommandMetrics
+ */
+public interface ExecutionListener {
+
+    /**
+     * Invoked after a command call has been executed
+     *
+     * @param commandName    Name of the called command
+     * @param parseNanos     Time spent parsing the line, in nanoseconds
+     * @param executionNanos Time spent executing the command, in
+     *                       nanoseconds
+     * @param failed         {@code true} if the command has thrown an
+     *                       exception
+     */
+    void commandExecuted(String commandName, long parseNanos,
+                         long executionNanos, boolean failed);
+}
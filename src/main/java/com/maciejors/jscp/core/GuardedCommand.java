@@ -0,0 +1,281 @@
+package com.maciejors.jscp.core;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A command dispatched according to a {@link DispatchPolicy}. Calls which
+ * would exceed a limit are rejected right away with an error value, so a
+ * slow or flooded command cannot hold up the others.
+ * <br><br>
+ * A guard is created once per registration, so its state (permits in use,
+ * rate limit) is shared by all the calls of the command.
+ */
+final class GuardedCommand extends Command {
+
+    static final String RATE_LIMITED = "Error: rate limit exceeded";
+    static final String TOO_MANY_CALLS = "Error: too many concurrent calls";
+    static final String TIMED_OUT = "Error: timed out";
+
+    /**
+     * Concurrency limit of parallel-safe commands which have a timeout but
+     * no limit of their own. Every abandoned call holds a thread until it
+     * returns, so without a limit calls which hang would take up threads
+     * without bound
+     */
+    static final int DEFAULT_TIMED_CONCURRENCY = 64;
+
+    /**
+     * Runs the calls of commands with a timeout, so that the caller can
+     * stop waiting for them
+     */
+    private static final Executor TIMED_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "jscp-timed-command");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Command command;
+    private final DispatchPolicy policy;
+
+    private final long timeoutNanos;
+
+    /**
+     * Permits of the concurrency limit or {@code null} if there is no limit
+     */
+    private final Semaphore permits;
+
+    /**
+     * Time between calls at the allowed rate or 0 if there is no rate limit
+     */
+    private final long intervalNanos;
+
+    /**
+     * How far ahead of time the calls of a burst are allowed to be
+     */
+    private final long burstNanos;
+
+    /**
+     * Theoretical arrival time of the next call, see the generic cell rate
+     * algorithm. It is a token bucket which needs a single CAS per call
+     */
+    private final AtomicLong nextCallAt;
+
+    GuardedCommand(Command command, DispatchPolicy policy) {
+        this.command = command;
+        this.policy = policy;
+        timeoutNanos = policy.getTimeout().toNanos();
+        int maxConcurrency = policy.getMaxConcurrency();
+        if (maxConcurrency == 0 && timeoutNanos != 0) {
+            // an abandoned call keeps running, so a command which is not
+            // thread-safe cannot be called again until it returns
+            maxConcurrency = isKnownParallelSafe(command) ? DEFAULT_TIMED_CONCURRENCY : 1;
+        }
+        permits = maxConcurrency == 0
+                ? null
+                : new Semaphore(maxConcurrency);
+        intervalNanos = policy.getPermitsPerSecond() == 0
+                ? 0
+                : Math.max(1, (long) (1e9 / policy.getPermitsPerSecond()));
+        burstNanos = intervalNanos * (policy.getBurst() - 1);
+        nextCallAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @return {@code true} if the command is parallel-safe, telling it
+     * without creating a command registered from a catalog
+     */
+    private static boolean isKnownParallelSafe(Command command) {
+        return command instanceof LazyCommand
+                ? ((LazyCommand) command).isDeclaredParallelSafe()
+                : command.isParallelSafe();
+    }
+
+    Command getCommand() {
+        return command;
+    }
+
+    DispatchPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Takes a permit of the rate limit and of the concurrency limit
+     *
+     * @return An error value if the call has to be rejected or {@code null}
+     */
+    private String admit() {
+        if (intervalNanos != 0) {
+            long now = System.nanoTime();
+            long next;
+            long scheduled;
+            do {
+                next = nextCallAt.get();
+                scheduled = next - now > 0 ? next : now;
+                if (scheduled - now > burstNanos) {
+                    return RATE_LIMITED;
+                }
+            } while (!nextCallAt.compareAndSet(next, scheduled + intervalNanos));
+        }
+        if (permits != null && !permits.tryAcquire()) {
+            return TOO_MANY_CALLS;
+        }
+        return null;
+    }
+
+    private void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    @Override
+    public String call(String[] args) {
+        return call(ArgumentView.of(args));
+    }
+
+    @Override
+    public String call(ArgumentView args) {
+        String rejection = admit();
+        if (rejection != null) {
+            return rejection;
+        }
+        if (timeoutNanos == 0) {
+            try {
+                return command.call(args);
+            } finally {
+                release();
+            }
+        }
+        return callWithTimeout(args);
+    }
+
+    /**
+     * Runs the command on another thread and stops waiting for it after
+     * the timeout. The permit is released when the command actually
+     * finishes, so abandoned calls still count towards the concurrency
+     * limit, which is always set when there is a timeout
+     */
+    private String callWithTimeout(ArgumentView args) {
+        // the view may be reused by the caller once it stops waiting
+        ArgumentView copy = ArgumentView.of(args.toArray().clone());
+        AtomicBoolean claimed = new AtomicBoolean(false);
+        FutureTask<String> task = new FutureTask<>(() -> {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return command.call(copy);
+            } finally {
+                release();
+            }
+        });
+        TIMED_EXECUTOR.execute(task);
+        try {
+            return task.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException err) {
+            abandon(task, claimed);
+            return TIMED_OUT;
+        } catch (InterruptedException err) {
+            abandon(task, claimed);
+            Thread.currentThread().interrupt();
+            return "Error: interrupted";
+        } catch (ExecutionException err) {
+            Throwable cause = err.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void abandon(FutureTask<String> task, AtomicBoolean claimed) {
+        // a task which has not started will never release its permit
+        if (claimed.compareAndSet(false, true)) {
+            release();
+        }
+        task.cancel(true);
+    }
+
+    @Override
+    public void call(ArgumentView args, Appendable out) throws IOException {
+        if (timeoutNanos != 0) {
+            // the output cannot be taken back once written, so it is
+            // collected and written only if the command completes in time
+            out.append(String.valueOf(call(args)));
+            return;
+        }
+        String rejection = admit();
+        if (rejection != null) {
+            out.append(rejection);
+            return;
+        }
+        try {
+            command.call(args, out);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public CompletionStage<String> callAsync(String[] args) {
+        return callAsync(ArgumentView.of(args));
+    }
+
+    @Override
+    public CompletionStage<String> callAsync(ArgumentView args) {
+        if (!(command instanceof AsyncCommand)) {
+            // a regular command completes before callAsync returns, so
+            // only running it on another thread can time it out
+            try {
+                return CompletableFuture.completedFuture(call(args));
+            } catch (RuntimeException err) {
+                return CompletableFuture.failedFuture(err);
+            }
+        }
+
+        String rejection = admit();
+        if (rejection != null) {
+            return CompletableFuture.completedFuture(rejection);
+        }
+        CompletableFuture<String> future;
+        try {
+            future = command.callAsync(args).toCompletableFuture();
+        } catch (RuntimeException | Error err) {
+            release();
+            throw err;
+        }
+        future.whenComplete((output, err) -> release());
+        if (timeoutNanos == 0) {
+            return future;
+        }
+        CompletableFuture<String> result = future.copy()
+                .completeOnTimeout(TIMED_OUT, timeoutNanos, TimeUnit.NANOSECONDS);
+        // cancelling a completed future does nothing
+        result.whenComplete((output, err) -> future.cancel(true));
+        return result;
+    }
+
+    @Override
+    public boolean isParallelSafe() {
+        return command.isParallelSafe();
+    }
+
+    @Override
+    public String getDescription() {
+        return command.getDescription();
+    }
+}
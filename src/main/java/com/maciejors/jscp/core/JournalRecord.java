@@ -0,0 +1,99 @@
+package com.maciejors.jscp.core;
+
+import java.util.Arrays;
+
+/**
+ * A statement recorded in an {@link ExecutionJournal}: a single command
+ * call, the calls of a pipeline in the order of execution, or a macro
+ * definition
+ */
+public final class JournalRecord {
+
+    private final long timestamp;
+    private final JournalStatus status;
+    private final boolean shortCircuit;
+    private final boolean macroDefinition;
+    private final String[] commandNames;
+    private final String[][] args;
+
+    JournalRecord(long timestamp, JournalStatus status, boolean shortCircuit,
+                  boolean macroDefinition, String[] commandNames, String[][] args) {
+        this.timestamp = timestamp;
+        this.status = status;
+        this.shortCircuit = shortCircuit;
+        this.macroDefinition = macroDefinition;
+        this.commandNames = commandNames;
+        this.args = args;
+    }
+
+    /**
+     * @return Time the statement started executing, in milliseconds since
+     * the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public JournalStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return {@code true} if the statement is a pipeline which stopped at
+     * the first failure
+     */
+    public boolean isShortCircuit() {
+        return shortCircuit;
+    }
+
+    /**
+     * @return {@code true} if the statement is a macro definition, recorded
+     * as a single call with the name of the macro and the definition as
+     * its only argument
+     */
+    public boolean isMacroDefinition() {
+        return macroDefinition;
+    }
+
+    /**
+     * @return Number of command calls, more than one for a pipeline
+     */
+    public int getCallCount() {
+        return commandNames.length;
+    }
+
+    /**
+     * @param call Index of a command call
+     * @return Full name of the called command
+     */
+    public String getCommandName(int call) {
+        return commandNames[call];
+    }
+
+    /**
+     * @param call Index of a command call
+     * @return Arguments of the call, without the values passed along the
+     * pipeline
+     */
+    public String[] getArgs(int call) {
+        return args[call].clone();
+    }
+
+    String[] args(int call) {
+        return args[call];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder calls = new StringBuilder();
+        for (int i = 0; i < commandNames.length; i++) {
+            if (i > 0) {
+                calls.append(" | ");
+            }
+            calls.append(commandNames[i]).append(' ').append(Arrays.toString(args[i]));
+        }
+        return "JournalRecord{timestamp=" + timestamp +
+                ", status=" + status +
+                (macroDefinition ? ", definition=" : ", calls=") + calls + "}";
+    }
+}
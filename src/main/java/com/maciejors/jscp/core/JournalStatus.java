@@ -0,0 +1,57 @@
+package com.maciejors.jscp.core;
+
+/**
+ * Outcome of a statement recorded in an {@link ExecutionJournal}
+ */
+public enum JournalStatus {
+
+    /**
+     * The statement returned a value (possibly {@code null})
+     */
+    OK(0),
+
+    /**
+     * The statement returned an {@code Error: ...} value
+     */
+    ERROR(1),
+
+    /**
+     * The statement threw an exception or its asynchronous call failed
+     */
+    FAILED(2);
+
+    private static final JournalStatus[] BY_CODE = values();
+
+    private final int code;
+
+    JournalStatus(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return Code of the status stored in the journal
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @param code Code of a status stored in the journal
+     * @return The status with the code
+     * @throws IllegalArgumentException if there is no such status
+     */
+    public static JournalStatus of(int code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            throw new IllegalArgumentException("Unknown journal status: " + code);
+        }
+        return BY_CODE[code];
+    }
+
+    /**
+     * @param output Value returned by a statement
+     * @return Status of a statement which has returned the value
+     */
+    static JournalStatus ofOutput(String output) {
+        return output != null && output.startsWith("Error: ") ? ERROR : OK;
+    }
+}
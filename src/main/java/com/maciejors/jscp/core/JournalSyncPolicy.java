@@ -0,0 +1,27 @@
+package com.maciejors.jscp.core;
+
+/**
+ * When an {@link ExecutionJournal} forces its records to the storage
+ * device
+ */
+public enum JournalSyncPolicy {
+
+    /**
+     * Records are written to the file, but flushing them to the device is
+     * left to the operating system. A crash of the process loses nothing
+     * that has been written, a crash of the machine can
+     */
+    NEVER,
+
+    /**
+     * Records are forced to the device periodically, so a crash of the
+     * machine loses at most the records of the last interval
+     */
+    INTERVAL,
+
+    /**
+     * Every statement waits until its record is forced to the device.
+     * Records of statements completing together are forced at once
+     */
+    ALWAYS
+}
@@ -0,0 +1,103 @@
+package com.maciejors.jscp.core;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A command from a {@link CommandCatalog}, created when it is called for
+ * the first time. Its description, policy and memoization are known
+ * without creating it.
+ */
+final class LazyCommand extends Command {
+
+    private final CommandCatalog catalog;
+    private final int index;
+
+    private volatile Command instance = null;
+
+    LazyCommand(CommandCatalog catalog, int index) {
+        this.catalog = catalog;
+        this.index = index;
+    }
+
+    /**
+     * @return The command, created on the first call
+     */
+    Command getInstance() {
+        Command result = instance;
+        if (result == null) {
+            synchronized (this) {
+                result = instance;
+                if (result == null) {
+                    result = catalog.create(index);
+                    instance = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    boolean isCreated() {
+        return instance != null;
+    }
+
+    @Override
+    public String call(String[] args) {
+        return getInstance().call(args);
+    }
+
+    @Override
+    public CompletionStage<String> callAsync(String[] args) {
+        return getInstance().callAsync(args);
+    }
+
+    @Override
+    public String call(ArgumentView args) {
+        return getInstance().call(args);
+    }
+
+    @Override
+    public void call(ArgumentView args, Appendable out) throws IOException {
+        getInstance().call(args, out);
+    }
+
+    @Override
+    public CompletionStage<String> callAsync(ArgumentView args) {
+        return getInstance().callAsync(args);
+    }
+
+    @Override
+    public boolean isParallelSafe() {
+        // the command may override the method instead of being annotated
+        return catalog.isParallelSafe(index) || getInstance().isParallelSafe();
+    }
+
+    /**
+     * @return {@code true} if the catalog tells that the command is
+     * parallel-safe, without creating it
+     */
+    boolean isDeclaredParallelSafe() {
+        return catalog.isParallelSafe(index);
+    }
+
+    @Override
+    public String getDescription() {
+        return catalog.getDescription(index);
+    }
+
+    DispatchPolicy getPolicy() {
+        return catalog.getPolicy(index);
+    }
+
+    boolean isCacheable() {
+        return catalog.isCacheable(index);
+    }
+
+    long getCacheTtlMillis() {
+        return catalog.getCacheTtlMillis(index);
+    }
+
+    int getCacheMaxEntries() {
+        return catalog.getCacheMaxEntries(index);
+    }
+}
@@ -0,0 +1,372 @@
+package com.maciejors.jscp.core;
+
+import java.util.Arrays;
+
+/**
+ * Single-pass lexer splitting a line into the command token and the
+ * command's arguments.
+ * <br><br>
+ * The line is scanned exactly once by a small character state machine.
+ * Only the boundaries of the tokens are recorded while scanning, so the
+ * arguments are materialized once, straight into an array of the exact
+ * size.
+ * <br><br>
+ * Lexing rules:
+ * <ul>
+ *     <li>tokens are separated by one or more spaces</li>
+ *     <li>the first token is the command token and is taken verbatim</li>
+ *     <li>an argument wrapped in double quotes can contain spaces</li>
+ *     <li>{@code \"} stands for a double quote, both inside and outside
+ *     of the quotes. Any other backslash is taken literally</li>
+ *     <li>any other double quote is a syntax error</li>
+ * </ul>
+ * A lexer can be {@link #reset} to lex another line, reusing its buffers.
+ */
+final class LineLexer {
+
+    // states of the lexer
+    private static final int BETWEEN_TOKENS = 0;
+    private static final int COMMAND_TOKEN = 1;
+    private static final int UNQUOTED = 2;
+    private static final int UNQUOTED_ESCAPE = 3;
+    private static final int QUOTED = 4;
+    private static final int QUOTED_ESCAPE = 5;
+    private static final int AFTER_CLOSING_QUOTE = 6;
+
+    /**
+     * Each argument occupies 3 consecutive slots of {@link #bounds}: start
+     * index, end index (exclusive) and a flag telling whether the argument
+     * contains escaped double quotes
+     */
+    private static final int STRIDE = 3;
+
+    private CharSequence line;
+
+    private int commandStart = -1;
+    private int commandEnd = -1;
+
+    private int[] bounds = new int[STRIDE * 4];
+    private int argumentCount = 0;
+
+    private String errorMessage = null;
+    private int errorPosition = -1;
+
+    private LineLexer(CharSequence line) {
+        this.line = line;
+    }
+
+    /**
+     * Creates a lexer to be {@link #reset} with the lines to lex
+     */
+    LineLexer() {
+        this("");
+    }
+
+    /**
+     * Lexes a line
+     *
+     * @param line A line of input
+     * @return A lexer holding the result of lexing
+     */
+    static LineLexer lex(String line) {
+        LineLexer lexer = new LineLexer(line);
+        lexer.run();
+        return lexer;
+    }
+
+    /**
+     * Lexes another line, discarding the result of lexing the previous one
+     *
+     * @param line A line of input
+     */
+    void reset(CharSequence line) {
+        this.line = line;
+        commandStart = -1;
+        commandEnd = -1;
+        argumentCount = 0;
+        errorMessage = null;
+        errorPosition = -1;
+        run();
+    }
+
+    private void run() {
+        int state = BETWEEN_TOKENS;
+        int tokenStart = 0;
+        boolean hasEscapes = false;
+        int length = line.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            switch (state) {
+                case BETWEEN_TOKENS:
+                    if (c == ' ') {
+                        break;
+                    }
+                    tokenStart = i;
+                    hasEscapes = false;
+                    if (commandStart < 0) {
+                        state = COMMAND_TOKEN;
+                    } else if (c == '"') {
+                        tokenStart = i + 1;
+                        state = QUOTED;
+                    } else if (c == '\\') {
+                        state = UNQUOTED_ESCAPE;
+                    } else {
+                        state = UNQUOTED;
+                    }
+                    break;
+
+                case COMMAND_TOKEN:
+                    if (c == ' ') {
+                        commandStart = tokenStart;
+                        commandEnd = i;
+                        state = BETWEEN_TOKENS;
+                    }
+                    break;
+
+                case UNQUOTED_ESCAPE:
+                    if (c == '"') {
+                        hasEscapes = true;
+                        state = UNQUOTED;
+                        break;
+                    }
+                    // the backslash was a literal one, the current
+                    // character is handled as usual
+                    state = UNQUOTED;
+                    // fall through
+                case UNQUOTED:
+                    if (c == ' ') {
+                        addArgument(tokenStart, i, hasEscapes);
+                        state = BETWEEN_TOKENS;
+                    } else if (c == '\\') {
+                        state = UNQUOTED_ESCAPE;
+                    } else if (c == '"') {
+                        fail("unescaped double quote", i);
+                        return;
+                    }
+                    break;
+
+                case QUOTED_ESCAPE:
+                    if (c == '"') {
+                        hasEscapes = true;
+                        state = QUOTED;
+                        break;
+                    }
+                    state = QUOTED;
+                    // fall through
+                case QUOTED:
+                    if (c == '\\') {
+                        state = QUOTED_ESCAPE;
+                    } else if (c == '"') {
+                        addArgument(tokenStart, i, hasEscapes);
+                        state = AFTER_CLOSING_QUOTE;
+                    }
+                    break;
+
+                case AFTER_CLOSING_QUOTE:
+                    if (c != ' ') {
+                        fail(c == '"'
+                                ? "unescaped double quote"
+                                : "missing space after closing double quote", i);
+                        return;
+                    }
+                    state = BETWEEN_TOKENS;
+                    break;
+            }
+        }
+
+        // end of the line
+        switch (state) {
+            case COMMAND_TOKEN:
+                commandStart = tokenStart;
+                commandEnd = length;
+                break;
+            case UNQUOTED:
+            case UNQUOTED_ESCAPE:
+                addArgument(tokenStart, length, hasEscapes);
+                break;
+            case QUOTED:
+            case QUOTED_ESCAPE:
+                // tokenStart points right after the opening quote
+                fail("unmatched double quote", tokenStart - 1);
+                break;
+        }
+    }
+
+    private void addArgument(int start, int end, boolean hasEscapes) {
+        int offset = argumentCount * STRIDE;
+        if (offset == bounds.length) {
+            int[] grown = new int[bounds.length * 2];
+            System.arraycopy(bounds, 0, grown, 0, bounds.length);
+            bounds = grown;
+        }
+        bounds[offset] = start;
+        bounds[offset + 1] = end;
+        bounds[offset + 2] = hasEscapes ? 1 : 0;
+        argumentCount++;
+    }
+
+    private void fail(String message, int position) {
+        errorMessage = message;
+        errorPosition = position;
+    }
+
+    /**
+     * @return {@code true} if the line contains nothing but spaces
+     */
+    boolean isBlank() {
+        return commandStart < 0;
+    }
+
+    /**
+     * Checks if the command token starts with a given prefix
+     *
+     * @param prefix Command prefix
+     */
+    boolean commandTokenStartsWith(String prefix) {
+        return !isBlank()
+                && commandEnd - commandStart >= prefix.length()
+                && startsWith(line, prefix, commandStart);
+    }
+
+    /**
+     * @return Index of the first character of the command token
+     */
+    int getCommandStart() {
+        return commandStart;
+    }
+
+    /**
+     * @return Index following the last character of the command token
+     */
+    int getCommandEnd() {
+        return commandEnd;
+    }
+
+    /**
+     * @return {@code true} if the line could not be lexed
+     */
+    boolean hasError() {
+        return errorMessage != null;
+    }
+
+    /**
+     * @return A description of the syntax error, including its (1-based)
+     * column, or {@code null} if there is no error
+     */
+    String getErrorMessage() {
+        if (errorMessage == null) {
+            return null;
+        }
+        return errorMessage + " at column " + (errorPosition + 1);
+    }
+
+    /**
+     * @return A 0-based index of the character that caused the syntax
+     * error, or {@code -1} if there is no error
+     */
+    int getErrorPosition() {
+        return errorPosition;
+    }
+
+    int getArgumentCount() {
+        return argumentCount;
+    }
+
+    /**
+     * Materializes lexed arguments
+     *
+     * @return An array of arguments without the surrounding quotes and with
+     * escaped double quotes unescaped
+     */
+    String[] getArguments() {
+        String[] args = new String[argumentCount];
+        for (int i = 0; i < argumentCount; i++) {
+            int offset = i * STRIDE;
+            int start = bounds[offset];
+            int end = bounds[offset + 1];
+            args[i] = bounds[offset + 2] == 0
+                    ? line.subSequence(start, end).toString()
+                    : unescape(line, start, end);
+        }
+        return args;
+    }
+
+    /**
+     * @return A view of the lexed arguments, sharing the bounds with this
+     * lexer
+     */
+    ArgumentView getArgumentView() {
+        return new ArgumentView(line, bounds, argumentCount);
+    }
+
+    /**
+     * Makes a reusable view show the lexed arguments, sharing the bounds
+     * with this lexer
+     */
+    void bind(ArgumentView view) {
+        view.reset(line, bounds, argumentCount);
+    }
+
+    /**
+     * @return A view of the arguments from {@code from} to {@code to}
+     * (exclusive)
+     */
+    ArgumentView getArgumentView(int from, int to) {
+        return new ArgumentView(line,
+                Arrays.copyOfRange(bounds, from * STRIDE, to * STRIDE), to - from);
+    }
+
+    int getArgumentStart(int index) {
+        return bounds[index * STRIDE];
+    }
+
+    int getArgumentEnd(int index) {
+        return bounds[index * STRIDE + 1];
+    }
+
+    /**
+     * Checks if an argument has not been enclosed in double quotes. The
+     * character preceding an unquoted argument is always a space, while a
+     * quoted one is preceded by the opening quote
+     */
+    boolean isUnquoted(int index) {
+        return line.charAt(getArgumentStart(index) - 1) != '"';
+    }
+
+    /**
+     * Checks if a sequence contains a prefix at a given offset, like
+     * {@link String#startsWith(String, int)}
+     */
+    static boolean startsWith(CharSequence s, String prefix, int offset) {
+        if (s instanceof String) {
+            return ((String) s).startsWith(prefix, offset);
+        }
+        if (offset < 0 || offset + prefix.length() > s.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces every {@code \"} in a given range with {@code "}
+     */
+    static String unescape(CharSequence s, int start, int end) {
+        StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < end && s.charAt(i + 1) == '"') {
+                builder.append('"');
+                i++;
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,258 @@
+package com.maciejors.jscp.core;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines in chunks, enforcing limits on the length of a line and of
+ * a single argument. It is meant for untrusted input: a line exceeding a
+ * limit is not kept in memory, it is skipped up to its end and reported
+ * as an error instead.
+ * <br><br>
+ * Arguments are tracked while reading, using the same rules as the
+ * statement parser (tokens separated by spaces, double quotes wrapping
+ * arguments with spaces, {@code \"} escaping a quote), so an oversized
+ * argument is detected as soon as it exceeds the limit. The state of
+ * the line (e.g. being inside a quoted argument, right after a backslash)
+ * is carried over from one chunk to the next.
+ * <br><br>
+ * Lines end with {@code \n} or {@code \r\n}. A newline always ends the
+ * line, even inside quotes.
+ */
+public final class LineReader {
+
+    // states of the argument tracking
+    private static final int BETWEEN_TOKENS = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTED_ESCAPE = 3;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Reader reader;
+    private final int maxLineLength;
+    private final int maxArgumentLength;
+
+    private final char[] chunk = new char[CHUNK_SIZE];
+    private int chunkPosition = 0;
+    private int chunkEnd = 0;
+    private boolean endOfInput = false;
+
+    private final StringBuilder line = new StringBuilder();
+    private int lineLength;
+    private int state;
+    private int tokenCount;
+    private int tokenLength;
+
+    /**
+     * Whether {@link #line} holds a complete line, which is materialized
+     * as {@link #currentLine} only when asked for
+     */
+    private boolean hasLine = false;
+    private String currentLine = null;
+    private String error = null;
+
+    // the errors are the same for every skipped line
+    private final String lineTooLongError;
+    private final String argumentTooLongError;
+
+    /**
+     * @param reader            Source of the lines
+     * @param maxLineLength     Maximum number of characters in a line
+     * @param maxArgumentLength Maximum number of characters in a single
+     *                          argument (including escape characters)
+     */
+    public LineReader(Reader reader, int maxLineLength, int maxArgumentLength) {
+        if (maxLineLength <= 0 || maxArgumentLength <= 0) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        this.reader = reader;
+        this.maxLineLength = maxLineLength;
+        this.maxArgumentLength = maxArgumentLength;
+        this.lineTooLongError = "line too long (max " + maxLineLength + " characters)";
+        this.argumentTooLongError = "argument too long (max " + maxArgumentLength + " characters)";
+    }
+
+    /**
+     * Reads the next line. Afterwards, either {@link #getLine()} returns
+     * it, or {@link #getError()} tells why it has been skipped
+     *
+     * @return {@code false} at the end of the input
+     * @throws IOException if reading fails
+     */
+    public boolean next() throws IOException {
+        line.setLength(0);
+        // the buffer of a huge line does not outlive it
+        if (line.capacity() > CHUNK_SIZE) {
+            line.trimToSize();
+        }
+        lineLength = 0;
+        state = BETWEEN_TOKENS;
+        tokenCount = 0;
+        tokenLength = 0;
+        hasLine = false;
+        currentLine = null;
+        error = null;
+
+        boolean read = false;
+        while (true) {
+            if (chunkPosition == chunkEnd) {
+                if (endOfInput || !fill()) {
+                    break;
+                }
+            }
+            read = true;
+            int start = chunkPosition;
+            int end = start;
+            boolean newline = false;
+            while (end < chunkEnd) {
+                char c = chunk[end];
+                if (c == '\n') {
+                    newline = true;
+                    break;
+                }
+                if (error == null) {
+                    track(c);
+                }
+                end++;
+            }
+            if (error == null) {
+                line.append(chunk, start, end - start);
+            }
+            chunkPosition = newline ? end + 1 : end;
+            if (newline) {
+                break;
+            }
+        }
+        if (!read) {
+            return false;
+        }
+
+        if (error == null) {
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(length - 1);
+            }
+            hasLine = true;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(chunk);
+        } while (read == 0);
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        chunkPosition = 0;
+        chunkEnd = read;
+        return true;
+    }
+
+    /**
+     * Accounts for a character of the line, checking the limits
+     */
+    private void track(char c) {
+        if (++lineLength > maxLineLength) {
+            fail(lineTooLongError);
+            return;
+        }
+        switch (state) {
+            case BETWEEN_TOKENS:
+                if (c == ' ') {
+                    return;
+                }
+                tokenCount++;
+                tokenLength = 0;
+                // the command token is taken verbatim
+                if (c == '"' && tokenCount > 1) {
+                    state = QUOTED;
+                    return;
+                }
+                state = UNQUOTED;
+                tokenLength = 1;
+                break;
+
+            case UNQUOTED:
+                if (c == ' ') {
+                    state = BETWEEN_TOKENS;
+                    return;
+                }
+                tokenLength++;
+                break;
+
+            case QUOTED_ESCAPE:
+                tokenLength++;
+                if (c == '"') {
+                    state = QUOTED;
+                    break;
+                }
+                state = QUOTED;
+                if (c == '\\') {
+                    state = QUOTED_ESCAPE;
+                }
+                break;
+
+            case QUOTED:
+                if (c == '"') {
+                    // a space has to follow, otherwise the parser reports it
+                    state = BETWEEN_TOKENS;
+                    return;
+                }
+                tokenLength++;
+                if (c == '\\') {
+                    state = QUOTED_ESCAPE;
+                }
+                break;
+        }
+        if (tokenCount > 1 && tokenLength > maxArgumentLength) {
+            fail(argumentTooLongError);
+        }
+    }
+
+    private void fail(String message) {
+        error = message;
+        // the part read so far is not needed anymore
+        line.setLength(0);
+    }
+
+    /**
+     * @return The line read by {@link #next()} without the line terminator,
+     * or {@code null} if it has exceeded a limit
+     */
+    public String getLine() {
+        if (hasLine && currentLine == null) {
+            currentLine = line.toString();
+        }
+        return currentLine;
+    }
+
+    /**
+     * @return The line read by {@link #next()}, without copying it, or
+     * {@code null} if it has exceeded a limit. The characters are only
+     * valid until the next line is read
+     */
+    CharSequence getLineChars() {
+        return hasLine ? line : null;
+    }
+
+    /**
+     * @return Why the line read by {@link #next()} has been skipped, or
+     * {@code null} if it has not
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return {@code true} if the next line can be read, at least partly,
+     * without blocking
+     * @throws IOException if checking the source fails
+     */
+    public boolean ready() throws IOException {
+        return chunkPosition < chunkEnd || reader.ready();
+    }
+}
@@ -0,0 +1,245 @@
+package com.maciejors.jscp.core;
+
+/**
+ * A named sequence of command calls with positional parameters, defined
+ * with a {@code def} statement and called like any other command.
+ * <br><br>
+ * The steps are compiled once: the commands are resolved when the macro
+ * is defined and the arguments are kept as templates, in which only the
+ * parameters get substituted. A call therefore neither parses anything
+ * nor looks the commands up, unless the registered commands have changed
+ * in the meantime, in which case the names are resolved again once.
+ * <br><br>
+ * The steps are executed in order, except for the ones whose condition
+ * on the value of the previous step does not hold. The value of the macro
+ * is the value of the last executed step, or an empty string if no step
+ * has been executed. A step which throws an
+ * exception gets an error value instead, so that the following steps can
+ * react to it.
+ */
+final class Macro extends Command {
+
+    // conditions of the steps
+    static final int ALWAYS = 0;
+    static final int IF_OK = 1;
+    static final int IF_ERROR = 2;
+    static final int IF_EQUALS = 3;
+
+    private static final String ERROR_PREFIX = "Error: ";
+
+    /**
+     * Limits macros calling one another, so that a cycle ends with an
+     * error instead of a stack overflow
+     */
+    static final int MAX_DEPTH = 32;
+
+    private static final ThreadLocal<int[]> DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * A compiled command call of the macro
+     */
+    static final class Step {
+        final int condition;
+
+        /**
+         * Value compared by {@link #IF_EQUALS}, unless it is a parameter
+         */
+        final String expected;
+
+        /**
+         * 0-based index of the parameter compared by {@link #IF_EQUALS} or
+         * {@code -1}
+         */
+        final int expectedParameter;
+
+        final String commandName;
+
+        /**
+         * Arguments of the call, with {@code null} in place of parameters
+         */
+        final String[] args;
+
+        /**
+         * 0-based index of the parameter for each argument or {@code -1},
+         * {@code null} if there are no parameters
+         */
+        final int[] parameters;
+
+        /**
+         * The arguments, shared by all the calls if there are no parameters
+         */
+        final ArgumentView constantArgs;
+
+        Step(int condition, String expected, int expectedParameter,
+             String commandName, String[] args, int[] parameters) {
+            this.condition = condition;
+            this.expected = expected;
+            this.expectedParameter = expectedParameter;
+            this.commandName = commandName;
+            this.args = args;
+            this.parameters = parameters;
+            this.constantArgs = parameters == null ? ArgumentView.of(args) : null;
+        }
+
+        boolean holds(String previous, ArgumentView params) {
+            switch (condition) {
+                case IF_OK:
+                    return !isError(previous);
+                case IF_ERROR:
+                    return isError(previous);
+                case IF_EQUALS:
+                    String value = expectedParameter < 0
+                            ? expected
+                            : params.getString(expectedParameter);
+                    return value.equals(previous);
+                default:
+                    return true;
+            }
+        }
+
+        ArgumentView bind(ArgumentView params) {
+            if (parameters == null) {
+                return constantArgs;
+            }
+            String[] bound = args.clone();
+            for (int i = 0; i < bound.length; i++) {
+                if (parameters[i] >= 0) {
+                    bound[i] = params.getString(parameters[i]);
+                }
+            }
+            return ArgumentView.of(bound);
+        }
+    }
+
+    /**
+     * Commands of the steps, resolved against a version of the
+     * registrations
+     */
+    private static final class Resolved {
+        final long registrationVersion;
+        final Command[] commands;
+
+        Resolved(long registrationVersion, Command[] commands) {
+            this.registrationVersion = registrationVersion;
+            this.commands = commands;
+        }
+    }
+
+    private final String name;
+    private final String source;
+    private final Step[] steps;
+    private final int arity;
+    private final CommandManager commandManager;
+
+    private volatile Resolved resolved;
+
+    /**
+     * @param source   The definition, used as the description
+     * @param steps    Compiled steps
+     * @param commands Commands of the steps, as resolved by the parser
+     * @param arity    Number of the parameters
+     */
+    Macro(String name, String source, Step[] steps, Command[] commands, int arity,
+          CommandManager commandManager) {
+        this.name = name;
+        this.source = source;
+        this.steps = steps;
+        this.arity = arity;
+        this.commandManager = commandManager;
+        this.resolved = new Resolved(commandManager.getRegistrationVersion(), commands);
+    }
+
+    /**
+     * @return Commands of the steps, resolved again by their full names if
+     * the registrations have changed. Commands which have been
+     * unregistered are {@code null}
+     */
+    private Command[] resolve() {
+        long version = commandManager.getRegistrationVersion();
+        Resolved current = resolved;
+        if (current.registrationVersion == version) {
+            return current.commands;
+        }
+        CommandIndex index = commandManager.getCommandIndex();
+        Command[] commands = new Command[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            String commandName = steps[i].commandName;
+            int entry = index.find(commandName, 0, commandName.length());
+            commands[i] = entry < 0 ? null : index.getCommand(entry);
+        }
+        resolved = new Resolved(version, commands);
+        return commands;
+    }
+
+    @Override
+    public String call(String[] args) {
+        return call(ArgumentView.of(args));
+    }
+
+    @Override
+    public String call(ArgumentView args) {
+        if (args.size() < arity) {
+            return ERROR_PREFIX + name + " expects " + arity
+                    + (arity == 1 ? " argument" : " arguments");
+        }
+        int[] depth = DEPTH.get();
+        if (depth[0] >= MAX_DEPTH) {
+            return ERROR_PREFIX + "macros nested too deeply";
+        }
+        depth[0]++;
+        try {
+            Command[] commands = resolve();
+            String value = null;
+            for (int i = 0; i < steps.length; i++) {
+                Step step = steps[i];
+                if (!step.holds(value, args)) {
+                    continue;
+                }
+                if (commands[i] == null) {
+                    value = ERROR_PREFIX + "command not found: " + step.commandName;
+                    continue;
+                }
+                try {
+                    value = commands[i].call(step.bind(args));
+                } catch (RuntimeException err) {
+                    value = ERROR_PREFIX + step.commandName + " failed: "
+                            + (err.getMessage() != null
+                            ? err.getMessage()
+                            : err.getClass().getSimpleName());
+                }
+            }
+            // every step may have been skipped
+            return value != null ? value : "";
+        } finally {
+            depth[0]--;
+        }
+    }
+
+    private static boolean isError(String value) {
+        return value != null && value.startsWith(ERROR_PREFIX);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getArity() {
+        return arity;
+    }
+
+    /**
+     * @return The definition, as written in the line
+     */
+    String getSource() {
+        return source;
+    }
+
+    Step[] getSteps() {
+        return steps;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Macro: " + source;
+    }
+}
@@ -0,0 +1,39 @@
+package com.maciejors.jscp.core;
+
+/**
+ * Receives the resources used by each executed command, split into the
+ * parse phase (tokenizing the line and resolving the command) and the
+ * execution phase (dispatching the call and running the command). Like
+ * {@link ExecutionListener}s, it is called by the thread executing the
+ * command, right after it returns.
+ * <br><br>
+ * CPU time and allocated bytes are measured for the executing thread, so
+ * the work a command hands over to other threads is not included. For
+ * {@link AsyncCommand}s that is the work done until the command returns
+ * its stage. They
+ * are {@code -1} if the JVM cannot measure them.
+ *
+ * @see CommandProcessor#startProfiling(ProfilingListener)
+ * @see com.maciejors.jscp.metrics.CommandProfiler
+ */
+public interface ProfilingListener {
+
+    /**
+     * Invoked after a command call has been executed
+     *
+     * @param commandName             Name of the called command
+     * @param parseNanos              Wall time of the parse phase
+     * @param parseCpuNanos           CPU time of the parse phase
+     * @param parseAllocatedBytes     Bytes allocated in the parse phase
+     * @param executionNanos          Wall time of the execution phase
+     * @param executionCpuNanos       CPU time of the execution phase
+     * @param executionAllocatedBytes Bytes allocated in the execution
+     *                                phase
+     * @param failed                  {@code true} if the command has
+     *                                thrown an exception
+     */
+    void commandProfiled(String commandName,
+                         long parseNanos, long parseCpuNanos, long parseAllocatedBytes,
+                         long executionNanos, long executionCpuNanos,
+                         long executionAllocatedBytes, boolean failed);
+}
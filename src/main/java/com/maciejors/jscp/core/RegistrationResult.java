@@ -0,0 +1,59 @@
+package com.maciejors.jscp.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of {@link CommandManager#registerAll(Map)}
+ */
+public final class RegistrationResult {
+
+    private final List<String> registered;
+    private final List<String> replaced;
+    private final Map<String, String> rejected;
+
+    RegistrationResult(List<String> registered, List<String> replaced,
+                       Map<String, String> rejected) {
+        this.registered = Collections.unmodifiableList(registered);
+        this.replaced = Collections.unmodifiableList(replaced);
+        this.rejected = Collections.unmodifiableMap(rejected);
+    }
+
+    /**
+     * @return Names of the commands which have not been registered before
+     */
+    public List<String> getRegistered() {
+        return registered;
+    }
+
+    /**
+     * @return Names of the commands which have overridden already
+     * registered commands
+     */
+    public List<String> getReplaced() {
+        return replaced;
+    }
+
+    /**
+     * @return Commands which have not been registered, mapped to the
+     * reasons why
+     */
+    public Map<String, String> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return {@code true} if all the commands have been registered
+     */
+    public boolean isSuccessful() {
+        return rejected.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "RegistrationResult{registered=" + registered.size() +
+                ", replaced=" + replaced.size() +
+                ", rejected=" + rejected + "}";
+    }
+}
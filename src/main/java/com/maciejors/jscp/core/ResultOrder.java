@@ -0,0 +1,17 @@
+package com.maciejors.jscp.core;
+
+/**
+ * Order in which results of concurrently executed lines are delivered
+ */
+public enum ResultOrder {
+
+    /**
+     * Results are delivered in the order of the input lines
+     */
+    INPUT,
+
+    /**
+     * Results are delivered as soon as the lines finish executing
+     */
+    COMPLETION
+}
@@ -0,0 +1,92 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.core.statements.Statement;
+
+import java.io.IOException;
+
+/**
+ * A command call owned by a single thread, which parses every line it
+ * executes into the same objects: the lexer, the view of the arguments
+ * and the arrays materializing them are reused from one line to the next.
+ * <br><br>
+ * The call is acquired for the time of executing a line. A line executed
+ * while the call is in use (i.e. by a command calling the processor
+ * again) is parsed as usual, into new objects.
+ *
+ * @see CommandProcessor#setLowAllocationMode(boolean)
+ */
+final class ReusableCall extends Statement {
+
+    /**
+     * Lines with more arguments get new arrays
+     */
+    private static final int MAX_REUSED_ARITY = 16;
+
+    private final LineLexer lexer = new LineLexer();
+
+    private final ArgumentView args = new ArgumentView(MAX_REUSED_ARITY);
+
+    private String commandName;
+
+    private Command command;
+
+    private boolean inUse = false;
+
+    /**
+     * @return {@code true} if the call has been acquired, {@code false} if
+     * it is already in use
+     */
+    boolean acquire() {
+        if (inUse) {
+            return false;
+        }
+        inUse = true;
+        return true;
+    }
+
+    void release() {
+        // neither the command nor the line are kept reachable
+        command = null;
+        commandName = null;
+        lexer.reset("");
+        lexer.bind(args);
+        inUse = false;
+    }
+
+    /**
+     * @return The lexer to lex the line with
+     */
+    LineLexer getLexer() {
+        return lexer;
+    }
+
+    /**
+     * Makes this statement call a command with the arguments lexed by
+     * {@link #getLexer()}
+     */
+    void set(String commandName, Command command) {
+        this.commandName = commandName;
+        this.command = command;
+        lexer.bind(args);
+    }
+
+    @Override
+    public String execute() {
+        return command.call(args);
+    }
+
+    @Override
+    public void executeTo(Appendable out) throws IOException {
+        command.call(args, out);
+    }
+
+    @Override
+    public boolean isParallelSafe() {
+        return command.isParallelSafe();
+    }
+
+    @Override
+    public String getCommandName() {
+        return commandName;
+    }
+}
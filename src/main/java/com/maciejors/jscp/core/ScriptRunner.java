@@ -0,0 +1,485 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.core.CommandProcessor.ParsedStatement;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Executes script files - files containing one line to be executed per
+ * line - without copying them through the heap.
+ * <br><br>
+ * The script is memory-mapped and split into chunks, each of them
+ * consisting of whole lines. Chunks can be executed in parallel. The
+ * output of a chunk is printed as it is produced once all the chunks
+ * before it are done, so it stays in the order of the script. Until then
+ * it is buffered, and a chunk whose buffer is full waits. Commands
+ * which are not {@link com.maciejors.jscp.annotations.ParallelSafe} are
+ * still never executed concurrently, however lines of different chunks
+ * can be executed in any order, so parallel execution is only suitable for
+ * scripts consisting of independent lines.
+ * <br><br>
+ * Progress can be checkpointed to a file. The checkpoint holds the offset
+ * of the first byte of the script which has not been executed yet, so an
+ * interrupted run started again with the same checkpoint file resumes
+ * from that offset instead of executing the script from the beginning.
+ * The checkpoint also holds the size and the modification time of the
+ * script, so it is not applied to a script which has changed since, and
+ * it is deleted once the whole script has been executed.
+ */
+public class ScriptRunner {
+
+    private static final byte NEWLINE = '\n';
+
+    /**
+     * Checkpoint file content: the offset, the size and the modification
+     * time of the script
+     */
+    private static final int CHECKPOINT_SIZE = 3 * Long.BYTES;
+
+    /**
+     * Number of characters of output a chunk buffers while the chunks
+     * before it are not done
+     */
+    private static final int CHUNK_OUTPUT_LIMIT = 1 << 20;
+
+    private final CommandProcessor commandProcessor;
+
+    private long chunkSize = 64L * 1024 * 1024;
+
+    private int parallelism = 1;
+
+    private Path checkpointFile = null;
+
+    private int checkpointInterval = 1000;
+
+    /**
+     * Makes sure that commands which are not parallel-safe are never
+     * executed concurrently
+     */
+    private final Object serialLock = new Object();
+
+    /**
+     * @param commandProcessor A processor executing the lines
+     */
+    public ScriptRunner(CommandProcessor commandProcessor) {
+        this.commandProcessor = commandProcessor;
+    }
+
+    /**
+     * Executes a script, resuming from the checkpoint if it has been set
+     * and the checkpoint file exists. The checkpoint file is deleted once
+     * the script has been executed
+     *
+     * @param script Path of the script file
+     * @param output A stream where the output will be printed
+     * @return Number of executed lines
+     * @throws IOException if the script cannot be read, or the checkpoint
+     *                     cannot be read or written or does not match the
+     *                     script
+     */
+    public long run(Path script, PrintStream output) throws IOException {
+        try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ);
+             Checkpoint checkpoint = Checkpoint.open(checkpointFile, channel.size(),
+                     Files.getLastModifiedTime(script).toMillis())) {
+            long size = channel.size();
+            long start = checkpoint == null ? 0 : checkpoint.offset;
+            List<long[]> chunks = splitIntoChunks(channel, start, size);
+
+            long executedLines = parallelism == 1 || chunks.size() == 1
+                    ? runSequentially(channel, chunks, output, checkpoint)
+                    : runInParallel(channel, chunks, output, checkpoint);
+            if (checkpoint != null) {
+                output.flush();
+                // a finished script is executed from the beginning next time
+                checkpoint.delete();
+            }
+            return executedLines;
+        }
+    }
+
+    private long runSequentially(FileChannel channel, List<long[]> chunks,
+                                 PrintStream output, Checkpoint checkpoint)
+            throws IOException {
+        long executedLines = 0;
+        for (long[] chunk : chunks) {
+            MappedByteBuffer buffer = map(channel, chunk);
+            LineDecoder decoder = new LineDecoder(buffer);
+            int lineStart = 0;
+            int limit = buffer.limit();
+            for (int i = 0; i < limit; i++) {
+                if (buffer.get(i) != NEWLINE && i != limit - 1) {
+                    continue;
+                }
+                int lineEnd = buffer.get(i) == NEWLINE ? i : i + 1;
+                output.println(commandProcessor.executeLine(
+                        decoder.decode(lineStart, lineEnd)));
+                lineStart = i + 1;
+                executedLines++;
+
+                if (checkpoint != null && executedLines % checkpointInterval == 0) {
+                    output.flush();
+                    checkpoint.save(chunk[0] + lineStart);
+                }
+            }
+            if (checkpoint != null) {
+                output.flush();
+                checkpoint.save(chunk[1]);
+            }
+        }
+        return executedLines;
+    }
+
+    private long runInParallel(FileChannel channel, List<long[]> chunks,
+                               PrintStream output, Checkpoint checkpoint)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            // outputs of the chunks waiting to be printed are buffered,
+            // so only a few chunks are submitted ahead
+            int ahead = 2 * parallelism;
+            List<ChunkOutput> outputs = new ArrayList<>(chunks.size());
+            List<Future<Long>> futures = new ArrayList<>(chunks.size());
+            for (int i = 0; i < Math.min(ahead, chunks.size()); i++) {
+                submitChunk(executor, channel, chunks.get(i), outputs, futures);
+            }
+
+            long executedLines = 0;
+            // printing results in order, as soon as possible
+            for (int i = 0; i < chunks.size(); i++) {
+                if (i + ahead < chunks.size()) {
+                    submitChunk(executor, channel, chunks.get(i + ahead), outputs, futures);
+                }
+                // the oldest chunk writes straight to the output
+                outputs.get(i).streamTo(output);
+                outputs.set(i, null);
+                executedLines += futures.get(i).get();
+                if (checkpoint != null) {
+                    output.flush();
+                    checkpoint.save(chunks.get(i)[1]);
+                }
+            }
+            return executedLines;
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Script execution interrupted", err);
+        } catch (ExecutionException err) {
+            if (err.getCause() instanceof IOException) {
+                throw (IOException) err.getCause();
+            }
+            if (err.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) err.getCause();
+            }
+            throw new IOException(err.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void submitChunk(ExecutorService executor, FileChannel channel, long[] chunk,
+                             List<ChunkOutput> outputs, List<Future<Long>> futures) {
+        ChunkOutput chunkOutput = new ChunkOutput();
+        outputs.add(chunkOutput);
+        futures.add(executor.submit(() -> runChunk(channel, chunk, chunkOutput)));
+    }
+
+    /**
+     * Output of a chunk, buffered up to {@link #CHUNK_OUTPUT_LIMIT}
+     * characters until the chunks before it are done and then written
+     * straight to the output
+     */
+    private static final class ChunkOutput {
+        private final StringBuilder buffer = new StringBuilder();
+
+        /**
+         * The output once the chunk is the oldest one, {@code null} before
+         */
+        private PrintStream out = null;
+
+        synchronized void println(String line) throws InterruptedException {
+            while (out == null && buffer.length() >= CHUNK_OUTPUT_LIMIT) {
+                wait();
+            }
+            if (out != null) {
+                out.println(line);
+            } else {
+                buffer.append(line).append(System.lineSeparator());
+            }
+        }
+
+        synchronized void streamTo(PrintStream output) {
+            output.append(buffer);
+            buffer.setLength(0);
+            buffer.trimToSize();
+            out = output;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return Number of executed lines
+     */
+    private long runChunk(FileChannel channel, long[] chunk, ChunkOutput output)
+            throws IOException, InterruptedException {
+        MappedByteBuffer buffer = map(channel, chunk);
+        LineDecoder decoder = new LineDecoder(buffer);
+        long lines = 0;
+        int lineStart = 0;
+        int limit = buffer.limit();
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) != NEWLINE && i != limit - 1) {
+                continue;
+            }
+            int lineEnd = buffer.get(i) == NEWLINE ? i : i + 1;
+            String line = decoder.decode(lineStart, lineEnd);
+            output.println(execute(line));
+            lineStart = i + 1;
+            lines++;
+        }
+        return lines;
+    }
+
+    private String execute(String line) {
+        ParsedStatement parsed = commandProcessor.parseMeasured(line, null);
+        if (parsed == null) {
+            return "";
+        }
+        if (parsed.statement.isParallelSafe()) {
+            return commandProcessor.execute(parsed);
+        }
+        synchronized (serialLock) {
+            return commandProcessor.execute(parsed);
+        }
+    }
+
+    /**
+     * Splits a part of the script into chunks of whole lines
+     *
+     * @return A list of [start, end) byte ranges
+     */
+    private List<long[]> splitIntoChunks(FileChannel channel, long start, long size)
+            throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        while (start < size) {
+            long end = Math.min(start + chunkSize, size);
+            // moving the end of the chunk right after the next newline
+            long position = end - 1;
+            while (end < size) {
+                probe.clear();
+                int read = channel.read(probe, position);
+                int newline = -1;
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == NEWLINE) {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end = position + newline + 1;
+                    break;
+                }
+                position += read;
+                end = Math.min(position, size);
+            }
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("Line at offset " + start + " is too long");
+            }
+            chunks.add(new long[]{start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long[] chunk)
+            throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+    }
+
+    /**
+     * Decodes lines through a reused array
+     */
+    private static final class LineDecoder {
+
+        private final ByteBuffer view;
+
+        private byte[] bytes = new byte[256];
+
+        LineDecoder(ByteBuffer buffer) {
+            this.view = buffer.duplicate();
+        }
+
+        String decode(int start, int end) {
+            if (end > start && view.get(end - 1) == '\r') {
+                end--;
+            }
+            int length = end - start;
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            view.position(start);
+            view.get(bytes, 0, length);
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * An open checkpoint file
+     */
+    private static final class Checkpoint implements AutoCloseable {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final long scriptSize;
+        private final long scriptModified;
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+
+        /**
+         * Offset of the first byte of the script not executed yet
+         */
+        long offset = 0;
+
+        private Checkpoint(Path file, FileChannel channel, long scriptSize, long scriptModified) {
+            this.file = file;
+            this.channel = channel;
+            this.scriptSize = scriptSize;
+            this.scriptModified = scriptModified;
+        }
+
+        /**
+         * @param scriptModified Modification time of the script, in
+         *                       milliseconds since the epoch
+         * @return An open checkpoint or {@code null} if checkpointing is
+         * disabled
+         */
+        static Checkpoint open(Path file, long scriptSize, long scriptModified)
+                throws IOException {
+            if (file == null) {
+                return null;
+            }
+            boolean exists = Files.exists(file) && Files.size(file) == CHECKPOINT_SIZE;
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Checkpoint checkpoint = new Checkpoint(file, channel, scriptSize, scriptModified);
+            if (exists) {
+                ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // reading the whole checkpoint
+                }
+                buffer.flip();
+                long offset = buffer.getLong();
+                long savedScriptSize = buffer.getLong();
+                long savedScriptModified = buffer.getLong();
+                if (savedScriptSize != scriptSize || savedScriptModified != scriptModified
+                        || offset > scriptSize) {
+                    channel.close();
+                    throw new IOException("Checkpoint " + file +
+                            " does not match the script");
+                }
+                checkpoint.offset = offset;
+            }
+            return checkpoint;
+        }
+
+        void save(long offset) throws IOException {
+            this.offset = offset;
+            buffer.clear();
+            buffer.putLong(offset).putLong(scriptSize).putLong(scriptModified).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            channel.force(false);
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Sets the maximum size of a chunk. Chunks are extended to whole lines,
+     * so they can be slightly bigger. The default is 64 MiB
+     *
+     * @param chunkSize Chunk size in bytes
+     */
+    public void setChunkSize(long chunkSize) {
+        if (chunkSize <= 0 || chunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " +
+                    Integer.MAX_VALUE);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of chunks executed in parallel. The default is 1,
+     * meaning the script is executed sequentially
+     *
+     * @param parallelism Number of threads executing chunks
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Enables checkpointing
+     *
+     * @param checkpointFile A file storing the progress or {@code null} to
+     *                       disable checkpointing
+     */
+    public void setCheckpointFile(Path checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public Path getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Sets how often the checkpoint is saved when executing sequentially.
+     * Parallel execution saves it after each chunk. Lines executed after
+     * the last checkpoint are executed again when resuming. The default is
+     * 1000 lines
+     *
+     * @param checkpointInterval Number of lines between checkpoints
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("checkpointInterval must be positive");
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+}
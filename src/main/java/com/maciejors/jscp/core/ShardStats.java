@@ -0,0 +1,72 @@
+package com.maciejors.jscp.core;
+
+/**
+ * Statistics of a shard of a {@link ShardedDispatcher}
+ *
+ * @see ShardedDispatcher#getShardStats(int)
+ */
+public final class ShardStats {
+
+    private final int queueDepth;
+    private final long maxQueueDepth;
+    private final long executed;
+    private final long stolen;
+    private final long rejected;
+
+    ShardStats(int queueDepth, long maxQueueDepth, long executed, long stolen, long rejected) {
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.executed = executed;
+        this.stolen = stolen;
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return Number of lines waiting in the queues of the shard at the
+     * moment
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return Highest number of lines which have waited in the queues of
+     * the shard at once
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return Number of lines executed by the thread of the shard,
+     * including the stolen ones
+     */
+    public long getExecuted() {
+        return executed;
+    }
+
+    /**
+     * @return Number of lines the shard has taken from the queues of the
+     * other shards
+     */
+    public long getStolen() {
+        return stolen;
+    }
+
+    /**
+     * @return Number of lines rejected because the queues of the shard
+     * were full
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return "ShardStats{queueDepth=" + queueDepth +
+                ", maxQueueDepth=" + maxQueueDepth +
+                ", executed=" + executed +
+                ", stolen=" + stolen +
+                ", rejected=" + rejected + "}";
+    }
+}
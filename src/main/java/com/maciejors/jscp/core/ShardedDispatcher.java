@@ -0,0 +1,528 @@
+package com.maciejors.jscp.core;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Executes lines on a number of shards, each being a thread with its own
+ * queues, so that commands which are not thread-safe can still be
+ * executed in parallel with one another.
+ * <br><br>
+ * Every line is routed to a shard by the name of the command it calls,
+ * or by one of its arguments (a key) if one has been set for the command
+ * with {@link #setKeyArgument(String, int)}. So all the calls of a
+ * command, or all the calls with the same key, are executed one at a
+ * time, in the order in which they have been submitted, while the other
+ * shards execute other commands or keys. Macro definitions, blank and
+ * invalid lines all go to the first shard.
+ * <br><br>
+ * Pipelines and macro calls are routed by all the commands they call,
+ * the stages and the steps of nested macros included: they are executed
+ * by the shard which all their calls of commands not annotated with
+ * {@link com.maciejors.jscp.annotations.ParallelSafe} are routed to.
+ * Lines whose calls are routed to different shards would call a command
+ * from two threads at once, so they are not executed and get an error
+ * value instead.
+ * <br><br>
+ * Calls of commands annotated with
+ * {@link com.maciejors.jscp.annotations.ParallelSafe} (other than
+ * pipelines) are queued separately. An idle shard steals them from the
+ * other shards, so they can be executed by any shard, in any order.
+ * <br><br>
+ * The lines are executed with
+ * {@link CommandProcessor#executeLine(String)} of a single processor,
+ * so its settings, listeners and journal apply to all the shards.
+ */
+public class ShardedDispatcher implements Closeable {
+
+    /**
+     * A line waiting to be executed
+     */
+    private static final class Task {
+        final String line;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        int shard = 0;
+        boolean stealable = false;
+
+        /**
+         * Value of a line which cannot be executed by a single shard
+         */
+        String error = null;
+
+        Task(String line) {
+            this.line = line;
+        }
+    }
+
+    private static final class Shard {
+        final int index;
+
+        /**
+         * Lines executed only by this shard, in order
+         */
+        final ConcurrentLinkedQueue<Task> pinned = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Lines of parallel-safe commands, taken from the head by this
+         * shard and from the tail by the others
+         */
+        final ConcurrentLinkedDeque<Task> stealable = new ConcurrentLinkedDeque<>();
+
+        final AtomicInteger depth = new AtomicInteger();
+        final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+        final LongAdder executed = new LongAdder();
+        final LongAdder stolen = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        /**
+         * Set while the thread is about to park, so that a new line
+         * wakes it up
+         */
+        volatile boolean idle = false;
+
+        Thread thread;
+
+        Shard(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Shard of a line calling only parallel-safe commands
+     */
+    private static final int ANY_SHARD = -1;
+
+    /**
+     * Shard of a line calling commands routed to different shards
+     */
+    private static final int MANY_SHARDS = -2;
+
+    private final CommandProcessor processor;
+
+    private final Shard[] shards;
+
+    /**
+     * Index of the argument routing each command, by command name
+     */
+    private final Map<String, Integer> keyArguments = new ConcurrentHashMap<>();
+
+    private int queueCapacity = 1024;
+
+    private volatile boolean running = false;
+
+    private boolean closed = false;
+
+    /**
+     * Held while queueing a line, so that no line is queued once the
+     * threads may have finished
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    /**
+     * @param processor  Processor executing the lines
+     * @param shardCount Number of shards
+     */
+    public ShardedDispatcher(CommandProcessor processor, int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        this.processor = Objects.requireNonNull(processor);
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * Starts the threads of the shards
+     */
+    public synchronized void start() {
+        checkNotStarted();
+        // a thread which is not running yet finishes right away
+        running = true;
+        for (Shard shard : shards) {
+            shard.thread = new Thread(() -> work(shard), "jscp-shard-" + shard.index);
+            shard.thread.setDaemon(true);
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    private void checkNotStarted() {
+        if (running || closed) {
+            throw new IllegalStateException("Dispatcher already started");
+        }
+    }
+
+    /**
+     * Routes the calls of a command by one of their arguments instead of
+     * the name of the command, so that calls with different keys can be
+     * executed in parallel. Arguments are compared as written in the
+     * line. Calls without such argument are routed by the name. Has to be
+     * called before {@link #start()}
+     *
+     * @param commandName   Full name of the command
+     * @param argumentIndex 0-based index of the argument
+     */
+    public synchronized void setKeyArgument(String commandName, int argumentIndex) {
+        checkNotStarted();
+        if (argumentIndex < 0) {
+            throw new IllegalArgumentException("argumentIndex must not be negative");
+        }
+        keyArguments.put(Objects.requireNonNull(commandName), argumentIndex);
+    }
+
+    /**
+     * Limits the number of lines waiting in the queues of a single shard,
+     * the default is 1024. Lines submitted to a full shard are rejected.
+     * Has to be called before {@link #start()}
+     *
+     * @param queueCapacity Maximum number of lines waiting in a shard
+     */
+    public synchronized void setQueueCapacity(int queueCapacity) {
+        checkNotStarted();
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public synchronized int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Queues a line on the shard it is routed to
+     *
+     * @param line Line to be executed
+     * @return A stage completed with the value returned by the executed
+     * statement, or failed with a {@link RejectedExecutionException} if
+     * the shard is full
+     * @throws IllegalStateException if the dispatcher is not running
+     */
+    public CompletionStage<String> submit(String line) {
+        Task task = new Task(Objects.requireNonNull(line));
+        route(task);
+        Shard shard = shards[task.shard];
+
+        closeLock.readLock().lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("Dispatcher is not running");
+            }
+            int depth = shard.depth.incrementAndGet();
+            if (depth > queueCapacity) {
+                shard.depth.decrementAndGet();
+                shard.rejected.increment();
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                        "Shard " + shard.index + " is full"));
+            }
+            shard.maxDepth.accumulate(depth);
+            if (task.stealable) {
+                shard.stealable.addLast(task);
+            } else {
+                shard.pinned.add(task);
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        wakeUp(shard, task.stealable);
+        return task.result;
+    }
+
+    /**
+     * Chooses the shard of a line
+     */
+    private void route(Task task) {
+        String line = task.line;
+        LineLexer lexer = LineLexer.lex(line);
+        if (lexer.isBlank() || !lexer.commandTokenStartsWith(processor.getCommandPrefix())) {
+            return;
+        }
+        CommandIndex index = processor.getCommandManager().getCommandIndex();
+        int entry = processor.findCommand(index, line,
+                lexer.getCommandStart(), lexer.getCommandEnd());
+        if (entry < 0) {
+            return;
+        }
+        Command command = index.getCommand(entry);
+        int pipe = processor.findPipe(lexer, line, 0);
+        if (pipe >= 0 || command instanceof Macro) {
+            routeCompound(task, index, lexer, entry, pipe);
+            return;
+        }
+        String commandName = index.getName(entry);
+
+        int hash;
+        Integer key = keyArguments.get(commandName);
+        if (key != null && key < lexer.getArgumentCount()) {
+            // the unescaped value, just like for the calls of pipelines and
+            // macros, so a key goes to the same shard either way
+            ArgumentView args = lexer.getArgumentView();
+            hash = hash(args.get(key), 0, args.length(key));
+        } else {
+            hash = commandName.hashCode();
+        }
+        task.shard = shardOf(hash);
+        task.stealable = command.isParallelSafe() && !lexer.hasError();
+    }
+
+    /**
+     * Chooses the shard of a pipeline or a macro call by all the commands
+     * it calls
+     */
+    private void routeCompound(Task task, CommandIndex index, LineLexer lexer,
+                               int firstEntry, int firstPipe) {
+        if (lexer.hasError()) {
+            return;
+        }
+        String line = task.line;
+        int shard = ANY_SHARD;
+        int entry = firstEntry;
+        int pipe = firstPipe;
+        int start = 0;
+        while (true) {
+            int end = pipe < 0 ? lexer.getArgumentCount() : pipe;
+            shard = merge(shard, shardOf(index, index.getName(entry),
+                    index.getCommand(entry), lexer.getArgumentView(start, end), 0));
+            if (pipe < 0) {
+                break;
+            }
+            // the command token follows the pipe
+            entry = processor.findCommand(index, line, lexer.getArgumentStart(pipe + 1),
+                    lexer.getArgumentEnd(pipe + 1));
+            if (entry < 0) {
+                // an invalid pipeline, which calls nothing
+                return;
+            }
+            start = pipe + 2;
+            pipe = processor.findPipe(lexer, line, start);
+        }
+
+        if (shard == MANY_SHARDS) {
+            task.error = "Error: the line calls commands of different shards";
+        } else if (shard == ANY_SHARD) {
+            task.shard = shardOf(index.getName(firstEntry).hashCode());
+            task.stealable = true;
+        } else {
+            task.shard = shard;
+        }
+    }
+
+    /**
+     * @return Shard of a call, {@link #ANY_SHARD} if it calls only
+     * parallel-safe commands or {@link #MANY_SHARDS} if it is a macro
+     * calling commands of different shards
+     */
+    private int shardOf(CommandIndex index, String commandName, Command command,
+                        ArgumentView args, int depth) {
+        if (command instanceof Macro) {
+            Macro macro = (Macro) command;
+            if (args.size() < macro.getArity() || depth >= Macro.MAX_DEPTH) {
+                // the call ends with an error before calling anything
+                return ANY_SHARD;
+            }
+            int shard = ANY_SHARD;
+            for (Macro.Step step : macro.getSteps()) {
+                int entry = index.find(step.commandName, 0, step.commandName.length());
+                if (entry >= 0) {
+                    shard = merge(shard, shardOf(index, step.commandName,
+                            index.getCommand(entry), step.bind(args), depth + 1));
+                }
+            }
+            return shard;
+        }
+        if (command.isParallelSafe()) {
+            return ANY_SHARD;
+        }
+        Integer key = keyArguments.get(commandName);
+        if (key != null && key < args.size()) {
+            return shardOf(hash(args.get(key), 0, args.length(key)));
+        }
+        return shardOf(commandName.hashCode());
+    }
+
+    private static int merge(int shard, int other) {
+        if (shard == ANY_SHARD) {
+            return other;
+        }
+        return other == ANY_SHARD || other == shard ? shard : MANY_SHARDS;
+    }
+
+    private int shardOf(int hash) {
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    private static int hash(CharSequence chars, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Wakes up the shard of a new line and, if the line can be stolen and
+     * the shard has other lines to execute first, another shard which is
+     * idle
+     */
+    private void wakeUp(Shard shard, boolean stealable) {
+        if (shard.idle) {
+            LockSupport.unpark(shard.thread);
+        }
+        if (stealable && (shard.depth.get() > 1 || !shard.idle)) {
+            wakeUpIdle(shard);
+        }
+    }
+
+    /**
+     * Wakes up a shard which is idle, other than the given one
+     */
+    private void wakeUpIdle(Shard shard) {
+        for (int i = 1; i < shards.length; i++) {
+            Shard other = shards[(shard.index + i) % shards.length];
+            if (other.idle) {
+                LockSupport.unpark(other.thread);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Passes the wake-up on while there are lines left to steal, since a
+     * shard woken up twice takes only one of them
+     */
+    private void propagateWakeUp(Shard shard) {
+        for (Shard other : shards) {
+            if (!other.stealable.isEmpty()) {
+                wakeUpIdle(shard);
+                return;
+            }
+        }
+    }
+
+    private void work(Shard shard) {
+        while (true) {
+            Task task = take(shard);
+            if (task == null) {
+                if (!running && shard.depth.get() == 0) {
+                    return;
+                }
+                shard.idle = true;
+                // a line queued before the flag has been set is not missed
+                task = take(shard);
+                if (task == null && running) {
+                    LockSupport.park(this);
+                }
+                shard.idle = false;
+                if (task == null) {
+                    continue;
+                }
+            }
+            if (task.stealable) {
+                propagateWakeUp(shard);
+            }
+            execute(task);
+            shard.executed.increment();
+        }
+    }
+
+    /**
+     * @return A line of the shard or a line stolen from another shard,
+     * {@code null} if there is none
+     */
+    private Task take(Shard shard) {
+        Task task = shard.pinned.poll();
+        if (task == null) {
+            task = shard.stealable.pollFirst();
+        }
+        if (task != null) {
+            shard.depth.decrementAndGet();
+            return task;
+        }
+        for (int i = 1; i < shards.length; i++) {
+            Shard victim = shards[(shard.index + i) % shards.length];
+            task = victim.stealable.pollLast();
+            if (task != null) {
+                victim.depth.decrementAndGet();
+                shard.stolen.increment();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void execute(Task task) {
+        try {
+            task.result.complete(task.error != null
+                    ? task.error
+                    : processor.executeLine(task.line));
+        } catch (RuntimeException | Error err) {
+            // the shard keeps executing the following lines
+            task.result.completeExceptionally(err);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard Index of the shard
+     * @return Statistics of the shard, including the depth of its queues
+     */
+    public ShardStats getShardStats(int shard) {
+        Shard s = shards[Objects.checkIndex(shard, shards.length)];
+        return new ShardStats(s.depth.get(), s.maxDepth.get(), s.executed.sum(),
+                s.stolen.sum(), s.rejected.sum());
+    }
+
+    public CommandProcessor getCommandProcessor() {
+        return processor;
+    }
+
+    /**
+     * Stops accepting lines, executes the lines which have been queued and
+     * waits for the threads of the shards to finish
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                closed = true;
+                return;
+            }
+            closeLock.writeLock().lock();
+            try {
+                running = false;
+                closed = true;
+            } finally {
+                closeLock.writeLock().unlock();
+            }
+        }
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        try {
+            for (Shard shard : shards) {
+                shard.thread.join();
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.core.statements.Statement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of parsed statements, keyed by the raw line and the
+ * settings of the processor which parsed it (abbreviations, pipeline
+ * short-circuiting and the length limits). Lines which are executed
+ * repeatedly (health checks, polling commands etc.) are then parsed only
+ * once.
+ * <br><br>
+ * When the cache is full, the least recently used statement is evicted.
+ * The whole cache is invalidated whenever the set of commands registered
+ * in the {@link CommandManager} changes, so a cached statement never
+ * calls a command that has been replaced.
+ * <br><br>
+ * The cache is thread-safe and can be shared by multiple
+ * {@link CommandProcessor}s using the same {@link CommandManager}, even if
+ * their settings differ.
+ * Cached statements (including their arguments) are shared between
+ * executions, so commands must not modify the arguments they receive.
+ *
+ * @see CommandProcessor#setStatementCache(StatementCache)
+ */
+public class StatementCache {
+
+    /**
+     * A line and the settings it has been parsed with
+     */
+    private static final class Key {
+        final String line;
+        final long parseSettings;
+
+        Key(String line, long parseSettings) {
+            this.line = line;
+            this.parseSettings = parseSettings;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return parseSettings == key.parseSettings && line.equals(key.line);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * line.hashCode() + Long.hashCode(parseSettings);
+        }
+    }
+
+    private final int maxSize;
+
+    private final Map<Key, Statement> statements;
+
+    /**
+     * Version of the {@link CommandManager} registrations the cached
+     * statements were parsed against
+     */
+    private long registrationVersion = -1;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize Maximum number of cached statements
+     */
+    public StatementCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Statement> eldest) {
+                if (size() > StatementCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Searches for a statement parsed from a given line
+     *
+     * @param line                A line of input
+     * @param parseSettings       Settings of the processor parsing the line
+     * @param registrationVersion Current version of the command manager's
+     *                            registrations
+     * @return A cached statement or {@code null} if there is none
+     */
+    Statement get(String line, long parseSettings, long registrationVersion) {
+        Statement statement;
+        synchronized (statements) {
+            if (this.registrationVersion != registrationVersion) {
+                statements.clear();
+                this.registrationVersion = registrationVersion;
+            }
+            statement = statements.get(new Key(line, parseSettings));
+        }
+        if (statement == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return statement;
+    }
+
+    /**
+     * Adds a statement to the cache
+     *
+     * @param line                A line the statement has been parsed from
+     * @param parseSettings       Settings the line has been parsed with
+     * @param statement           A parsed statement
+     * @param registrationVersion Version of the command manager's
+     *                            registrations read before parsing the line
+     */
+    void put(String line, long parseSettings, Statement statement, long registrationVersion) {
+        synchronized (statements) {
+            // the statement might have been parsed against the commands
+            // that have been replaced in the meantime
+            if (this.registrationVersion == registrationVersion) {
+                statements.put(new Key(line, parseSettings), statement);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached statements
+     */
+    public void clear() {
+        synchronized (statements) {
+            statements.clear();
+        }
+    }
+
+    /**
+     * @return Number of currently cached statements
+     */
+    public int size() {
+        synchronized (statements) {
+            return statements.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return Number of lookups which found a cached statement
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of lookups which did not find a cached statement
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of statements evicted because the cache was full
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+}
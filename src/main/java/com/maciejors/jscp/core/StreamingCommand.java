@@ -0,0 +1,58 @@
+package com.maciejors.jscp.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Parent class for commands producing large outputs, e.g. dumps or
+ * listings. Such a command writes its output piece by piece to a sink
+ * instead of returning it.
+ * <br><br>
+ * When executed by {@link CommandProcessor#executeLineTo(String, Appendable)}
+ * (and thus by the loops and the server), the sink is connected to the
+ * output, so the output is never held in memory as a whole and the first
+ * piece is delivered before the command finishes. A sink which cannot take
+ * more output blocks the command until it can. Elsewhere the output is
+ * collected into a string.
+ */
+public abstract class StreamingCommand extends Command {
+
+    /**
+     * Method invoked when calling the command
+     *
+     * @param args arguments passed when calling the command
+     * @param out  a sink for the output
+     * @throws IOException if writing to the sink fails
+     */
+    @Override
+    public abstract void call(ArgumentView args, Appendable out) throws IOException;
+
+    /**
+     * Calls the command, collecting the whole output
+     *
+     * @param args arguments passed when calling the command
+     * @return the output of the command
+     */
+    @Override
+    public String call(ArgumentView args) {
+        StringBuilder output = new StringBuilder();
+        try {
+            call(args, output);
+        } catch (IOException err) {
+            // only the command itself could have thrown it
+            throw new UncheckedIOException(err);
+        }
+        return output.toString();
+    }
+
+    /**
+     * Calls the command, collecting the whole output
+     *
+     * @param args argument passed when calling the command
+     * @return the output of the command
+     */
+    @Override
+    public String call(String[] args) {
+        return call(ArgumentView.of(args));
+    }
+}
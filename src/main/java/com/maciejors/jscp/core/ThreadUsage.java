@@ -0,0 +1,64 @@
+package com.maciejors.jscp.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the CPU time and the allocated bytes of the current thread
+ */
+final class ThreadUsage {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The same bean, if it can also measure allocations
+     */
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS =
+            THREADS instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+                    ? (com.sun.management.ThreadMXBean) THREADS
+                    : null;
+
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private ThreadUsage() {
+    }
+
+    /**
+     * Turns the measurements on, they might be disabled by default
+     */
+    static void enable() {
+        if (CPU_TIME_SUPPORTED && !THREADS.isThreadCpuTimeEnabled()) {
+            THREADS.setThreadCpuTimeEnabled(true);
+        }
+        if (ALLOCATIONS != null && !ALLOCATIONS.isThreadAllocatedMemoryEnabled()) {
+            ALLOCATIONS.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * @return CPU time of the current thread in nanoseconds, {@code -1} if
+     * it cannot be measured
+     */
+    static long cpuNanos() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * @return Bytes allocated by the current thread so far, {@code -1} if
+     * they cannot be measured
+     */
+    static long allocatedBytes() {
+        return ALLOCATIONS != null
+                ? ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId())
+                : -1;
+    }
+
+    /**
+     * @return Difference of two measurements, {@code -1} if they have not
+     * been measured
+     */
+    static long delta(long start, long end) {
+        return start < 0 || end < 0 ? -1 : end - start;
+    }
+}
@@ -0,0 +1,42 @@
+package com.maciejors.jscp.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Parent class for commands which read their arguments through an
+ * {@link ArgumentView} instead of an array of strings. Arguments they do
+ * not need as strings (e.g. numbers or keywords) are never copied out of
+ * the line.
+ */
+public abstract class ViewCommand extends Command {
+
+    /**
+     * Method invoked when calling the command
+     *
+     * @param args arguments passed when calling the command
+     * @return the value returned by command, can be {@code null}
+     */
+    @Override
+    public abstract String call(ArgumentView args);
+
+    /**
+     * Calls the command with arguments which are already materialized
+     *
+     * @param args argument passed when calling the command
+     * @return the value returned by command, can be {@code null}
+     */
+    @Override
+    public String call(String[] args) {
+        return call(ArgumentView.of(args));
+    }
+
+    @Override
+    public CompletionStage<String> callAsync(ArgumentView args) {
+        try {
+            return CompletableFuture.completedFuture(call(args));
+        } catch (RuntimeException err) {
+            return CompletableFuture.failedFuture(err);
+        }
+    }
+}
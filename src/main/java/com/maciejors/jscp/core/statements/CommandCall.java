@@ -1,24 +1,39 @@
 package com.maciejors.jscp.core.statements;
 
+import com.maciejors.jscp.core.ArgumentView;
 import com.maciejors.jscp.core.Command;
 
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Represents the command call
  */
 public class CommandCall extends Statement {
 
+    private final String commandName;
+
     private final Command command;
 
     /**
      * Arguments passed with the command call
      */
-    private final String[] args;
+    private final ArgumentView args;
 
-    public CommandCall(Command command, String[] args) {
+    public CommandCall(String commandName, Command command, ArgumentView args) {
+        this.commandName = commandName;
         this.command = command;
         this.args = args;
     }
 
+    public CommandCall(String commandName, Command command, String[] args) {
+        this(commandName, command, ArgumentView.of(args));
+    }
+
+    public CommandCall(Command command, String[] args) {
+        this(null, command, args);
+    }
+
     /**
      * Executes the command with passed arguments
      *
@@ -28,4 +43,54 @@ public class CommandCall extends Statement {
     public String execute() {
         return command.call(args);
     }
+
+    /**
+     * Executes the command, letting it write its value straight to a sink
+     *
+     * @param out A sink for the value
+     * @throws IOException if writing to the sink fails
+     */
+    @Override
+    public void executeTo(Appendable out) throws IOException {
+        command.call(args, out);
+    }
+
+    /**
+     * Calls the command asynchronously with passed arguments
+     *
+     * @return A stage completed with the value returned by the command
+     */
+    @Override
+    public CompletionStage<String> executeAsync() {
+        return command.callAsync(args);
+    }
+
+    @Override
+    public boolean isParallelSafe() {
+        return command.isParallelSafe();
+    }
+
+    /**
+     * @return Name under which the command has been called, can be
+     * {@code null} if unknown
+     */
+    @Override
+    public String getCommandName() {
+        return commandName;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * @return Materialized arguments passed with the command call
+     */
+    public String[] getArgs() {
+        return args.toArray();
+    }
+
+    public ArgumentView getArgumentView() {
+        return args;
+    }
 }
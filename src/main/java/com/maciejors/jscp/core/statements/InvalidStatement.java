@@ -2,14 +2,23 @@ package com.maciejors.jscp.core.statements;
 
 public class InvalidStatement extends Statement {
 
-    private final String errorMsg;
+    /**
+     * The error value, built once, so that an invalid statement can be
+     * shared by all the lines it stands for
+     */
+    private final String error;
 
     public InvalidStatement(String errorMsg) {
-        this.errorMsg = errorMsg;
+        this.error = "Error: " + errorMsg;
     }
 
     @Override
     public String execute() {
-        return "Error: " + errorMsg;
+        return error;
+    }
+
+    @Override
+    public boolean isParallelSafe() {
+        return true;
     }
 }
@@ -0,0 +1,49 @@
+package com.maciejors.jscp.core.statements;
+
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.core.CommandManager;
+
+/**
+ * Represents a macro definition, e.g.
+ * {@code def restart !stop $1 ; ?ok !start $1 $2}. The macro is compiled
+ * when the line is parsed; executing the statement registers it as a
+ * command, replacing a command of the same name
+ */
+public class MacroDefinition extends Statement {
+
+    private final String macroName;
+
+    private final Command macro;
+
+    private final CommandManager commandManager;
+
+    /**
+     * @param macroName      Name under which the macro is registered
+     * @param macro          The compiled macro
+     * @param commandManager Manager to register the macro in
+     */
+    public MacroDefinition(String macroName, Command macro, CommandManager commandManager) {
+        this.macroName = macroName;
+        this.macro = macro;
+        this.commandManager = commandManager;
+    }
+
+    /**
+     * Registers the macro
+     *
+     * @return A confirmation
+     */
+    @Override
+    public String execute() {
+        commandManager.registerCommand(macroName, macro);
+        return "Macro " + macroName + " defined";
+    }
+
+    public String getMacroName() {
+        return macroName;
+    }
+
+    public Command getMacro() {
+        return macro;
+    }
+}
@@ -0,0 +1,167 @@
+package com.maciejors.jscp.core.statements;
+
+import com.maciejors.jscp.core.ArgumentView;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Represents command calls chained with {@code |}, e.g.
+ * {@code !a x | !b | !c y}. The value returned by each command is passed
+ * to the next command as its last argument ({@code null} values are not
+ * passed at all), and the value returned by the last command is the value
+ * of the pipeline.
+ * <br><br>
+ * When short-circuiting is enabled, the pipeline stops at the first
+ * command which fails, i.e. throws an exception or returns an error
+ * (a value starting with {@code "Error: "}), and that error becomes the
+ * value of the pipeline. Otherwise, returned errors are passed on like any
+ * other value and exceptions are propagated.
+ */
+public class Pipeline extends Statement {
+
+    private static final String ERROR_PREFIX = "Error: ";
+
+    private final CommandCall[] stages;
+
+    private final boolean shortCircuit;
+
+    private final String commandName;
+
+    /**
+     * @param stages       Command calls in the order of execution, at
+     *                     least two
+     * @param shortCircuit Whether to stop at the first failure
+     */
+    public Pipeline(CommandCall[] stages, boolean shortCircuit) {
+        if (stages.length < 2) {
+            throw new IllegalArgumentException("a pipeline needs at least two stages");
+        }
+        this.stages = stages.clone();
+        this.shortCircuit = shortCircuit;
+
+        StringBuilder name = new StringBuilder(String.valueOf(stages[0].getCommandName()));
+        for (int i = 1; i < stages.length; i++) {
+            name.append('|').append(stages[i].getCommandName());
+        }
+        this.commandName = name.toString();
+    }
+
+    /**
+     * Executes the commands one after another
+     *
+     * @return A value returned by the last command or the first error
+     */
+    @Override
+    public String execute() {
+        String output = null;
+        for (int i = 0; i < stages.length; i++) {
+            CommandCall stage = stages[i];
+            ArgumentView args = i == 0
+                    ? stage.getArgumentView()
+                    : withInput(stage.getArgumentView(), output);
+            if (!shortCircuit) {
+                output = stage.getCommand().call(args);
+                continue;
+            }
+            try {
+                output = stage.getCommand().call(args);
+            } catch (RuntimeException err) {
+                return describe(stage, err);
+            }
+            if (isError(output)) {
+                return output;
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Calls the commands asynchronously, one after another
+     *
+     * @return A stage completed with the value returned by the last command
+     * or the first error
+     */
+    @Override
+    public CompletionStage<String> executeAsync() {
+        CompletionStage<String> output = call(stages[0], stages[0].getArgumentView());
+        for (int i = 1; i < stages.length; i++) {
+            CommandCall stage = stages[i];
+            output = output.thenCompose(input -> {
+                if (shortCircuit && isError(input)) {
+                    return CompletableFuture.completedFuture(input);
+                }
+                return call(stage, withInput(stage.getArgumentView(), input));
+            });
+        }
+        return output;
+    }
+
+    private CompletionStage<String> call(CommandCall stage, ArgumentView args) {
+        CompletionStage<String> output;
+        try {
+            output = stage.getCommand().callAsync(args);
+        } catch (RuntimeException err) {
+            output = CompletableFuture.failedFuture(err);
+        }
+        if (!shortCircuit) {
+            return output;
+        }
+        return output.handle((value, err) -> err == null ? value : describe(stage, err));
+    }
+
+    private static ArgumentView withInput(ArgumentView args, String input) {
+        if (input == null) {
+            return args;
+        }
+        String[] withInput = Arrays.copyOf(args.toArray(), args.size() + 1);
+        withInput[args.size()] = input;
+        return ArgumentView.of(withInput);
+    }
+
+    private static boolean isError(String output) {
+        return output != null && output.startsWith(ERROR_PREFIX);
+    }
+
+    private static String describe(CommandCall stage, Throwable err) {
+        Throwable cause = err instanceof CompletionException && err.getCause() != null
+                ? err.getCause()
+                : err;
+        return ERROR_PREFIX + stage.getCommandName() + " failed: " + (cause.getMessage() != null
+                ? cause.getMessage()
+                : cause.getClass().getSimpleName());
+    }
+
+    @Override
+    public boolean isParallelSafe() {
+        for (CommandCall stage : stages) {
+            if (!stage.isParallelSafe()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Names of the called commands joined with {@code |}, so that
+     * the pipeline is measured as a whole
+     */
+    @Override
+    public String getCommandName() {
+        return commandName;
+    }
+
+    /**
+     * @return Command calls in the order of execution, without the values
+     * passed between them
+     */
+    public CommandCall[] getStages() {
+        return stages.clone();
+    }
+
+    public boolean isShortCircuit() {
+        return shortCircuit;
+    }
+}
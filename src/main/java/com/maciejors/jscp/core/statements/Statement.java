@@ -1,5 +1,9 @@
 package com.maciejors.jscp.core.statements;
 
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Represents a single-line statement
  */
@@ -11,4 +15,47 @@ public abstract class Statement {
      * @return Value returned from the executed statement or {@code null}
      */
     public abstract String execute();
+
+    /**
+     * Executes the statement, writing its value to a sink. By default, the
+     * value is written at once after the statement is executed;
+     * {@code null} is written as {@code "null"}
+     *
+     * @param out A sink for the value
+     * @throws IOException if writing to the sink fails
+     */
+    public void executeTo(Appendable out) throws IOException {
+        out.append(String.valueOf(execute()));
+    }
+
+    /**
+     * Executes the statement asynchronously. By default, the statement is
+     * executed right away
+     *
+     * @return A stage completed with the value returned from the executed
+     * statement
+     */
+    public CompletionStage<String> executeAsync() {
+        try {
+            return CompletableFuture.completedFuture(execute());
+        } catch (RuntimeException err) {
+            return CompletableFuture.failedFuture(err);
+        }
+    }
+
+    /**
+     * @return {@code true} if the statement can be executed concurrently
+     * with other statements
+     */
+    public boolean isParallelSafe() {
+        return false;
+    }
+
+    /**
+     * @return Name of the command called by the statement or {@code null}
+     * if the statement does not call any command
+     */
+    public String getCommandName() {
+        return null;
+    }
 }
@@ -4,13 +4,55 @@ import com.maciejors.jscp.annotations.CommandDescription;
 import com.maciejors.jscp.core.Command;
 
 /**
- * Default exit command that can be registered by {@link com.maciejors.jscp.core.CommandManager}
+ * Default exit command that can be registered by {@link com.maciejors.jscp.core.CommandManager}.
+ * <br><br>
+ * When called by a session of a {@link com.maciejors.jscp.server.CommandServer},
+ * however it has been reached (abbreviated, in a pipeline or in a macro),
+ * it ends only that session instead of the whole program
  */
 @CommandDescription("Exits the program using System.exit()")
 public class DefaultExitCommand extends Command {
+
+    /**
+     * Ends the session running on the current thread, set by the command
+     * server for the duration of each session
+     */
+    private static final ThreadLocal<Runnable> SESSION_EXIT = new ThreadLocal<>();
+
+    /**
+     * Makes the exit commands called by the current thread end a session
+     * instead of the program
+     *
+     * @param sessionExit Action ending the session, {@code null} once the
+     *                    session has ended
+     */
+    public static void setSessionExit(Runnable sessionExit) {
+        if (sessionExit == null) {
+            SESSION_EXIT.remove();
+        } else {
+            SESSION_EXIT.set(sessionExit);
+        }
+    }
+
+    /**
+     * Ends the session running on the current thread, if there is one
+     *
+     * @return {@code true} if a session has been ended
+     */
+    public static boolean exitSession() {
+        Runnable sessionExit = SESSION_EXIT.get();
+        if (sessionExit == null) {
+            return false;
+        }
+        sessionExit.run();
+        return true;
+    }
+
     @Override
     public String call(String[] args) {
-        System.exit(0);
-        return null;
+        if (!exitSession()) {
+            System.exit(0);
+        }
+        return "";
     }
 }
@@ -34,15 +34,12 @@ public class DefaultHelpCommand extends Command {
             return "Can't find a command named \"" + commandName + "\"";
         }
 
-        if (!command.getClass()
-                .isAnnotationPresent(CommandDescription.class)) {
+        String description = command.getDescription();
+        if (description == null) {
             return "No description provided for " + commandName;
         }
 
         String result = "Help for " + commandName + ":\n\n";
-        String description = command.getClass()
-                .getAnnotation(CommandDescription.class)
-                .value();
         result += description;
 
         return result;
@@ -0,0 +1,53 @@
+package com.maciejors.jscp.defaultcommands;
+
+import com.maciejors.jscp.annotations.CommandDescription;
+import com.maciejors.jscp.annotations.ParallelSafe;
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.core.CommandProcessor;
+import com.maciejors.jscp.metrics.CommandProfiler;
+import com.maciejors.jscp.metrics.ProfileOrder;
+
+@ParallelSafe
+@CommandDescription("Profiles the executed commands.\n" +
+        "Try out: !profile on, !profile off, !profile reset,\n" +
+        "or !profile [calls|wall|cpu|alloc] to see the report")
+public class DefaultProfileCommand extends Command {
+
+    /**
+     * Processor whose commands are profiled
+     */
+    private final CommandProcessor commandProcessor;
+
+    private final CommandProfiler profiler;
+
+    public DefaultProfileCommand(CommandProcessor commandProcessor, CommandProfiler profiler) {
+        this.commandProcessor = commandProcessor;
+        this.profiler = profiler;
+    }
+
+    @Override
+    public String call(String[] args) {
+        String option = args.length > 0 ? args[0] : "wall";
+        switch (option) {
+            case "on":
+                commandProcessor.startProfiling(profiler);
+                return "Profiling started";
+            case "off":
+                commandProcessor.stopProfiling();
+                return "Profiling stopped";
+            case "reset":
+                profiler.reset();
+                return "Profiles cleared";
+            case "calls":
+                return profiler.report(ProfileOrder.CALLS);
+            case "wall":
+                return profiler.report(ProfileOrder.WALL_TIME);
+            case "cpu":
+                return profiler.report(ProfileOrder.CPU_TIME);
+            case "alloc":
+                return profiler.report(ProfileOrder.ALLOCATED_BYTES);
+            default:
+                return "Error: unknown option " + option;
+        }
+    }
+}
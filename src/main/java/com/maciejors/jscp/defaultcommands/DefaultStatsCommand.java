@@ -0,0 +1,30 @@
+package com.maciejors.jscp.defaultcommands;
+
+import com.maciejors.jscp.annotations.CommandDescription;
+import com.maciejors.jscp.annotations.ParallelSafe;
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.metrics.CommandMetrics;
+
+@ParallelSafe
+@CommandDescription("Returns statistics of the executed commands.\n" +
+        "Try out: !stats, or !stats reset to clear them")
+public class DefaultStatsCommand extends Command {
+
+    /**
+     * Metrics collected by the command processor
+     */
+    private final CommandMetrics metrics;
+
+    public DefaultStatsCommand(CommandMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String call(String[] args) {
+        if (args.length > 0 && args[0].equals("reset")) {
+            metrics.reset();
+            return "Statistics cleared";
+        }
+        return metrics.report();
+    }
+}
@@ -0,0 +1,93 @@
+package com.maciejors.jscp.metrics;
+
+import com.maciejors.jscp.core.ExecutionListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects per-command statistics: numbers of calls and errors, time
+ * spent parsing and executing, and execution latency percentiles.
+ * <br><br>
+ * To start collecting, add it as a listener to a processor:
+ * <pre>
+ * CommandMetrics metrics = new CommandMetrics();
+ * commandProcessor.addExecutionListener(metrics);
+ * commandManager.registerDefaultStatsCommand(metrics);
+ * </pre>
+ */
+public class CommandMetrics implements ExecutionListener {
+
+    private final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void commandExecuted(String commandName, long parseNanos,
+                                long executionNanos, boolean failed) {
+        CommandStats commandStats = stats.get(commandName);
+        if (commandStats == null) {
+            commandStats = stats.computeIfAbsent(commandName, CommandStats::new);
+        }
+        commandStats.record(parseNanos, executionNanos, failed);
+    }
+
+    /**
+     * @param commandName Name of the command
+     * @return Statistics of the command or {@code null} if it has not been
+     * called yet
+     */
+    public CommandStats getStats(String commandName) {
+        return stats.get(commandName);
+    }
+
+    /**
+     * @return Statistics of all the commands called so far, the most
+     * frequently called first
+     */
+    public List<CommandStats> getAllStats() {
+        List<CommandStats> all = new ArrayList<>(stats.values());
+        all.sort(Comparator.comparingLong(CommandStats::getInvocationCount).reversed()
+                .thenComparing(CommandStats::getCommandName));
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Clears statistics of all the commands
+     */
+    public void reset() {
+        for (CommandStats commandStats : stats.values()) {
+            commandStats.reset();
+        }
+    }
+
+    /**
+     * @return A human-readable table with statistics of all the commands.
+     * Times are given in microseconds
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format(
+                "%-20s %10s %8s %10s %10s %10s %10s %10s",
+                "command", "calls", "errors", "parse avg", "exec avg",
+                "p50", "p99", "p999"));
+        for (CommandStats commandStats : getAllStats()) {
+            long calls = commandStats.getInvocationCount();
+            if (calls == 0) {
+                continue;
+            }
+            LatencyHistogram latency = commandStats.getExecutionLatency();
+            report.append('\n').append(String.format(
+                    "%-20s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f",
+                    commandStats.getCommandName(), calls,
+                    commandStats.getErrorCount(),
+                    commandStats.getTotalParseNanos() / 1e3 / calls,
+                    commandStats.getTotalExecutionNanos() / 1e3 / calls,
+                    latency.getValueAtPercentile(50) / 1e3,
+                    latency.getValueAtPercentile(99) / 1e3,
+                    latency.getValueAtPercentile(99.9) / 1e3));
+        }
+        return report.toString();
+    }
+}
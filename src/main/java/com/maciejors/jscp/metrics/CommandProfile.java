@@ -0,0 +1,118 @@
+package com.maciejors.jscp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resources used by a single command, collected by
+ * {@link CommandProfiler}. Times are in nanoseconds. CPU times and
+ * allocated bytes only include the calls in which the JVM could measure
+ * them
+ */
+public class CommandProfile {
+
+    private final String commandName;
+
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder parseCpuNanos = new LongAdder();
+    private final LongAdder parseAllocatedBytes = new LongAdder();
+    private final LongAdder executionNanos = new LongAdder();
+    private final LongAdder executionCpuNanos = new LongAdder();
+    private final LongAdder executionAllocatedBytes = new LongAdder();
+
+    CommandProfile(String commandName) {
+        this.commandName = commandName;
+    }
+
+    void record(long parseNanos, long parseCpuNanos, long parseAllocatedBytes,
+                long executionNanos, long executionCpuNanos, long executionAllocatedBytes,
+                boolean failed) {
+        invocations.increment();
+        if (failed) {
+            errors.increment();
+        }
+        this.parseNanos.add(parseNanos);
+        this.executionNanos.add(executionNanos);
+        if (parseCpuNanos >= 0 && executionCpuNanos >= 0) {
+            this.parseCpuNanos.add(parseCpuNanos);
+            this.executionCpuNanos.add(executionCpuNanos);
+        }
+        if (parseAllocatedBytes >= 0 && executionAllocatedBytes >= 0) {
+            this.parseAllocatedBytes.add(parseAllocatedBytes);
+            this.executionAllocatedBytes.add(executionAllocatedBytes);
+        }
+    }
+
+    void reset() {
+        invocations.reset();
+        errors.reset();
+        parseNanos.reset();
+        parseCpuNanos.reset();
+        parseAllocatedBytes.reset();
+        executionNanos.reset();
+        executionCpuNanos.reset();
+        executionAllocatedBytes.reset();
+    }
+
+    public String getCommandName() {
+        return commandName;
+    }
+
+    /**
+     * @return Number of times the command has been called
+     */
+    public long getInvocationCount() {
+        return invocations.sum();
+    }
+
+    /**
+     * @return Number of calls which have thrown an exception
+     */
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * @return Total wall time of parsing the lines calling the command
+     */
+    public long getTotalParseNanos() {
+        return parseNanos.sum();
+    }
+
+    /**
+     * @return Total CPU time of parsing the lines calling the command
+     */
+    public long getTotalParseCpuNanos() {
+        return parseCpuNanos.sum();
+    }
+
+    /**
+     * @return Total bytes allocated while parsing the lines calling the
+     * command
+     */
+    public long getTotalParseAllocatedBytes() {
+        return parseAllocatedBytes.sum();
+    }
+
+    /**
+     * @return Total wall time of executing the command
+     */
+    public long getTotalExecutionNanos() {
+        return executionNanos.sum();
+    }
+
+    /**
+     * @return Total CPU time of executing the command
+     */
+    public long getTotalExecutionCpuNanos() {
+        return executionCpuNanos.sum();
+    }
+
+    /**
+     * @return Total bytes allocated while executing the command
+     */
+    public long getTotalExecutionAllocatedBytes() {
+        return executionAllocatedBytes.sum();
+    }
+}
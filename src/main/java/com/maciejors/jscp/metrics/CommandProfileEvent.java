@@ -0,0 +1,53 @@
+package com.maciejors.jscp.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JFR event emitted by {@link CommandProfiler} for every profiled
+ * command call. The event is committed after the call, so its own
+ * duration is meaningless; the phases are described by its fields
+ */
+@Name("com.maciejors.jscp.CommandProfile")
+@Label("Command Profile")
+@Category("jscp")
+@Description("Resources used by a command call, split into the parse and the execution phase")
+@StackTrace(false)
+final class CommandProfileEvent extends Event {
+
+    @Label("Command")
+    String commandName;
+
+    @Label("Parse Time")
+    @Timespan
+    long parseNanos;
+
+    @Label("Parse CPU Time")
+    @Timespan
+    long parseCpuNanos;
+
+    @Label("Parse Allocation")
+    @DataAmount
+    long parseAllocatedBytes;
+
+    @Label("Execution Time")
+    @Timespan
+    long executionNanos;
+
+    @Label("Execution CPU Time")
+    @Timespan
+    long executionCpuNanos;
+
+    @Label("Execution Allocation")
+    @DataAmount
+    long executionAllocatedBytes;
+
+    @Label("Failed")
+    boolean failed;
+}
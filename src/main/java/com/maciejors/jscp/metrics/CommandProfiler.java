@@ -0,0 +1,112 @@
+package com.maciejors.jscp.metrics;
+
+import com.maciejors.jscp.core.ProfilingListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the resources used by each command: wall time, thread CPU time
+ * and allocated bytes, separately for parsing and executing. Every call
+ * is also emitted as a {@code com.maciejors.jscp.CommandProfile} JFR
+ * event, as long as a recording has the event enabled.
+ * <br><br>
+ * To start profiling, pass it to a processor (which can be done while the
+ * processor is running):
+ * <pre>
+ * CommandProfiler profiler = new CommandProfiler();
+ * commandProcessor.startProfiling(profiler);
+ * System.out.println(profiler.report(ProfileOrder.CPU_TIME));
+ * commandProcessor.stopProfiling();
+ * </pre>
+ */
+public class CommandProfiler implements ProfilingListener {
+
+    private final Map<String, CommandProfile> profiles = new ConcurrentHashMap<>();
+
+    @Override
+    public void commandProfiled(String commandName,
+                                long parseNanos, long parseCpuNanos, long parseAllocatedBytes,
+                                long executionNanos, long executionCpuNanos,
+                                long executionAllocatedBytes, boolean failed) {
+        CommandProfile profile = profiles.get(commandName);
+        if (profile == null) {
+            profile = profiles.computeIfAbsent(commandName, CommandProfile::new);
+        }
+        profile.record(parseNanos, parseCpuNanos, parseAllocatedBytes,
+                executionNanos, executionCpuNanos, executionAllocatedBytes, failed);
+
+        CommandProfileEvent event = new CommandProfileEvent();
+        if (event.isEnabled()) {
+            event.commandName = commandName;
+            event.parseNanos = parseNanos;
+            event.parseCpuNanos = parseCpuNanos;
+            event.parseAllocatedBytes = parseAllocatedBytes;
+            event.executionNanos = executionNanos;
+            event.executionCpuNanos = executionCpuNanos;
+            event.executionAllocatedBytes = executionAllocatedBytes;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param commandName Name of the command
+     * @return Profile of the command or {@code null} if it has not been
+     * called while profiling
+     */
+    public CommandProfile getProfile(String commandName) {
+        return profiles.get(commandName);
+    }
+
+    /**
+     * @param order Order of the profiles
+     * @return Profiles of all the commands called while profiling
+     */
+    public List<CommandProfile> getProfiles(ProfileOrder order) {
+        List<CommandProfile> all = new ArrayList<>(profiles.values());
+        all.sort(order.getComparator());
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Clears profiles of all the commands
+     */
+    public void reset() {
+        for (CommandProfile profile : profiles.values()) {
+            profile.reset();
+        }
+    }
+
+    /**
+     * @param order Order of the commands
+     * @return A human-readable table with averages per call of all the
+     * commands. Times are given in microseconds, allocations in bytes
+     */
+    public String report(ProfileOrder order) {
+        StringBuilder report = new StringBuilder(String.format(
+                "%-20s %10s %8s %10s %10s %10s %10s %10s %10s",
+                "command", "calls", "errors",
+                "parse", "parse cpu", "parse B",
+                "exec", "exec cpu", "exec B"));
+        for (CommandProfile profile : getProfiles(order)) {
+            long calls = profile.getInvocationCount();
+            if (calls == 0) {
+                continue;
+            }
+            report.append('\n').append(String.format(
+                    "%-20s %10d %8d %10.1f %10.1f %10d %10.1f %10.1f %10d",
+                    profile.getCommandName(), calls, profile.getErrorCount(),
+                    profile.getTotalParseNanos() / 1e3 / calls,
+                    profile.getTotalParseCpuNanos() / 1e3 / calls,
+                    profile.getTotalParseAllocatedBytes() / calls,
+                    profile.getTotalExecutionNanos() / 1e3 / calls,
+                    profile.getTotalExecutionCpuNanos() / 1e3 / calls,
+                    profile.getTotalExecutionAllocatedBytes() / calls));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package com.maciejors.jscp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of a single command, collected by {@link CommandMetrics}
+ */
+public class CommandStats {
+
+    private final String commandName;
+
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder executionNanos = new LongAdder();
+
+    private final LatencyHistogram executionLatency = new LatencyHistogram();
+
+    CommandStats(String commandName) {
+        this.commandName = commandName;
+    }
+
+    void record(long parseNanos, long executionNanos, boolean failed) {
+        invocations.increment();
+        if (failed) {
+            errors.increment();
+        }
+        this.parseNanos.add(parseNanos);
+        this.executionNanos.add(executionNanos);
+        executionLatency.record(executionNanos);
+    }
+
+    void reset() {
+        invocations.reset();
+        errors.reset();
+        parseNanos.reset();
+        executionNanos.reset();
+        executionLatency.reset();
+    }
+
+    public String getCommandName() {
+        return commandName;
+    }
+
+    /**
+     * @return Number of times the command has been called
+     */
+    public long getInvocationCount() {
+        return invocations.sum();
+    }
+
+    /**
+     * @return Number of calls which have thrown an exception
+     */
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * @return Total time spent parsing lines calling the command, in
+     * nanoseconds
+     */
+    public long getTotalParseNanos() {
+        return parseNanos.sum();
+    }
+
+    /**
+     * @return Total time spent executing the command, in nanoseconds
+     */
+    public long getTotalExecutionNanos() {
+        return executionNanos.sum();
+    }
+
+    /**
+     * @return Histogram of execution times, in nanoseconds
+     */
+    public LatencyHistogram getExecutionLatency() {
+        return executionLatency;
+    }
+}
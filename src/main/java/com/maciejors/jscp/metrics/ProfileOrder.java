@@ -0,0 +1,32 @@
+package com.maciejors.jscp.metrics;
+
+import java.util.Comparator;
+import java.util.function.ToLongFunction;
+
+/**
+ * Order of the commands in a {@link CommandProfiler} report, the most
+ * expensive ones first. Times and allocations are the totals of both
+ * phases
+ */
+public enum ProfileOrder {
+
+    CALLS(CommandProfile::getInvocationCount),
+
+    WALL_TIME(profile -> profile.getTotalParseNanos() + profile.getTotalExecutionNanos()),
+
+    CPU_TIME(profile -> profile.getTotalParseCpuNanos() + profile.getTotalExecutionCpuNanos()),
+
+    ALLOCATED_BYTES(profile -> profile.getTotalParseAllocatedBytes()
+            + profile.getTotalExecutionAllocatedBytes());
+
+    private final Comparator<CommandProfile> comparator;
+
+    ProfileOrder(ToLongFunction<CommandProfile> key) {
+        this.comparator = Comparator.comparingLong(key).reversed()
+                .thenComparing(CommandProfile::getCommandName);
+    }
+
+    Comparator<CommandProfile> getComparator() {
+        return comparator;
+    }
+}
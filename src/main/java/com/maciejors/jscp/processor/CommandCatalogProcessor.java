@@ -0,0 +1,434 @@
+package com.maciejors.jscp.processor;
+
+import com.maciejors.jscp.annotations.Cacheable;
+import com.maciejors.jscp.annotations.CommandDescription;
+import com.maciejors.jscp.annotations.CommandPolicy;
+import com.maciejors.jscp.annotations.ParallelSafe;
+import com.maciejors.jscp.annotations.RegisteredCommand;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a {@code CommandCatalog} of the commands annotated with
+ * {@link RegisteredCommand}, along with a {@code META-INF/services} entry,
+ * so that {@code CommandManager.registerDiscoveredCommands()} finds it.
+ * <br><br>
+ * The catalog creates the commands with plain constructor calls, so
+ * registering them needs neither reflection nor scanning the class path.
+ * Their descriptions, policies and memoization are recorded in the
+ * catalog as well, so they are applied before the commands are created.
+ * By default, the catalog is named {@code JscpCommandCatalog} and placed
+ * in the package of the first command (in alphabetical order); a
+ * different fully qualified name can be set with the
+ * {@code -Ajscp.catalog=...} compiler option.
+ * <br><br>
+ * The processor is registered as a service, so it runs whenever this
+ * library is on the compilation class path. In a modular project the
+ * catalog has to be declared in {@code module-info.java}:
+ * {@code provides com.maciejors.jscp.core.CommandCatalog with ...;}
+ */
+@SupportedAnnotationTypes("com.maciejors.jscp.annotations.RegisteredCommand")
+@SupportedOptions(CommandCatalogProcessor.CATALOG_OPTION)
+public class CommandCatalogProcessor extends AbstractProcessor {
+
+    static final String CATALOG_OPTION = "jscp.catalog";
+
+    private static final String COMMAND_CLASS = "com.maciejors.jscp.core.Command";
+    private static final String CATALOG_INTERFACE = "com.maciejors.jscp.core.CommandCatalog";
+    private static final String POLICY_CLASS = "com.maciejors.jscp.core.DispatchPolicy";
+    private static final String DEFAULT_CATALOG_NAME = "JscpCommandCatalog";
+
+    /**
+     * Whether the catalog has already been generated. Commands generated
+     * by other processors in later rounds cannot be added to it
+     */
+    private boolean generated = false;
+
+    /**
+     * A command to be put in the catalog
+     */
+    private static final class Entry {
+        final String name;
+        final TypeElement type;
+        final String description;
+        final boolean parallelSafe;
+        final CommandPolicy policy;
+        final Cacheable cacheable;
+
+        Entry(String name, TypeElement type, String description, boolean parallelSafe,
+              CommandPolicy policy, Cacheable cacheable) {
+            this.name = name;
+            this.type = type;
+            this.description = description;
+            this.parallelSafe = parallelSafe;
+            this.policy = policy;
+            this.cacheable = cacheable;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<? extends Element> annotated =
+                roundEnv.getElementsAnnotatedWith(RegisteredCommand.class);
+        if (annotated.isEmpty()) {
+            return false;
+        }
+        Messager messager = processingEnv.getMessager();
+        if (generated) {
+            for (Element element : annotated) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        "command catalog has already been generated in an earlier round",
+                        element);
+            }
+            return true;
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        Map<String, Element> names = new HashMap<>();
+        boolean valid = true;
+        for (Element element : annotated) {
+            String name = element.getAnnotation(RegisteredCommand.class).value();
+            Element duplicate = names.put(name, element);
+            if (duplicate != null) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        "duplicate command name \"" + name + "\", also used by " + duplicate,
+                        element);
+                valid = false;
+                continue;
+            }
+            if (!validate(element, name)) {
+                valid = false;
+                continue;
+            }
+            CommandDescription description = element.getAnnotation(CommandDescription.class);
+            entries.add(new Entry(name, (TypeElement) element,
+                    description == null ? null : description.value(),
+                    element.getAnnotation(ParallelSafe.class) != null,
+                    element.getAnnotation(CommandPolicy.class),
+                    element.getAnnotation(Cacheable.class)));
+        }
+        generated = true;
+        if (!valid) {
+            return true;
+        }
+
+        entries.sort(Comparator.comparing(entry -> entry.type.getQualifiedName().toString()));
+        String catalogName = processingEnv.getOptions().get(CATALOG_OPTION);
+        if (catalogName == null) {
+            PackageElement firstPackage =
+                    processingEnv.getElementUtils().getPackageOf(entries.get(0).type);
+            catalogName = firstPackage.isUnnamed()
+                    ? DEFAULT_CATALOG_NAME
+                    : firstPackage.getQualifiedName() + "." + DEFAULT_CATALOG_NAME;
+        }
+
+        try {
+            writeCatalog(catalogName, entries);
+            writeServiceEntry(catalogName);
+        } catch (IOException err) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    "cannot write the command catalog: " + err.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Reports all the reasons why the element cannot be put in the catalog
+     *
+     * @return {@code true} if it can
+     */
+    private boolean validate(Element element, String name) {
+        Messager messager = processingEnv.getMessager();
+        boolean valid = true;
+        if (!isValidCommandName(name)) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    "invalid command name \"" + name + "\"", element);
+            valid = false;
+        }
+        if (element.getKind() != ElementKind.CLASS
+                || element.getModifiers().contains(Modifier.ABSTRACT)) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    "@RegisteredCommand has to annotate a non-abstract class", element);
+            return false;
+        }
+
+        TypeElement commandClass = processingEnv.getElementUtils().getTypeElement(COMMAND_CLASS);
+        TypeMirror commandType = processingEnv.getTypeUtils().erasure(commandClass.asType());
+        if (!processingEnv.getTypeUtils().isSubtype(element.asType(), commandType)) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    "@RegisteredCommand has to annotate a subclass of " + COMMAND_CLASS,
+                    element);
+            valid = false;
+        }
+
+        for (Element type = element; type.getKind() != ElementKind.PACKAGE;
+             type = type.getEnclosingElement()) {
+            boolean nestedInstance = type.getEnclosingElement().getKind() != ElementKind.PACKAGE
+                    && !type.getModifiers().contains(Modifier.STATIC);
+            if (!type.getModifiers().contains(Modifier.PUBLIC) || nestedInstance) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        "a registered command has to be a public top-level " +
+                                "or public static nested class", element);
+                valid = false;
+                break;
+            }
+        }
+
+        boolean hasConstructor = false;
+        for (ExecutableElement constructor :
+                ElementFilter.constructorsIn(element.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()
+                    && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                hasConstructor = true;
+            }
+        }
+        if (!hasConstructor) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    "a registered command has to have a public no-argument constructor",
+                    element);
+            valid = false;
+        }
+        return valid;
+    }
+
+    private static boolean isValidCommandName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z')
+                    || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9')
+                    || c == '_';
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeCatalog(String catalogName, List<Entry> entries) throws IOException {
+        Filer filer = processingEnv.getFiler();
+        Element[] originatingElements = new Element[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            originatingElements[i] = entries.get(i).type;
+        }
+
+        int lastDot = catalogName.lastIndexOf('.');
+        String packageName = lastDot < 0 ? null : catalogName.substring(0, lastDot);
+        String simpleName = catalogName.substring(lastDot + 1);
+
+        StringBuilder source = new StringBuilder();
+        if (packageName != null) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n")
+                .append(" * Generated by ").append(getClass().getName()).append("\n")
+                .append(" */\n")
+                .append("public final class ").append(simpleName)
+                .append(" implements ").append(CATALOG_INTERFACE).append(" {\n\n");
+
+        source.append("    private static final String[] NAMES = {\n");
+        for (Entry entry : entries) {
+            source.append("            ").append(literal(entry.name)).append(",\n");
+        }
+        source.append("    };\n\n");
+
+        source.append("    private static final String[] DESCRIPTIONS = {\n");
+        for (Entry entry : entries) {
+            source.append("            ").append(literal(entry.description)).append(",\n");
+        }
+        source.append("    };\n\n");
+
+        source.append("    private static final boolean[] PARALLEL_SAFE = {\n");
+        for (Entry entry : entries) {
+            source.append("            ").append(entry.parallelSafe).append(",\n");
+        }
+        source.append("    };\n\n");
+
+        source.append("    private static final boolean[] CACHEABLE = {\n");
+        for (Entry entry : entries) {
+            source.append("            ").append(entry.cacheable != null).append(",\n");
+        }
+        source.append("    };\n\n");
+
+        source.append("    private static final long[] CACHE_TTL_MILLIS = {\n");
+        for (Entry entry : entries) {
+            source.append("            ")
+                    .append(entry.cacheable == null ? 0 : entry.cacheable.ttlMillis())
+                    .append("L,\n");
+        }
+        source.append("    };\n\n");
+
+        source.append("    private static final int[] CACHE_MAX_ENTRIES = {\n");
+        for (Entry entry : entries) {
+            source.append("            ")
+                    .append(entry.cacheable == null ? 1024 : entry.cacheable.maxEntries())
+                    .append(",\n");
+        }
+        source.append("    };\n\n");
+
+        source.append("    @Override\n")
+                .append("    public int size() {\n")
+                .append("        return NAMES.length;\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String getName(int index) {\n")
+                .append("        return NAMES[index];\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String getDescription(int index) {\n")
+                .append("        return DESCRIPTIONS[index];\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public boolean isParallelSafe(int index) {\n")
+                .append("        return PARALLEL_SAFE[index];\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public boolean isCacheable(int index) {\n")
+                .append("        return CACHEABLE[index];\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public long getCacheTtlMillis(int index) {\n")
+                .append("        return CACHE_TTL_MILLIS[index];\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public int getCacheMaxEntries(int index) {\n")
+                .append("        return CACHE_MAX_ENTRIES[index];\n")
+                .append("    }\n\n");
+
+        // invalid limits fail when the command is registered, as they do
+        // when it is registered directly
+        source.append("    @Override\n")
+                .append("    public ").append(POLICY_CLASS).append(" getPolicy(int index) {\n")
+                .append("        switch (index) {\n");
+        for (int i = 0; i < entries.size(); i++) {
+            CommandPolicy policy = entries.get(i).policy;
+            if (policy == null) {
+                continue;
+            }
+            source.append("            case ").append(i).append(":\n")
+                    .append("                return ").append(POLICY_CLASS).append(".NONE\n")
+                    .append("                        .withTimeout(java.time.Duration.ofMillis(")
+                    .append(policy.timeoutMillis()).append("L))\n")
+                    .append("                        .withMaxConcurrency(")
+                    .append(policy.maxConcurrency()).append(")\n")
+                    .append("                        .withRateLimit(")
+                    .append(literal(policy.permitsPerSecond())).append(", ")
+                    .append(policy.burst()).append(");\n");
+        }
+        source.append("            default:\n")
+                .append("                return ").append(POLICY_CLASS).append(".NONE;\n")
+                .append("        }\n")
+                .append("    }\n\n");
+
+        source.append("    @Override\n")
+                .append("    public ").append(COMMAND_CLASS).append(" create(int index) {\n")
+                .append("        switch (index) {\n");
+        for (int i = 0; i < entries.size(); i++) {
+            source.append("            case ").append(i).append(":\n")
+                    .append("                return new ")
+                    .append(entries.get(i).type.getQualifiedName()).append("();\n");
+        }
+        source.append("            default:\n")
+                .append("                throw new IndexOutOfBoundsException(index);\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("}\n");
+
+        try (Writer writer = filer.createSourceFile(catalogName, originatingElements)
+                .openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    private void writeServiceEntry(String catalogName) throws IOException {
+        FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                "", "META-INF/services/" + CATALOG_INTERFACE);
+        try (Writer writer = file.openWriter()) {
+            writer.write(catalogName);
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * @return A Java expression of the value
+     */
+    private static String literal(double value) {
+        if (Double.isNaN(value)) {
+            return "Double.NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * @return A Java string literal or {@code null}
+     */
+    private static String literal(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                case '\r':
+                    literal.append("\\r");
+                    break;
+                case '\t':
+                    literal.append("\\t");
+                    break;
+                default:
+                    if (c < ' ' || c > '~') {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+            }
+        }
+        return literal.append('"').toString();
+    }
+}
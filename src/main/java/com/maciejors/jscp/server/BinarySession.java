@@ -0,0 +1,239 @@
+package com.maciejors.jscp.server;
+
+import com.maciejors.jscp.core.ArgumentView;
+import com.maciejors.jscp.core.CommandProcessor;
+import com.maciejors.jscp.defaultcommands.DefaultExitCommand;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A session of the {@link ServerProtocol#BINARY} protocol. The session
+ * thread reads and dispatches the requests, while the responses are
+ * written by whichever thread completes them.
+ * <br><br>
+ * Responses are flushed when the session has no more requests to read,
+ * so pipelined requests are answered with few writes to the socket.
+ */
+final class BinarySession {
+
+    /**
+     * Tells whether it has buffered input without asking the socket, which
+     * {@link BufferedInputStream#available()} always does
+     */
+    private static final class RequestInput extends BufferedInputStream {
+        RequestInput(InputStream in) {
+            super(in);
+        }
+
+        synchronized boolean hasBuffered() {
+            return pos < count;
+        }
+    }
+
+    private final Socket socket;
+    private final CommandProcessor commandProcessor;
+    private final int maxFrameLength;
+
+    private final RequestInput input;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * Limits the requests whose responses have not been written yet
+     */
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    private final Set<CompletableFuture<?>> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the session thread has run out of buffered requests and
+     * waits for more. Written while holding the lock of {@link #out}
+     */
+    private volatile boolean idle = false;
+
+    /**
+     * Set when writing a response fails, after which the session ends
+     */
+    private volatile IOException writeError = null;
+
+    /**
+     * Set by an exit command called by the session thread
+     */
+    private boolean exited = false;
+
+    BinarySession(Socket socket, CommandProcessor commandProcessor,
+                  int maxFrameLength) throws IOException {
+        this.socket = socket;
+        this.commandProcessor = commandProcessor;
+        this.maxFrameLength = maxFrameLength;
+        // responses completing out of order are flushed one by one, which
+        // Nagle's algorithm would hold back
+        socket.setTcpNoDelay(true);
+        input = new RequestInput(socket.getInputStream());
+        in = new DataInputStream(input);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        maxInFlight = commandProcessor.getMaxLinesInFlight();
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    void run() throws IOException {
+        byte[][] buffer = new byte[1][];
+        // exit commands are not parallel-safe, so they are called by this
+        // thread
+        DefaultExitCommand.setSessionExit(() -> exited = true);
+        try {
+            while (writeError == null) {
+                flushIfIdle();
+                FrameCodec.Request request;
+                try {
+                    request = FrameCodec.readRequest(in, buffer, maxFrameLength);
+                } catch (EOFException err) {
+                    break;
+                }
+                idle = false;
+                dispatch(request);
+                if (exited) {
+                    break;
+                }
+            }
+            // all permits are available again once everything is written
+            inFlight.acquire(maxInFlight);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        } finally {
+            DefaultExitCommand.setSessionExit(null);
+            for (CompletableFuture<?> command : running) {
+                command.cancel(true);
+            }
+        }
+        synchronized (out) {
+            out.flush();
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private void dispatch(FrameCodec.Request request) throws InterruptedException {
+        inFlight.acquire();
+        if (request.error != null) {
+            respond(request.correlationId, FrameStatus.BAD_REQUEST, request.error);
+            return;
+        }
+
+        CompletionStage<String> stage;
+        try {
+            stage = commandProcessor.executeCommandAsync(request.commandName,
+                    ArgumentView.of(request.args));
+        } catch (RuntimeException err) {
+            respond(request.correlationId, FrameStatus.ERROR, describe(err));
+            return;
+        }
+        if (stage == null) {
+            respond(request.correlationId, FrameStatus.NOT_FOUND, "command not found");
+            return;
+        }
+
+        CompletableFuture<String> command = stage.toCompletableFuture();
+        long correlationId = request.correlationId;
+        if (command.isDone()) {
+            // most commands complete right away
+            String value;
+            try {
+                value = command.join();
+            } catch (CompletionException | CancellationException err) {
+                respond(correlationId, null, err);
+                return;
+            }
+            respond(correlationId, value, null);
+            return;
+        }
+        running.add(command);
+        command.whenComplete((value, err) -> {
+            running.remove(command);
+            respond(correlationId, value, err);
+        });
+    }
+
+    /**
+     * Writes the response to a command
+     */
+    private void respond(long correlationId, String value, Throwable err) {
+        if (err != null) {
+            respond(correlationId, FrameStatus.ERROR, describe(err));
+        } else if (value == null) {
+            respond(correlationId, FrameStatus.NO_VALUE, null);
+        } else if (value.startsWith("Error: ")) {
+            respond(correlationId, FrameStatus.ERROR, value.substring("Error: ".length()));
+        } else {
+            respond(correlationId, FrameStatus.OK, value);
+        }
+    }
+
+    /**
+     * Writes a response and releases the permit of its request
+     */
+    private void respond(long correlationId, FrameStatus status, String value) {
+        try {
+            synchronized (out) {
+                FrameCodec.writeResponse(out, correlationId, status, value);
+                // otherwise the session thread flushes before it waits
+                if (idle) {
+                    out.flush();
+                }
+            }
+        } catch (IOException err) {
+            writeError = err;
+            closeQuietly();
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Flushes the responses before the session thread waits for requests
+     */
+    private void flushIfIdle() throws IOException {
+        if (!input.hasBuffered() && input.available() == 0) {
+            synchronized (out) {
+                idle = true;
+                out.flush();
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException err) {
+            // already closed
+        }
+    }
+
+    private static String describe(Throwable err) {
+        if (err instanceof CompletionException && err.getCause() != null) {
+            err = err.getCause();
+        }
+        if (err instanceof CancellationException) {
+            return "cancelled";
+        }
+        return err.getMessage() != null
+                ? err.getMessage()
+                : err.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,434 @@
+package com.maciejors.jscp.server;
+
+import com.maciejors.jscp.core.CommandManager;
+import com.maciejors.jscp.core.CommandProcessor;
+import com.maciejors.jscp.core.LineReader;
+import com.maciejors.jscp.defaultcommands.DefaultExitCommand;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves many client sessions over TCP, all of them sharing a single
+ * {@link CommandProcessor}.
+ * <br><br>
+ * Every connection is a session speaking the same line protocol as
+ * {@link CommandProcessor#startLoop}: the client sends lines and gets the
+ * output of each line back, followed by a newline. Each session runs as a
+ * separate task of the session executor. By default, it is a cached thread
+ * pool; on Java 21+ {@code Executors.newVirtualThreadPerTaskExecutor()} can
+ * be passed instead, so thousands of sessions can be served cheaply.
+ * <br><br>
+ * With {@link ServerProtocol#BINARY}, sessions exchange length-prefixed
+ * frames instead (see {@link FrameCodec}), so clients can pipeline many
+ * requests on a single connection and match the responses, which can
+ * arrive out of order, by their correlation IDs.
+ * <br><br>
+ * The commands have to be thread-safe, as they are called from multiple
+ * sessions at once.
+ * <br><br>
+ * A session ends when the client disconnects, is idle for too long or
+ * calls the session exit command ({@code exit} by default). While the
+ * server runs, that command is replaced by one ending the calling session,
+ * and the {@link DefaultExitCommand} ends the calling session as well, so
+ * an exit reached in any way (abbreviated, in a pipeline or in a macro)
+ * never terminates the whole JVM.
+ */
+public class CommandServer implements Closeable {
+
+    private final CommandProcessor commandProcessor;
+
+    private ExecutorService sessionExecutor = null;
+
+    private volatile int maxSessions = 1024;
+
+    private Duration idleTimeout = Duration.ZERO;
+
+    private String sessionExitCommand = "exit";
+
+    /**
+     * Registered under the name of the session exit command while the
+     * server runs
+     */
+    private SessionExitCommand exitCommand = null;
+
+    private ServerProtocol protocol = ServerProtocol.TEXT;
+
+    private int maxFrameLength = 16 * 1024 * 1024;
+
+    private ServerSocket serverSocket = null;
+
+    private Thread acceptThread = null;
+
+    private volatile boolean shuttingDown = false;
+
+    private final Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param commandProcessor A processor executing lines of all sessions
+     */
+    public CommandServer(CommandProcessor commandProcessor) {
+        this.commandProcessor = commandProcessor;
+    }
+
+    /**
+     * Starts accepting connections on the loopback interface
+     *
+     * @param port Port to listen on, {@code 0} picks a free port
+     * @throws IOException if the server socket cannot be opened
+     */
+    public void start(int port) throws IOException {
+        start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Starts accepting connections
+     *
+     * @param address Address to listen on
+     * @throws IOException if the server socket cannot be opened
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        if (sessionExecutor == null) {
+            sessionExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "jscp-session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        CommandManager commandManager = commandProcessor.getCommandManager();
+        exitCommand = new SessionExitCommand(commandManager.findCommand(sessionExitCommand));
+        commandManager.replaceCommand(sessionExitCommand, exitCommand);
+        acceptThread = new Thread(this::acceptLoop, "jscp-server-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private void acceptLoop() {
+        while (!shuttingDown) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException err) {
+                // the server socket has been closed
+                return;
+            }
+
+            if (sessions.size() >= maxSessions) {
+                reject(socket, "Error: too many sessions");
+                continue;
+            }
+            sessions.add(socket);
+            try {
+                sessionExecutor.execute(() -> runSession(socket));
+            } catch (RejectedExecutionException err) {
+                sessions.remove(socket);
+                reject(socket, "Error: server is shutting down");
+            }
+        }
+    }
+
+    private static void reject(Socket socket, String message) {
+        try (socket) {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(),
+                    StandardCharsets.UTF_8);
+            writer.write(message);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException err) {
+            // the client is gone anyway
+        }
+    }
+
+    private void runSession(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout((int) idleTimeout.toMillis());
+            if (protocol == ServerProtocol.BINARY) {
+                new BinarySession(socket, commandProcessor, maxFrameLength).run();
+                return;
+            }
+            // lines exceeding the limits of the processor are skipped
+            // without being read into memory
+            LineReader reader = new LineReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8),
+                    commandProcessor.getMaxLineLength(),
+                    commandProcessor.getMaxArgumentLength());
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            boolean[] exited = {false};
+            DefaultExitCommand.setSessionExit(() -> exited[0] = true);
+            while (reader.next()) {
+                String line = reader.getLine();
+                if (line == null) {
+                    writer.write("Error: " + reader.getError());
+                } else {
+                    try {
+                        commandProcessor.executeLineTo(line, writer);
+                    } catch (RuntimeException err) {
+                        // a failing command does not end the session
+                        writer.write("Error: " + (err.getMessage() != null
+                                ? err.getMessage()
+                                : err.getClass().getSimpleName()));
+                    }
+                    if (exited[0]) {
+                        break;
+                    }
+                }
+                writer.write('\n');
+                // pipelined lines are answered with a single flush
+                if (!reader.ready()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        } catch (SocketTimeoutException err) {
+            // idle timeout
+        } catch (SocketException err) {
+            // connection reset or the server is shutting down
+        } catch (IOException err) {
+            // the session cannot continue, other sessions are not affected
+        } finally {
+            DefaultExitCommand.setSessionExit(null);
+            sessions.remove(socket);
+        }
+    }
+
+    /**
+     * Stops the server gracefully. New connections are refused, open
+     * sessions stop reading input, finish executing the lines they have
+     * already received and get closed. Sessions which do not finish within
+     * the grace period are closed forcibly.
+     *
+     * @param gracePeriod Time to wait for the sessions to finish
+     * @return {@code true} if all the sessions finished within the grace
+     * period
+     */
+    public boolean shutdown(Duration gracePeriod) {
+        ExecutorService executor;
+        synchronized (this) {
+            if (serverSocket == null || shuttingDown) {
+                return true;
+            }
+            shuttingDown = true;
+            executor = sessionExecutor;
+        }
+
+        try {
+            serverSocket.close();
+        } catch (IOException err) {
+            // nothing more can be done about it
+        }
+        for (Socket socket : sessions) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException err) {
+                // already closed
+            }
+        }
+
+        executor.shutdown();
+        boolean finished;
+        try {
+            finished = executor.awaitTermination(gracePeriod.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            finished = false;
+        }
+        if (!finished) {
+            for (Socket socket : sessions) {
+                try {
+                    socket.close();
+                } catch (IOException err) {
+                    // already closed
+                }
+            }
+            executor.shutdownNow();
+        }
+        restoreExitCommand();
+        return finished;
+    }
+
+    /**
+     * Puts back the command replaced by the session exit command, unless
+     * another command has been registered under its name in the meantime
+     */
+    private synchronized void restoreExitCommand() {
+        CommandManager commandManager = commandProcessor.getCommandManager();
+        if (commandManager.findCommand(sessionExitCommand) != exitCommand) {
+            return;
+        }
+        if (exitCommand.getReplaced() != null) {
+            commandManager.replaceCommand(sessionExitCommand, exitCommand.getReplaced());
+        } else {
+            commandManager.unregisterCommand(sessionExitCommand);
+        }
+    }
+
+    /**
+     * Stops the server, closing all the open sessions immediately
+     */
+    @Override
+    public void close() {
+        shutdown(Duration.ZERO);
+    }
+
+    /**
+     * @return Port the server listens on, or {@code -1} if it has not been
+     * started
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Number of currently open sessions
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Sets the executor running the sessions. Has to be called before the
+     * server is started. The executor is shut down together with the
+     * server
+     *
+     * @param sessionExecutor Executor running one task per session
+     */
+    public synchronized void setSessionExecutor(ExecutorService sessionExecutor) {
+        requireNotStarted();
+        this.sessionExecutor = Objects.requireNonNull(sessionExecutor);
+    }
+
+    /**
+     * Limits the number of sessions open at once. Connections exceeding the
+     * limit get an error and are closed. The default limit is 1024
+     *
+     * @param maxSessions Maximum number of sessions
+     */
+    public void setMaxSessions(int maxSessions) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("maxSessions must be positive");
+        }
+        this.maxSessions = maxSessions;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Sets the time after which a session that has not sent anything gets
+     * closed. Has to be called before the server is started. The timeout
+     * is applied in whole milliseconds, so a positive timeout shorter than
+     * a millisecond is rounded up to one
+     *
+     * @param idleTimeout Idle timeout, {@link Duration#ZERO} disables it.
+     *                    At most {@link Integer#MAX_VALUE} milliseconds
+     */
+    public synchronized void setIdleTimeout(Duration idleTimeout) {
+        requireNotStarted();
+        if (idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("idleTimeout cannot be negative");
+        }
+        if (idleTimeout.compareTo(Duration.ofMillis(Integer.MAX_VALUE)) > 0) {
+            throw new IllegalArgumentException("idleTimeout cannot be longer than "
+                    + Integer.MAX_VALUE + " ms");
+        }
+        // a socket timeout of 0 would disable it
+        this.idleTimeout = !idleTimeout.isZero() && idleTimeout.toMillis() == 0
+                ? Duration.ofMillis(1)
+                : idleTimeout;
+    }
+
+    public synchronized Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the name of the command which ends the session. While the
+     * server runs, the command registered under that name is replaced by
+     * one ending the session which calls it, and calling the replaced
+     * command from other threads. Has to be called before the server is
+     * started. The default is {@code exit}
+     *
+     * @param sessionExitCommand Name of the command, without the prefix
+     */
+    public synchronized void setSessionExitCommand(String sessionExitCommand) {
+        requireNotStarted();
+        this.sessionExitCommand = Objects.requireNonNull(sessionExitCommand);
+    }
+
+    public synchronized String getSessionExitCommand() {
+        return sessionExitCommand;
+    }
+
+    /**
+     * Sets the wire format of the sessions. Has to be called before the
+     * server is started. The default is {@link ServerProtocol#TEXT}
+     *
+     * @param protocol Wire format of all the sessions
+     */
+    public synchronized void setProtocol(ServerProtocol protocol) {
+        requireNotStarted();
+        this.protocol = Objects.requireNonNull(protocol);
+    }
+
+    public synchronized ServerProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Limits the length of the request frames of the
+     * {@link ServerProtocol#BINARY} protocol. Longer frames are skipped
+     * and answered with {@link FrameStatus#BAD_REQUEST}. Has to be called
+     * before the server is started. The default is 16 MiB
+     *
+     * @param maxFrameLength Maximum length of a frame in bytes
+     */
+    public synchronized void setMaxFrameLength(int maxFrameLength) {
+        requireNotStarted();
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be positive");
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public synchronized int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public CommandProcessor getCommandProcessor() {
+        return commandProcessor;
+    }
+
+    private void requireNotStarted() {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Server already started");
+        }
+    }
+}
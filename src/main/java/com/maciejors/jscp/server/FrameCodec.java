@@ -0,0 +1,249 @@
+package com.maciejors.jscp.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the frames of the {@link ServerProtocol#BINARY}
+ * protocol. All numbers are big-endian and all strings are UTF-8, prefixed
+ * with their length in bytes.
+ * <br><br>
+ * A request frame:
+ * <pre>
+ * int    length of the rest of the frame
+ * long   correlation ID, chosen by the client
+ * short  length of the command name (unsigned), followed by the name
+ * int    number of arguments
+ * int    length of an argument, followed by the argument (for each one)
+ * </pre>
+ * A response frame:
+ * <pre>
+ * int    length of the rest of the frame
+ * long   correlation ID of the request
+ * byte   {@link FrameStatus} code
+ * byte[] the value or the error message, up to the end of the frame
+ * </pre>
+ * Arguments are passed to the command as they are, so they are neither
+ * quoted nor escaped, and the command name has no prefix. A client can
+ * send many requests without waiting for the responses, which come back
+ * as soon as they are ready, not necessarily in the order of the requests.
+ */
+public final class FrameCodec {
+
+    /**
+     * Length of the fixed part of a request, following the frame length
+     */
+    private static final int REQUEST_HEADER = Long.BYTES + Short.BYTES + Integer.BYTES;
+
+    /**
+     * Length of the fixed part of a response, following the frame length
+     */
+    private static final int RESPONSE_HEADER = Long.BYTES + Byte.BYTES;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * A decoded response frame
+     */
+    public static final class Response {
+        private final long correlationId;
+        private final FrameStatus status;
+        private final String value;
+
+        Response(long correlationId, FrameStatus status, String value) {
+            this.correlationId = correlationId;
+            this.status = status;
+            this.value = value;
+        }
+
+        public long getCorrelationId() {
+            return correlationId;
+        }
+
+        public FrameStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The value returned by the command or the error message,
+         * {@code null} if the status is {@link FrameStatus#NO_VALUE}
+         */
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "Response{correlationId=" + correlationId +
+                    ", status=" + status +
+                    ", value=" + value + "}";
+        }
+    }
+
+    /**
+     * A decoded request frame. Malformed requests carry the reason instead
+     * of the command
+     */
+    static final class Request {
+        final long correlationId;
+        final String commandName;
+        final String[] args;
+        final String error;
+
+        Request(long correlationId, String commandName, String[] args, String error) {
+            this.correlationId = correlationId;
+            this.commandName = commandName;
+            this.args = args;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Writes a request frame. The output is not flushed, so many requests
+     * can be sent at once
+     *
+     * @param out           Output to write to, usually buffered
+     * @param correlationId ID to be sent back with the response
+     * @param commandName   Name of the command, without the prefix
+     * @param args          Arguments of the call
+     * @throws IOException if writing fails
+     */
+    public static void writeRequest(DataOutput out, long correlationId, String commandName,
+                                    String... args) throws IOException {
+        byte[] name = commandName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 0xFFFF) {
+            throw new IllegalArgumentException("Command name too long");
+        }
+        byte[][] encodedArgs = new byte[args.length][];
+        long length = REQUEST_HEADER + name.length;
+        for (int i = 0; i < args.length; i++) {
+            encodedArgs[i] = args[i].getBytes(StandardCharsets.UTF_8);
+            length += Integer.BYTES + encodedArgs[i].length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Request too large");
+        }
+
+        out.writeInt((int) length);
+        out.writeLong(correlationId);
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeInt(args.length);
+        for (byte[] arg : encodedArgs) {
+            out.writeInt(arg.length);
+            out.write(arg);
+        }
+    }
+
+    /**
+     * Reads a response frame, blocking until it is complete
+     *
+     * @param in Input to read from, usually buffered
+     * @return The response
+     * @throws IOException if reading fails or the input ends
+     */
+    public static Response readResponse(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < RESPONSE_HEADER) {
+            throw new IOException("Malformed response frame");
+        }
+        long correlationId = in.readLong();
+        FrameStatus status;
+        try {
+            status = FrameStatus.of(in.readUnsignedByte());
+        } catch (IllegalArgumentException err) {
+            throw new IOException(err.getMessage());
+        }
+        byte[] value = new byte[length - RESPONSE_HEADER];
+        in.readFully(value);
+        return new Response(correlationId, status, status == FrameStatus.NO_VALUE
+                ? null
+                : new String(value, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a response frame without flushing the output
+     *
+     * @param value The value or the error message, can be {@code null}
+     */
+    static void writeResponse(DataOutput out, long correlationId, FrameStatus status,
+                              String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(RESPONSE_HEADER + bytes.length);
+        out.writeLong(correlationId);
+        out.writeByte(status.getCode());
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a request frame, blocking until it is complete. Frames longer
+     * than the limit are skipped and returned as malformed requests
+     *
+     * @param buffer         A single-element array holding a buffer reused
+     *                       from one call to the next, grown when needed
+     * @param maxFrameLength Maximum length of a frame
+     * @return The request
+     * @throws IOException if reading fails or the input ends
+     */
+    static Request readRequest(DataInput in, byte[][] buffer, int maxFrameLength)
+            throws IOException {
+        int length = in.readInt();
+        if (length < Long.BYTES) {
+            throw new IOException("Malformed request frame");
+        }
+        long correlationId = in.readLong();
+        int remaining = length - Long.BYTES;
+        if (length > maxFrameLength) {
+            while (remaining > 0) {
+                int skipped = in.skipBytes(remaining);
+                if (skipped <= 0) {
+                    in.readByte();
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+            return new Request(correlationId, null, null, "frame too large");
+        }
+
+        byte[] frame = buffer[0];
+        if (frame == null || frame.length < remaining) {
+            frame = new byte[Math.max(remaining, 256)];
+            buffer[0] = frame;
+        }
+        in.readFully(frame, 0, remaining);
+        ByteBuffer body = ByteBuffer.wrap(frame, 0, remaining);
+        try {
+            String commandName = readString(body, Short.toUnsignedInt(body.getShort()));
+            int argCount = body.getInt();
+            // every argument takes at least its length
+            if (argCount < 0 || argCount > body.remaining() / Integer.BYTES) {
+                return new Request(correlationId, null, null, "invalid argument count");
+            }
+            String[] args = new String[argCount];
+            for (int i = 0; i < argCount; i++) {
+                args[i] = readString(body, body.getInt());
+            }
+            if (body.hasRemaining()) {
+                return new Request(correlationId, null, null, "trailing bytes in frame");
+            }
+            return new Request(correlationId, commandName, args, null);
+        } catch (RuntimeException err) {
+            // BufferUnderflowException or a negative length
+            return new Request(correlationId, null, null, "truncated frame");
+        }
+    }
+
+    private static String readString(ByteBuffer body, int length) {
+        if (length < 0 || length > body.remaining()) {
+            throw new IllegalArgumentException("Invalid string length");
+        }
+        String value = new String(body.array(), body.position(), length,
+                StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return value;
+    }
+}
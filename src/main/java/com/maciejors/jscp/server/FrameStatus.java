@@ -0,0 +1,61 @@
+package com.maciejors.jscp.server;
+
+/**
+ * Status of a response frame of the {@link ServerProtocol#BINARY} protocol
+ */
+public enum FrameStatus {
+
+    /**
+     * The command returned a value, carried by the frame
+     */
+    OK(0),
+
+    /**
+     * The command returned {@code null}
+     */
+    NO_VALUE(1),
+
+    /**
+     * The command threw an exception or returned an {@code Error: ...}
+     * value. The frame carries the error message
+     */
+    ERROR(2),
+
+    /**
+     * There is no command with the requested name
+     */
+    NOT_FOUND(3),
+
+    /**
+     * The request frame was malformed or too large. The frame carries the
+     * reason
+     */
+    BAD_REQUEST(4);
+
+    private static final FrameStatus[] BY_CODE = values();
+
+    private final int code;
+
+    FrameStatus(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return Code of the status sent on the wire
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @param code Code of a status sent on the wire
+     * @return The status with the code
+     * @throws IllegalArgumentException if there is no such status
+     */
+    public static FrameStatus of(int code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            throw new IllegalArgumentException("Unknown frame status: " + code);
+        }
+        return BY_CODE[code];
+    }
+}
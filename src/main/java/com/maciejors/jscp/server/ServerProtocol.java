@@ -0,0 +1,19 @@
+package com.maciejors.jscp.server;
+
+/**
+ * Wire format spoken by the sessions of a {@link CommandServer}
+ */
+public enum ServerProtocol {
+
+    /**
+     * Lines of text, each answered with the output of the line followed by
+     * a newline, in the order of the lines
+     */
+    TEXT,
+
+    /**
+     * Length-prefixed binary frames tagged with correlation IDs, answered
+     * with status codes in any order, see {@link FrameCodec}
+     */
+    BINARY
+}
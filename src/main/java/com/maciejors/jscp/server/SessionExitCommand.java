@@ -0,0 +1,56 @@
+package com.maciejors.jscp.server;
+
+import com.maciejors.jscp.core.ArgumentView;
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.defaultcommands.DefaultExitCommand;
+
+/**
+ * Registered by a {@link CommandServer} under the name of the session exit
+ * command while it runs. Called by a session, it ends the session, so the
+ * session ends wherever the command has been resolved: in an abbreviated
+ * call, a pipeline or a macro. Called by any other thread, it calls the
+ * command it has replaced
+ */
+final class SessionExitCommand extends Command {
+
+    /**
+     * Command registered under the name before the server started, or
+     * {@code null}
+     */
+    private final Command replaced;
+
+    SessionExitCommand(Command replaced) {
+        this.replaced = replaced;
+    }
+
+    Command getReplaced() {
+        return replaced;
+    }
+
+    @Override
+    public String call(String[] args) {
+        if (DefaultExitCommand.exitSession()) {
+            return "";
+        }
+        return replaced != null
+                ? replaced.call(args)
+                : "Error: not in a session";
+    }
+
+    @Override
+    public String call(ArgumentView args) {
+        if (DefaultExitCommand.exitSession()) {
+            return "";
+        }
+        return replaced != null
+                ? replaced.call(args)
+                : "Error: not in a session";
+    }
+
+    @Override
+    public String getDescription() {
+        return replaced != null && replaced.getDescription() != null
+                ? replaced.getDescription()
+                : "Ends the session";
+    }
+}
@@ -1,4 +1,16 @@
 module jscp {
+    requires static java.compiler;
+    requires java.management;
+    requires jdk.management;
+    requires jdk.jfr;
+
     exports com.maciejors.jscp.annotations;
     exports com.maciejors.jscp.core;
-}
\ No newline at end of file
+    exports com.maciejors.jscp.metrics;
+    exports com.maciejors.jscp.server;
+
+    uses com.maciejors.jscp.core.CommandCatalog;
+
+    provides javax.annotation.processing.Processor
+            with com.maciejors.jscp.processor.CommandCatalogProcessor;
+}
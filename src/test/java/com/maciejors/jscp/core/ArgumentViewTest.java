@@ -0,0 +1,84 @@
+package com.maciejors.jscp.core;
+
+import org.junit.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArgumentViewTest {
+
+    @Test
+    public void numbersParsedStraightFromLine() {
+        // arrange
+        ArgumentView spt = LineLexer.lex("!sum 12 -3000000000 2.5 \"7\"").getArgumentView();
+
+        // act & assert
+        assertEquals(4, spt.size());
+        assertEquals(12, spt.getInt(0));
+        assertEquals(-3000000000L, spt.getLong(1));
+        assertEquals(2.5, spt.getDouble(2));
+        assertEquals(7, spt.getInt(3));
+        assertThrows(NumberFormatException.class, () -> spt.getInt(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> spt.getInt(4));
+    }
+
+    @Test
+    public void argumentsComparedWithoutMaterializing() {
+        // arrange
+        ArgumentView spt = LineLexer.lex("!mode VERBOSE \"say \\\"hi\\\"\"").getArgumentView();
+
+        // act & assert
+        assertTrue(spt.equalsIgnoreCase(0, "verbose"));
+        assertFalse(spt.contentEquals(0, "verbose"));
+        assertTrue(spt.contentEquals(1, "say \"hi\""));
+        assertEquals(8, spt.length(1));
+        assertEquals("VERBOSE", spt.get(0).toString());
+        assertEquals("say \"hi\"", spt.getString(1));
+    }
+
+    @Test
+    public void materializedArgumentsAreCreatedOnce() {
+        // arrange
+        ArgumentView spt = LineLexer.lex("!concat a \"b c\"").getArgumentView();
+
+        // act
+        String[] first = spt.toArray();
+        String[] second = spt.toArray();
+
+        // assert
+        assertArrayEquals(new String[]{"a", "b c"}, first);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void viewCommandsAndArrayCommandsCanBeMixed() {
+        // arrange
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("sum", new ViewCommand() {
+            @Override
+            public String call(ArgumentView args) {
+                long sum = 0;
+                for (int i = 0; i < args.size(); i++) {
+                    sum += args.getLong(i);
+                }
+                return String.valueOf(sum);
+            }
+        });
+        commandManager.registerCommand("concat", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join("|", args);
+            }
+        });
+        CommandProcessor spt = new CommandProcessor(commandManager);
+
+        // act
+        String sum = spt.executeLine("!sum 1 2 \"3\" 40");
+        String concat = spt.executeLine("!concat 1 \"2 3\"");
+        String directSum = commandManager.findCommand("sum").call(new String[]{"5", "6"});
+
+        // assert
+        assertEquals("46", sum);
+        assertEquals("1|2 3", concat);
+        assertEquals("11", directSum);
+    }
+}
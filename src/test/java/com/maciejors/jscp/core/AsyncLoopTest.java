@@ -0,0 +1,229 @@
+package com.maciejors.jscp.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncLoopTest {
+
+    /**
+     * Completes after a number of milliseconds given as the first argument
+     */
+    private static class SleepCommand extends AsyncCommand {
+        @Override
+        public CompletionStage<String> callAsync(String[] args) {
+            long millis = Long.parseLong(args[0]);
+            return CompletableFuture.supplyAsync(() -> "slept " + millis,
+                    CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Never completes on its own
+     */
+    private static class HangCommand extends AsyncCommand {
+        final List<CompletableFuture<String>> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public CompletionStage<String> callAsync(String[] args) {
+            CompletableFuture<String> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        }
+    }
+
+    @Test
+    public void resultsArePrintedInInputOrder() {
+        // arrange
+        AsyncLoop spt = new AsyncLoop(getSampleCommandProcessor());
+
+        // act
+        String output = run(spt, "!sleep 200\n!sleep 10\n!echo now\n");
+
+        // assert
+        assertEquals(lines("slept 200", "slept 10", "now"), output);
+    }
+
+    @Test
+    public void cancelBeforeRunStopsThatRun() {
+        // arrange
+        AsyncLoop spt = new AsyncLoop(getSampleCommandProcessor());
+        spt.cancel();
+
+        // act
+        String cancelledOutput = run(spt, "!echo a\n");
+        String nextOutput = run(spt, "!echo b\n");
+
+        // assert
+        assertEquals("", cancelledOutput);
+        assertEquals(lines("b"), nextOutput);
+    }
+
+    @Test
+    public void slowCommandsDoNotBlockFollowingLines() {
+        // arrange
+        AsyncLoop spt = new AsyncLoop(getSampleCommandProcessor());
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            input.append("!sleep 200\n");
+        }
+
+        // act
+        long start = System.nanoTime();
+        run(spt, input.toString());
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // assert
+        assertTrue(elapsedMillis < 20 * 200 / 2);
+    }
+
+    @Test
+    public void completionOrderResultsAreTagged() {
+        // arrange
+        AsyncLoop spt = new AsyncLoop(getSampleCommandProcessor());
+        spt.setResultOrder(ResultOrder.COMPLETION);
+
+        // act
+        String output = run(spt, "!sleep 300\n!echo now\n");
+
+        // assert
+        assertEquals(lines("#2 now", "#1 slept 300"), output);
+    }
+
+    @Test
+    public void commandsTimeOut() {
+        // arrange
+        AsyncLoop spt = new AsyncLoop(getSampleCommandProcessor());
+        spt.setTimeout(Duration.ofMillis(50));
+
+        // act
+        String output = run(spt, "!sleep 5000\n!echo after\n");
+
+        // assert
+        assertEquals(lines("Error: timed out", "after"), output);
+    }
+
+    @Test
+    public void timedOutCommandIsCancelledBeforeRunReturns() {
+        // arrange
+        HangCommand hang = new HangCommand();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.getCommandManager().registerCommand("hang", hang);
+        AsyncLoop spt = new AsyncLoop(commandProcessor);
+        spt.setTimeout(Duration.ofMillis(50));
+
+        // act
+        String output = run(spt, "!hang\n");
+
+        // assert
+        assertEquals(lines("Error: timed out"), output);
+        assertTrue(hang.calls.get(0).isCancelled());
+    }
+
+    @Test
+    public void timedOutCommandIsCancelledWhileMeasured() {
+        // arrange
+        HangCommand hang = new HangCommand();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.getCommandManager().registerCommand("hang", hang);
+        List<Boolean> failures = new CopyOnWriteArrayList<>();
+        commandProcessor.addExecutionListener((commandName, parseNanos, executionNanos, failed) ->
+                failures.add(failed));
+        AsyncLoop spt = new AsyncLoop(commandProcessor);
+        spt.setTimeout(Duration.ofMillis(50));
+
+        // act
+        String output = run(spt, "!hang\n");
+
+        // assert
+        assertEquals(lines("Error: timed out"), output);
+        assertTrue(hang.calls.get(0).isCancelled());
+        assertEquals(List.of(true), failures);
+    }
+
+    @Test
+    public void timedOutCommandIsCancelledWhileJournaled() throws IOException {
+        // arrange
+        HangCommand hang = new HangCommand();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.getCommandManager().registerCommand("hang", hang);
+        ExecutionJournal journal = new ExecutionJournal(Files.createTempDirectory("jscp-journal"));
+        journal.open();
+        commandProcessor.setJournal(journal);
+        AsyncLoop spt = new AsyncLoop(commandProcessor);
+        spt.setTimeout(Duration.ofMillis(50));
+
+        // act
+        String output = run(spt, "!hang\n");
+        journal.close();
+
+        // assert
+        assertEquals(lines("Error: timed out"), output);
+        assertTrue(hang.calls.get(0).isCancelled());
+    }
+
+    @Test
+    public void failuresArePrintedAsErrors() {
+        // arrange
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.getCommandManager().registerCommand("fail", new AsyncCommand() {
+            @Override
+            public CompletionStage<String> callAsync(String[] args) {
+                return CompletableFuture.failedFuture(new IllegalStateException("broken"));
+            }
+        });
+        AsyncLoop spt = new AsyncLoop(commandProcessor);
+
+        // act
+        String output = run(spt, "!fail\n");
+
+        // assert
+        assertEquals(lines("Error: broken"), output);
+    }
+
+    @Test
+    public void asyncCommandCanBeCalledSynchronously() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String commandOutput = spt.executeLine("!sleep 10");
+
+        // assert
+        assertEquals("slept 10", commandOutput);
+    }
+
+    private static String run(AsyncLoop loop, String input) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        loop.run(new ByteArrayInputStream(input.getBytes()), new PrintStream(output));
+        return output.toString();
+    }
+
+    private static String lines(String... lines) {
+        return String.join(System.lineSeparator(), lines) + System.lineSeparator();
+    }
+
+    private CommandProcessor getSampleCommandProcessor() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("sleep", new SleepCommand());
+        commandManager.registerCommand("echo", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join(" ", args);
+            }
+        });
+        return new CommandProcessor(commandManager);
+    }
+}
@@ -0,0 +1,179 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.annotations.ParallelSafe;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchExecutionTest {
+
+    @ParallelSafe
+    private static class EchoCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return String.join(" ", args);
+        }
+    }
+
+    /**
+     * Not thread-safe on purpose - detects concurrent calls
+     */
+    private static class AppendCommand extends Command {
+        private final List<String> appended = new ArrayList<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private volatile boolean overlapped = false;
+
+        @Override
+        public String call(String[] args) {
+            if (running.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            appended.add(args[0]);
+            running.decrementAndGet();
+            return String.valueOf(appended.size());
+        }
+    }
+
+    /**
+     * Waits until a given number of calls run at the same time
+     */
+    @ParallelSafe
+    private static class BarrierCommand extends Command {
+        private final CountDownLatch latch;
+
+        BarrierCommand(int parties) {
+            this.latch = new CountDownLatch(parties);
+        }
+
+        @Override
+        public String call(String[] args) {
+            latch.countDown();
+            try {
+                return String.valueOf(latch.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException err) {
+                throw new IllegalStateException(err);
+            }
+        }
+    }
+
+    @Test
+    public void resultsAreReturnedInInputOrder() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        List<String> lines = IntStream.range(0, 500)
+                .mapToObj(i -> "!echo " + i)
+                .collect(Collectors.toList());
+
+        // act
+        List<String> results = spt.executeAll(lines);
+
+        // assert
+        for (int i = 0; i < 500; i++) {
+            assertEquals(String.valueOf(i), results.get(i));
+        }
+    }
+
+    @Test
+    public void inputOrderDeliveryFollowsLines() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.setMaxLinesInFlight(8);
+        List<Long> indexes = new ArrayList<>();
+
+        // act
+        spt.executeAll(IntStream.range(0, 200).mapToObj(i -> "!echo " + i),
+                ResultOrder.INPUT, (result, index) -> indexes.add(index));
+
+        // assert
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, indexes.get(i));
+        }
+    }
+
+    @Test
+    public void commandsNotParallelSafeRunSeriallyInOrder() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        AppendCommand append = new AppendCommand();
+        spt.getCommandManager().registerCommand("append", append);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            lines.add("!append " + i);
+            lines.add("!echo " + i);
+        }
+
+        // act
+        List<String> results = spt.executeAll(lines);
+
+        // assert
+        assertFalse(append.overlapped);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(String.valueOf(i), append.appended.get(i));
+            assertEquals(String.valueOf(i + 1), results.get(2 * i));
+        }
+    }
+
+    @Test
+    public void parallelSafeCommandsRunConcurrently() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        spt.setBatchExecutor(executor);
+        spt.getCommandManager().registerCommand("barrier", new BarrierCommand(4));
+
+        // act
+        List<String> results = spt.executeAll(Arrays.asList(
+                "!barrier", "!barrier", "!barrier", "!barrier"));
+        executor.shutdown();
+
+        // assert
+        assertEquals(Arrays.asList("true", "true", "true", "true"), results);
+    }
+
+    @Test
+    public void invalidAndBlankLinesProduceOutput() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        List<String> results = spt.executeAll(Arrays.asList("!missing", "", "!echo a"));
+
+        // assert
+        assertTrue(results.get(0).startsWith("Error"));
+        assertEquals("", results.get(1));
+        assertEquals("a", results.get(2));
+    }
+
+    @Test
+    public void commandExceptionIsRethrown() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.getCommandManager().registerCommand("fail", new Command() {
+            @Override
+            public String call(String[] args) {
+                throw new IllegalStateException("failed");
+            }
+        });
+
+        // act & assert
+        assertThrows(IllegalStateException.class,
+                () -> spt.executeAll(Arrays.asList("!echo a", "!fail", "!echo b")));
+    }
+
+    private CommandProcessor getSampleCommandProcessor() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("echo", new EchoCommand());
+        return new CommandProcessor(commandManager);
+    }
+}
@@ -0,0 +1,133 @@
+package com.maciejors.jscp.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ChannelLoopTest {
+
+    @Test
+    public void linesAreExecutedInOrder() throws IOException {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String output = run(new ChannelLoop(spt), "!echo a\n!echo \"b c\"\r\n\n!echo d");
+
+        // assert
+        assertEquals("a\nb c\n\nd\n", output);
+    }
+
+    @Test
+    public void linesLongerThanBuffersAreHandled() throws IOException {
+        // arrange
+        ChannelLoop spt = new ChannelLoop(getSampleCommandProcessor());
+        spt.setInputBufferSize(4);
+        spt.setOutputBufferSize(3);
+        String longArgument = "\u0105bcdefghijklmnopqrstuvwxyz".repeat(20);
+
+        // act
+        String output = run(spt, "!echo " + longArgument + "\n!echo \u017c\n");
+
+        // assert
+        assertEquals(longArgument + "\n\u017c\n", output);
+    }
+
+    @Test
+    public void linesExceedingMaxLengthAreSkipped() throws IOException {
+        // arrange
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.setMaxLineLength(16);
+        ChannelLoop spt = new ChannelLoop(commandProcessor);
+        spt.setInputBufferSize(4);
+        String longLine = "!echo " + "x".repeat(100);
+
+        // act
+        String output = run(spt, longLine + "\n!echo a\n" + longLine);
+
+        // assert
+        String error = "Error: line too long (max 16 characters)";
+        assertEquals(error + "\na\n" + error + "\n", output);
+    }
+
+    @Test
+    public void outputIsFlushedBeforeWaitingForInput() throws IOException {
+        // arrange
+        ChannelLoop spt = new ChannelLoop(getSampleCommandProcessor());
+        spt.setFlushInterval(Duration.ofHours(1));
+        Pipe input = Pipe.open();
+        Pipe output = Pipe.open();
+        Thread loop = new Thread(() -> {
+            try {
+                spt.run(input.source(), output.sink());
+            } catch (IOException err) {
+                throw new IllegalStateException(err);
+            }
+        });
+        loop.start();
+
+        // act
+        input.sink().write(ByteBuffer.wrap("!echo first\n".getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer received = ByteBuffer.allocate(64);
+        while (received.position() < "first\n".length()) {
+            output.source().read(received);
+        }
+        input.sink().close();
+
+        // assert
+        assertEquals("first\n", new String(received.array(), 0,
+                received.position(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void streamedOutputIsEncodedAsItIsWritten() throws IOException {
+        // arrange
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.getCommandManager().registerCommand("dump", new StreamingCommand() {
+            @Override
+            public void call(ArgumentView args, Appendable out) throws IOException {
+                for (int i = 0; i < args.getInt(0); i++) {
+                    // a surrogate pair split between two pieces
+                    out.append("row ").append('\ud83d');
+                    out.append("\ude00;");
+                }
+            }
+        });
+        ChannelLoop spt = new ChannelLoop(commandProcessor);
+        spt.setOutputBufferSize(5);
+
+        // act
+        String output = run(spt, "!dump 1000\n!echo done\n");
+
+        // assert
+        assertEquals("row \ud83d\ude00;".repeat(1000) + "\ndone\n", output);
+    }
+
+    private static String run(ChannelLoop loop, String input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        loop.run(Channels.newChannel(new ByteArrayInputStream(
+                        input.getBytes(StandardCharsets.UTF_8))),
+                Channels.newChannel(output));
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private CommandProcessor getSampleCommandProcessor() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("echo", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join(" ", args);
+            }
+        });
+        return new CommandProcessor(commandManager);
+    }
+}
@@ -1,7 +1,22 @@
 package com.maciejors.jscp.core;
 
+import com.maciejors.jscp.annotations.Cacheable;
+import com.maciejors.jscp.annotations.CommandPolicy;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class CommandManagerTest {
@@ -96,4 +111,315 @@ public class CommandManagerTest {
         // assert
         assertNotNull(foundCommand);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void replaceCommandReturnsPreviousCommand() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        Command command = getNullCommand();
+        Command commandOverride = getNullCommand();
+        spt.replaceCommand("myCommand", command);
+
+        // act
+        Command previous = spt.replaceCommand("myCommand", commandOverride);
+
+        // assert
+        assertSame(command, previous);
+        assertSame(commandOverride, spt.findCommand("myCommand"));
+    }
+
+    @Test
+    public void registerCommandIfAbsentKeepsExistingCommand() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        Command command = getNullCommand();
+        spt.registerCommand("myCommand", command);
+
+        // act
+        Command existing = spt.registerCommandIfAbsent("myCommand", getNullCommand());
+
+        // assert
+        assertSame(command, existing);
+        assertSame(command, spt.findCommand("myCommand"));
+    }
+
+    @Test
+    public void unregisteredCommandCannotBeFound() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        Command command = getNullCommand();
+        spt.registerCommand("myCommand", command);
+
+        // act
+        Command removed = spt.unregisterCommand("myCommand");
+
+        // assert
+        assertSame(command, removed);
+        assertNull(spt.findCommand("myCommand"));
+        assertNull(spt.unregisterCommand("myCommand"));
+    }
+
+    @Test
+    public void registeredCommandsSnapshotIsNotAffectedByRegistrations() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        spt.registerCommand("first", getNullCommand());
+        Map<String, Command> snapshot = spt.getRegisteredCommands();
+
+        // act
+        spt.registerCommand("second", getNullCommand());
+
+        // assert
+        assertEquals(1, snapshot.size());
+        assertEquals(2, spt.getRegisteredCommands().size());
+    }
+
+    @Test
+    public void concurrentRegistrationsAndLookupsStayConsistent() throws Exception {
+        // arrange
+        CommandManager spt = new CommandManager();
+        Command stable = getNullCommand();
+        spt.registerCommand("stable", stable);
+        int writers = 4;
+        int readers = 4;
+        int iterations = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<?>> futures = new ArrayList<>();
+
+        // act
+        for (int w = 0; w < writers; w++) {
+            String name = "cmd" + w;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < iterations; i++) {
+                    Command command = getNullCommand();
+                    spt.registerCommandIfAbsent(name, command);
+                    if (spt.unregisterCommand(name) != command) {
+                        failed.set(true);
+                    }
+                }
+                spt.replaceCommand(name, getNullCommand());
+                return null;
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < iterations * 10; i++) {
+                    if (spt.findCommand("stable") != stable) {
+                        failed.set(true);
+                    }
+                    spt.findCommand("cmd" + (i % writers));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        // assert
+        assertFalse(failed.get());
+        assertEquals(writers + 1, spt.getRegisteredCommands().size());
+    }
+
+    @Test
+    public void commandFoundByRangeOfCharacters() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        Command status = getNullCommand();
+        spt.registerCommand("status", status);
+        spt.registerCommand("stat", getNullCommand());
+
+        // act
+        Command found = spt.findCommand("!status web-1", 1, 7);
+        Command notFound = spt.findCommand("!statu web-1", 1, 6);
+
+        // assert
+        assertSame(status, found);
+        assertNull(notFound);
+    }
+
+    @Test
+    public void completionsAreSortedAndFollowRegistrations() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        spt.registerCommand("status", getNullCommand());
+        spt.registerCommand("start", getNullCommand());
+        spt.registerCommand("stop", getNullCommand());
+        spt.registerCommand("help", getNullCommand());
+
+        // act
+        List<String> before = spt.getCompletions("st");
+        spt.unregisterCommand("stop");
+        List<String> after = spt.getCompletions("sta");
+
+        // assert
+        assertEquals(List.of("start", "status", "stop"), before);
+        assertEquals(List.of("start", "status"), after);
+        assertEquals(4 - 1, spt.getCompletions("").size());
+        assertTrue(spt.getCompletions("x").isEmpty());
+    }
+
+    @Test
+    public void abbreviationsResolveOnlyWhenUnique() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        spt.registerCommand("stat", getNullCommand());
+        spt.registerCommand("status", getNullCommand());
+        spt.registerCommand("help", getNullCommand());
+
+        // act & assert
+        assertEquals("help", spt.resolveAbbreviation("h"));
+        assertEquals("status", spt.resolveAbbreviation("statu"));
+        assertEquals("stat", spt.resolveAbbreviation("stat"));
+        assertNull(spt.resolveAbbreviation("st"));
+        assertNull(spt.resolveAbbreviation("x"));
+    }
+
+    @Test
+    public void emptyNameIsNotAnAbbreviation() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        spt.registerCommand("help", getNullCommand());
+        CommandProcessor commandProcessor = new CommandProcessor(spt);
+        commandProcessor.setAbbreviationsEnabled(true);
+
+        // act
+        String commandOutput = commandProcessor.executeLine("!");
+
+        // assert
+        assertNull(spt.resolveAbbreviation(""));
+        assertEquals("Error: command not found", commandOutput);
+    }
+
+    @Test
+    public void characterRangeBetweenLettersIsNotAllowed() {
+        // arrange
+        CommandManager spt = new CommandManager();
+
+        // act
+        spt.registerCommand("a[b", getNullCommand());
+        spt.registerCommand("a^b", getNullCommand());
+
+        // assert
+        assertTrue(spt.getRegisteredCommands().isEmpty());
+    }
+
+    @Test
+    public void registerAllPublishesAllCommandsAtOnce() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        spt.registerCommand("existing", getNullCommand());
+        long versionBefore = spt.getRegistrationVersion();
+
+        Map<String, Command> commands = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            commands.put("generated_" + i, getNullCommand());
+        }
+        commands.put("existing", getNullCommand());
+
+        // act
+        RegistrationResult result = spt.registerAll(commands);
+
+        // assert
+        assertTrue(result.isSuccessful());
+        assertEquals(100, result.getRegistered().size());
+        assertEquals(List.of("existing"), result.getReplaced());
+        assertEquals(101, spt.getRegisteredCommands().size());
+        assertEquals(versionBefore + 1, spt.getRegistrationVersion());
+    }
+
+    @Test
+    public void registerAllReportsRejectedCommands() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        Map<String, Command> commands = new LinkedHashMap<>();
+        commands.put("valid", getNullCommand());
+        commands.put("not valid", getNullCommand());
+        commands.put("missing", null);
+
+        // act
+        RegistrationResult result = spt.registerAll(commands);
+
+        // assert
+        assertFalse(result.isSuccessful());
+        assertEquals(List.of("valid"), result.getRegistered());
+        assertEquals("invalid command name", result.getRejected().get("not valid"));
+        assertEquals("command is null", result.getRejected().get("missing"));
+        assertEquals(Set.of("valid"), spt.getRegisteredCommands().keySet());
+    }
+
+    @CommandPolicy(timeoutMillis = 500, permitsPerSecond = 10, burst = 5)
+    public static class LimitedCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return "limited";
+        }
+    }
+
+    @Test
+    public void commandPolicyAnnotationIsApplied() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        Command command = new LimitedCommand();
+
+        // act
+        spt.registerCommand("limited", command);
+        spt.registerCommand("plain", getNullCommand());
+
+        // assert
+        DispatchPolicy policy = spt.getDispatchPolicy("limited");
+        assertEquals(Duration.ofMillis(500), policy.getTimeout());
+        assertEquals(10, policy.getPermitsPerSecond());
+        assertEquals(5, policy.getBurst());
+        assertEquals(DispatchPolicy.NONE, spt.getDispatchPolicy("plain"));
+        assertNull(spt.getDispatchPolicy("missing"));
+        assertSame(command, spt.findCommand("limited"));
+        assertSame(command, spt.findCommand("!limited", 1, 8));
+    }
+
+    @Cacheable(maxEntries = 2)
+    public static class EchoCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return args.length == 0 ? "Error: nothing to echo" : args[0];
+        }
+    }
+
+    @Test
+    public void cacheEvictsOldestValues() {
+        // arrange
+        CommandManager spt = new CommandManager();
+        spt.registerCommand("echo", new EchoCommand());
+        CommandProcessor processor = new CommandProcessor(spt);
+
+        // act
+        processor.executeLine("!echo a");
+        processor.executeLine("!echo b");
+        processor.executeLine("!echo c");
+        processor.executeLine("!echo");
+        processor.executeLine("!echo c");
+
+        // assert
+        CacheStats stats = spt.getCacheStats("echo");
+        assertEquals(1, stats.getEvictions());
+        assertEquals(2, stats.getSize());
+        assertEquals(1, stats.getHits());
+        assertNull(spt.getCacheStats("missing"));
+        assertFalse(spt.invalidateCache("missing"));
+    }
+
+    private static Command getNullCommand() {
+        return new Command() {
+            @Override
+            public String call(String[] args) {
+                return null;
+            }
+        };
+    }
+}
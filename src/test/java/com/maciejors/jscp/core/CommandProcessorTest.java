@@ -1,8 +1,23 @@
 package com.maciejors.jscp.core;
 
+import com.maciejors.jscp.annotations.Cacheable;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CommandProcessorTest {
@@ -131,6 +146,711 @@ public class CommandProcessorTest {
         assertTrue(commandOutput.startsWith("Error"));
     }
 
+    @Test
+    public void quotesCorrectlyEscapedInsideQuotedArgument() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String commandOutput = spt.executeLine("!concat \"say \\\"hi\\\"\" x");
+
+        // assert
+        assertEquals("say \"hi\"|x", commandOutput);
+    }
+
+    @Test
+    public void emptyQuotedArgumentIsAllowed() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String commandOutput = spt.executeLine("!concat a \"\" b");
+
+        // assert
+        assertEquals("a||b", commandOutput);
+    }
+
+    @Test
+    public void backslashesNotFollowedByQuoteAreKept() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String commandOutput = spt.executeLine("!concat C:\\dir \"a\\b\"");
+
+        // assert
+        assertEquals("C:\\dir|a\\b", commandOutput);
+    }
+
+    @Test
+    public void parsingErrorReportsColumn() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String commandOutput = spt.executeLine("!concat \"tic\" \"tac");
+
+        // assert
+        assertEquals("Error: error parsing arguments: " +
+                "unmatched double quote at column 15", commandOutput);
+    }
+
+    @Test
+    public void blankLineProducesEmptyOutput() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String commandOutput = spt.executeLine("   ");
+
+        // assert
+        assertEquals("", commandOutput);
+    }
+
+    @Test
+    public void abbreviatedCommandsCalledWhenEnabled() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String disabledOutput = spt.executeLine("!con a b");
+        spt.setAbbreviationsEnabled(true);
+        String enabledOutput = spt.executeLine("!con a b");
+
+        // assert
+        assertEquals("Error: command not found", disabledOutput);
+        assertEquals("a|b", enabledOutput);
+    }
+
+    @Test
+    public void ambiguousAbbreviationProducesInvalidStatement() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.getCommandManager().registerCommand("config", new Command() {
+            @Override
+            public String call(String[] args) {
+                return "config";
+            }
+        });
+        spt.setAbbreviationsEnabled(true);
+
+        // act
+        String commandOutput = spt.executeLine("!co");
+
+        // assert
+        assertEquals("Error: ambiguous command abbreviation", commandOutput);
+    }
+
+    @Test
+    public void streamingCommandWritesToSink() throws IOException {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.getCommandManager().registerCommand("count", new StreamingCommand() {
+            @Override
+            public void call(ArgumentView args, Appendable out) throws IOException {
+                for (int i = 1; i <= args.getInt(0); i++) {
+                    out.append(Integer.toString(i)).append(' ');
+                }
+            }
+        });
+        StringBuilder streamed = new StringBuilder();
+        StringBuilder adapted = new StringBuilder();
+        StringBuilder blank = new StringBuilder();
+
+        // act
+        spt.executeLineTo("!count 3", streamed);
+        spt.executeLineTo("!concat a b", adapted);
+        spt.executeLineTo("  ", blank);
+        String collected = spt.executeLine("!count 2");
+
+        // assert
+        assertEquals("1 2 3 ", streamed.toString());
+        assertEquals("a|b", adapted.toString());
+        assertEquals("", blank.toString());
+        assertEquals("1 2 ", collected);
+    }
+
+    @Test
+    public void loopPrintsStreamedOutput() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.getCommandManager().registerCommand("lines", new StreamingCommand() {
+            @Override
+            public void call(ArgumentView args, Appendable out) throws IOException {
+                out.append("x\ny");
+            }
+        });
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // act
+        spt.startLoop(new ByteArrayInputStream("!lines\n!null\n".getBytes()),
+                new PrintStream(output, true));
+
+        // assert
+        assertEquals("x\ny\nnull\n", output.toString().replace("\r\n", "\n"));
+    }
+
+    // ========================================= //
+    // ========== Pipeline-related tests ======= //
+    // ========================================= //
+
+    @Test
+    public void pipelinePassesOutputAsLastArgument() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String commandOutput = spt.executeLine("!concat a b | !concat c | !concat");
+
+        // assert
+        assertEquals("c|a|b", commandOutput);
+    }
+
+    @Test
+    public void quotedPipeIsAnArgument() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String quotedPipe = spt.executeLine("!concat a \"|\" !concat");
+        String pipeWithoutCommand = spt.executeLine("!concat a | b");
+
+        // assert
+        assertEquals("a|||!concat", quotedPipe);
+        assertEquals("a|||b", pipeWithoutCommand);
+    }
+
+    @Test
+    public void unknownCommandInPipelineProducesInvalidStatement() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String commandOutput = spt.executeLine("!concat a | !nope");
+
+        // assert
+        assertEquals("Error: command not found in stage 2", commandOutput);
+    }
+
+    @Test
+    public void pipelineShortCircuitsOnErrors() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.getCommandManager().registerCommand("fail", new Command() {
+            @Override
+            public String call(String[] args) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        spt.getCommandManager().registerCommand("error", new Command() {
+            @Override
+            public String call(String[] args) {
+                return "Error: no such file";
+            }
+        });
+
+        // act
+        String passedOn = spt.executeLine("!error | !concat x");
+        spt.setPipelineShortCircuit(true);
+        String thrown = spt.executeLine("!concat a | !fail | !concat x");
+        String returned = spt.executeLine("!error | !concat x");
+        String async = spt.executeLineAsync("!concat a | !fail | !concat x")
+                .toCompletableFuture().join();
+
+        // assert
+        assertEquals("x|Error: no such file", passedOn);
+        assertEquals("Error: fail failed: broken", thrown);
+        assertEquals("Error: no such file", returned);
+        assertEquals("Error: fail failed: broken", async);
+    }
+
+    // ========================================= //
+    // ========= Dispatch policy tests ========= //
+    // ========================================= //
+
+    @Test
+    public void rateLimitRejectsCallsBeyondBurst() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.getCommandManager().registerCommand("limited",
+                spt.getCommandManager().findCommand("concat"),
+                DispatchPolicy.NONE.withRateLimit(0.01, 2));
+
+        // act
+        String first = spt.executeLine("!limited a");
+        String second = spt.executeLine("!limited b");
+        String third = spt.executeLine("!limited c");
+        String other = spt.executeLine("!concat d");
+
+        // assert
+        assertEquals("a", first);
+        assertEquals("b", second);
+        assertEquals("Error: rate limit exceeded", third);
+        assertEquals("d", other);
+    }
+
+    @Test
+    public void timeoutAbandonsSlowCommand() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.getCommandManager().registerCommand("slow", new Command() {
+            @Override
+            public String call(String[] args) {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException err) {
+                    Thread.currentThread().interrupt();
+                }
+                return "done";
+            }
+        }, DispatchPolicy.NONE.withTimeout(Duration.ofMillis(50)));
+
+        // act
+        long start = System.nanoTime();
+        String commandOutput = spt.executeLine("!slow");
+        long elapsed = System.nanoTime() - start;
+
+        // assert
+        assertEquals("Error: timed out", commandOutput);
+        assertTrue(elapsed < Duration.ofSeconds(5).toNanos());
+    }
+
+    @Test
+    public void concurrencyLimitRejectsExtraCalls() throws InterruptedException {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        spt.getCommandManager().registerCommand("blocking", new Command() {
+            @Override
+            public String call(String[] args) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException err) {
+                    Thread.currentThread().interrupt();
+                }
+                return "done";
+            }
+        }, DispatchPolicy.NONE.withMaxConcurrency(1));
+
+        // act
+        CompletableFuture<String> running =
+                CompletableFuture.supplyAsync(() -> spt.executeLine("!blocking"));
+        entered.await();
+        String rejected = spt.executeLine("!blocking");
+        release.countDown();
+        String completed = running.join();
+        String afterwards = spt.executeLine("!blocking");
+
+        // assert
+        assertEquals("Error: too many concurrent calls", rejected);
+        assertEquals("done", completed);
+        assertEquals("done", afterwards);
+    }
+
+    // ========================================= //
+    // ========== Memoization tests ============ //
+    // ========================================= //
+
+    @Cacheable(maxEntries = 16)
+    public static class CountingCommand extends Command {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile CountDownLatch release = new CountDownLatch(0);
+
+        @Override
+        public String call(String[] args) {
+            calls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+            }
+            return String.join("+", args);
+        }
+    }
+
+    @Test
+    public void cacheableCommandIsMemoizedUntilInvalidated() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        CountingCommand command = new CountingCommand();
+        spt.getCommandManager().registerCommand("sum", command);
+
+        // act
+        String first = spt.executeLine("!sum 1 2");
+        String second = spt.executeLine("!sum 1 2");
+        String other = spt.executeLine("!sum 1 3");
+        spt.getCommandManager().invalidateCache("sum");
+        String afterInvalidation = spt.executeLine("!sum 1 2");
+
+        // assert
+        assertEquals("1+2", first);
+        assertEquals("1+2", second);
+        assertEquals("1+3", other);
+        assertEquals("1+2", afterInvalidation);
+        assertEquals(3, command.calls.get());
+        CacheStats stats = spt.getCommandManager().getCacheStats("sum");
+        assertEquals(1, stats.getHits());
+        assertEquals(3, stats.getMisses());
+    }
+
+    @Test
+    public void identicalConcurrentCallsAreCoalesced() throws InterruptedException {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        CountingCommand command = new CountingCommand();
+        command.release = new CountDownLatch(1);
+        spt.getCommandManager().registerCommand("sum", command);
+
+        // act
+        CompletableFuture<String> first =
+                CompletableFuture.supplyAsync(() -> spt.executeLine("!sum 4 5"));
+        while (command.calls.get() == 0) {
+            Thread.sleep(1);
+        }
+        List<CompletableFuture<String>> waiting = List.of(
+                CompletableFuture.supplyAsync(() -> spt.executeLine("!sum 4 5")),
+                spt.executeLineAsync("!sum 4 5").toCompletableFuture());
+        while (spt.getCommandManager().getCacheStats("sum").getCoalesced() < 2) {
+            Thread.sleep(1);
+        }
+        command.release.countDown();
+
+        // assert
+        assertEquals("4+5", first.join());
+        for (CompletableFuture<String> output : waiting) {
+            assertEquals("4+5", output.join());
+        }
+        assertEquals(1, command.calls.get());
+    }
+
+    // ========================================= //
+    // ========== Input limit tests ============ //
+    // ========================================= //
+
+    @Test
+    public void tooLongArgumentsAreRejected() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.setMaxArgumentLength(3);
+
+        // act
+        String accepted = spt.executeLine("!concat abc \"a\\\"\"");
+        String rejected = spt.executeLine("!concat abc \"ab\\\"\"");
+
+        // assert
+        assertEquals("abc|a\"", accepted);
+        assertEquals("Error: argument too long (max 3 characters)", rejected);
+    }
+
+    @Test
+    public void loopSkipsLinesExceedingLimits() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.setMaxArgumentLength(10000);
+        spt.setMaxLineLength(50000);
+        // the quoted argument spans a few chunks of the input
+        String input = "!concat \"" + "a b".repeat(7000) + "\" b\n"
+                + "!concat x y\n"
+                + "!concat " + "b ".repeat(30000) + "\n"
+                + "!concat z\n";
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // act
+        spt.startLoop(new ByteArrayInputStream(input.getBytes()), new PrintStream(output, true));
+
+        // assert
+        assertEquals("Error: argument too long (max 10000 characters)\n"
+                        + "x|y\n"
+                        + "Error: line too long (max 50000 characters)\n"
+                        + "z\n",
+                output.toString().replace("\r\n", "\n"));
+    }
+
+    @Test
+    public void linesResolveAgainstASingleIndexSnapshot() throws InterruptedException {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        CommandManager commandManager = spt.getCommandManager();
+        commandManager.registerCommand("mmm", new Command() {
+            @Override
+            public String call(String[] args) {
+                return "m";
+            }
+        });
+        Command other = new Command() {
+            @Override
+            public String call(String[] args) {
+                return "a";
+            }
+        };
+        AtomicBoolean stop = new AtomicBoolean();
+        // registering a name sorted before mmm shifts its entry
+        Thread registering = new Thread(() -> {
+            while (!stop.get()) {
+                commandManager.registerCommand("aaa", other);
+                commandManager.unregisterCommand("aaa");
+            }
+        });
+        registering.start();
+
+        // act
+        int wrong = 0;
+        try {
+            for (int i = 0; i < 20000; i++) {
+                if (!"m".equals(spt.executeLine(i % 2 == 0 ? "!mmm" : "!concat x | !mmm"))) {
+                    wrong++;
+                }
+            }
+        } finally {
+            stop.set(true);
+            registering.join();
+        }
+
+        // assert
+        assertEquals(0, wrong);
+    }
+
+    // ========================================= //
+    // ============== Macro tests ============== //
+    // ========================================= //
+
+    @Test
+    public void macroSubstitutesParameters() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+
+        // act
+        String definition = spt.executeLine("def swap !concat $1 $2 ; !concat $2 \"$1\" x");
+        String output = spt.executeLine("!swap a \"b c\"");
+        String missing = spt.executeLine("!swap a");
+
+        // assert
+        assertEquals("Macro swap defined", definition);
+        assertEquals("b c|$1|x", output);
+        assertEquals("Error: swap expects 2 arguments", missing);
+    }
+
+    @Test
+    public void macroStepsRunOnConditions() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.getCommandManager().registerCommand("fail", new Command() {
+            @Override
+            public String call(String[] args) {
+                throw new IllegalStateException("down");
+            }
+        });
+        spt.executeLine("def check !concat $1 ; ?= yes !concat matched ; ?= no !fail"
+                + " ; ?error !concat recovered");
+
+        // act
+        String matched = spt.executeLine("!check yes");
+        String recovered = spt.executeLine("!check no");
+        String other = spt.executeLine("!check maybe");
+        spt.executeLine("def skip ?error !concat x");
+        String skipped = spt.executeLine("!skip");
+
+        // assert
+        assertEquals("matched", matched);
+        assertEquals("recovered", recovered);
+        assertEquals("maybe", other);
+        assertEquals("", skipped);
+    }
+
+    @Test
+    public void macroFollowsReregisteredCommands() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.executeLine("def wrap !concat [ $1 ]");
+        String before = spt.executeLine("!wrap a");
+
+        // act
+        spt.getCommandManager().registerCommand("concat", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join("", args);
+            }
+        });
+        String after = spt.executeLine("!wrap a");
+        spt.getCommandManager().unregisterCommand("concat");
+        String removed = spt.executeLine("!wrap a");
+
+        // assert
+        assertEquals("[|a|]", before);
+        assertEquals("[a]", after);
+        assertEquals("Error: command not found: concat", removed);
+        assertEquals("Error: macro cannot call itself",
+                spt.executeLine("def wrap !wrap $1"));
+    }
+
+    // ========================================= //
+    // ======= Low-allocation mode tests ======= //
+    // ========================================= //
+
+    @Test
+    public void lowAllocationModeReusesParsedCalls() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.setLowAllocationMode(true);
+        List<ArgumentView> views = new ArrayList<>();
+        spt.getCommandManager().registerCommand("view", new ViewCommand() {
+            @Override
+            public String call(ArgumentView args) {
+                views.add(args);
+                return args.getString(0);
+            }
+        });
+        spt.getCommandManager().registerCommand("nested", new Command() {
+            @Override
+            public String call(String[] args) {
+                String nested = spt.executeLine("!concat " + args[1]);
+                return args[0] + nested + args[0];
+            }
+        });
+        CountingCommand sum = new CountingCommand();
+        spt.getCommandManager().registerCommand("sum", sum);
+
+        // act
+        String first = spt.executeLine("!view a");
+        String second = spt.executeLine("!view \"b c\"");
+        String nested = spt.executeLine("!nested - x");
+        String firstSum = spt.executeLine("!sum 1 2");
+        String otherSum = spt.executeLine("!sum 1 3");
+        String repeatedSum = spt.executeLine("!sum 1 2");
+
+        // assert
+        assertEquals("a", first);
+        assertEquals("b c", second);
+        assertSame(views.get(0), views.get(1));
+        assertEquals("-x-", nested);
+        assertEquals("1+2", firstSum);
+        assertEquals("1+3", otherSum);
+        assertEquals("1+2", repeatedSum);
+        assertEquals(2, sum.calls.get());
+        assertEquals("]|[|a", spt.executeLine("!concat [ a | !concat ]"));
+        assertEquals("Error: command not found", spt.executeLine("!missing"));
+        assertEquals("", spt.executeLine("   "));
+    }
+
+    @Test
+    public void abandonedCallKeepsItsArguments() throws InterruptedException {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.setLowAllocationMode(true);
+        CountDownLatch released = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        List<String> seen = new ArrayList<>();
+        spt.getCommandManager().registerCommand("slow", new ViewCommand() {
+            @Override
+            public String call(ArgumentView args) {
+                // abandoned calls are interrupted, but this one ignores it
+                while (released.getCount() > 0) {
+                    try {
+                        released.await();
+                    } catch (InterruptedException err) {
+                        // keeps waiting
+                    }
+                }
+                seen.add(args.getString(0));
+                finished.countDown();
+                return "done";
+            }
+        }, DispatchPolicy.NONE.withTimeout(Duration.ofMillis(50)));
+
+        // act
+        String abandoned = spt.executeLine("!slow first");
+        String meanwhile = spt.executeLine("!concat second third");
+        String again = spt.executeLine("!slow other");
+        released.countDown();
+        finished.await();
+
+        // assert
+        assertEquals("Error: timed out", abandoned);
+        assertEquals("second|third", meanwhile);
+        assertEquals("Error: too many concurrent calls", again);
+        assertEquals(List.of("first"), seen);
+    }
+
+    @Test
+    public void hangingParallelSafeCallsAreLimited() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        spt.getCommandManager().registerCommand("hang", new Command() {
+            @Override
+            public String call(String[] args) {
+                started.incrementAndGet();
+                while (released.getCount() > 0) {
+                    try {
+                        released.await();
+                    } catch (InterruptedException err) {
+                        // keeps hanging
+                    }
+                }
+                return "done";
+            }
+
+            @Override
+            public boolean isParallelSafe() {
+                return true;
+            }
+        }, DispatchPolicy.NONE.withTimeout(Duration.ofMillis(1)));
+
+        // act
+        // calls abandoned before they start give their permits back
+        String output = "";
+        for (int i = 0; i < 10_000 && !output.equals("Error: too many concurrent calls"); i++) {
+            output = spt.executeLine("!hang");
+        }
+        // the last admitted call may still be starting
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (started.get() < GuardedCommand.DEFAULT_TIMED_CONCURRENCY
+                && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        int hanging = started.get();
+        released.countDown();
+
+        // assert
+        assertEquals("Error: too many concurrent calls", output);
+        assertEquals(GuardedCommand.DEFAULT_TIMED_CONCURRENCY, hanging);
+    }
+
+    @Test
+    public void lowAllocationLoopProducesTheSameOutput() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.setLowAllocationMode(true);
+        spt.setMaxLineLength(100);
+        String input = "!concat a \"b \\\" c\"\n"
+                + "def twice !concat $1 $1\n"
+                + "!twice x\n"
+                + "!concat " + "y ".repeat(100) + "\n"
+                + "!concat 1 | !concat 2\n"
+                + "!concat \"unmatched\n"
+                + "concat\n"
+                + "\n"
+                + "!null\n";
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // act
+        spt.startLoop(new ByteArrayInputStream(input.getBytes()), new PrintStream(output, true));
+
+        // assert
+        assertEquals("a|b \" c\n"
+                        + "Macro twice defined\n"
+                        + "x|x\n"
+                        + "Error: line too long (max 100 characters)\n"
+                        + "2|1\n"
+                        + "Error: error parsing arguments: unmatched double quote at column 9\n"
+                        + "Error: Parsing error: invalid statement\n"
+                        + "\n"
+                        + "null\n",
+                output.toString().replace("\r\n", "\n"));
+    }
 
     private CommandProcessor getSampleCommandProcessor() {
 
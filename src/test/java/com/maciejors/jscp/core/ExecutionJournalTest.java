@@ -0,0 +1,162 @@
+package com.maciejors.jscp.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ExecutionJournalTest {
+
+    /**
+     * Adds its arguments to a total and returns the total
+     */
+    private static class AddCommand extends Command {
+        final AtomicLong total = new AtomicLong();
+
+        @Override
+        public String call(String[] args) {
+            for (String arg : args) {
+                total.addAndGet(Long.parseLong(arg));
+            }
+            return String.valueOf(total.get());
+        }
+    }
+
+    @Test
+    public void successfulStatementsAreReplayed() throws IOException {
+        // arrange
+        Path directory = Files.createTempDirectory("jscp-journal");
+        AddCommand add = new AddCommand();
+        CommandProcessor commandProcessor = getSampleCommandProcessor(add);
+        ExecutionJournal spt = new ExecutionJournal(directory);
+        spt.setSyncPolicy(JournalSyncPolicy.ALWAYS);
+        spt.open();
+        commandProcessor.setJournal(spt);
+        commandProcessor.executeLine("!add 2");
+        commandProcessor.executeLine("!echo 3 | !add");
+        assertThrows(NumberFormatException.class,
+                () -> commandProcessor.executeLine("!echo 4 x | !add"));
+        commandProcessor.executeLineAsync("!add 5").toCompletableFuture().join();
+        assertThrows(NumberFormatException.class, () -> commandProcessor.executeLine("!add x"));
+        commandProcessor.executeLine("!error");
+        spt.close();
+        AddCommand replayedAdd = new AddCommand();
+
+        // act
+        List<JournalRecord> records = new ArrayList<>();
+        ExecutionJournal.read(directory, records::add);
+        long replayed = ExecutionJournal.replay(directory,
+                getSampleCommandProcessor(replayedAdd).getCommandManager());
+
+        // assert
+        assertEquals(10, add.total.get());
+        assertEquals(6, records.size());
+        assertEquals("add", records.get(0).getCommandName(0));
+        assertArrayEquals(new String[]{"2"}, records.get(0).getArgs(0));
+        assertEquals(2, records.get(1).getCallCount());
+        assertArrayEquals(new String[0], records.get(1).getArgs(1));
+        assertEquals(JournalStatus.FAILED, records.get(2).getStatus());
+        assertEquals(JournalStatus.OK, records.get(3).getStatus());
+        assertEquals(JournalStatus.FAILED, records.get(4).getStatus());
+        assertEquals(JournalStatus.ERROR, records.get(5).getStatus());
+        assertEquals(3, replayed);
+        assertEquals(10, replayedAdd.total.get());
+    }
+
+    @Test
+    public void macroDefinitionsAreReplayed() throws IOException {
+        // arrange
+        Path directory = Files.createTempDirectory("jscp-journal");
+        CommandProcessor commandProcessor = getSampleCommandProcessor(new AddCommand());
+        ExecutionJournal spt = new ExecutionJournal(directory);
+        spt.open();
+        commandProcessor.setJournal(spt);
+        commandProcessor.executeLine("def twice !add $1 ; !add $1");
+        commandProcessor.executeLine("!twice 3");
+        commandProcessor.executeLine("def twice !add $1");
+        commandProcessor.executeLine("!twice 4");
+        spt.close();
+        AddCommand replayedAdd = new AddCommand();
+
+        // act
+        List<JournalRecord> records = new ArrayList<>();
+        ExecutionJournal.read(directory, records::add);
+        long replayed = ExecutionJournal.replay(directory,
+                getSampleCommandProcessor(replayedAdd).getCommandManager());
+
+        // assert
+        assertTrue(records.get(0).isMacroDefinition());
+        assertEquals("twice", records.get(0).getCommandName(0));
+        assertArrayEquals(new String[]{"def twice !add $1 ; !add $1"}, records.get(0).getArgs(0));
+        assertEquals(4, replayed);
+        assertEquals(10, replayedAdd.total.get());
+    }
+
+    @Test
+    public void segmentsAreRotatedAndTornRecordsIgnored() throws IOException {
+        // arrange
+        Path directory = Files.createTempDirectory("jscp-journal");
+        CommandProcessor commandProcessor = getSampleCommandProcessor(new AddCommand());
+        ExecutionJournal spt = new ExecutionJournal(directory);
+        spt.setSyncPolicy(JournalSyncPolicy.NEVER);
+        spt.setMaxSegmentSize(256);
+        spt.open();
+        commandProcessor.setJournal(spt);
+        for (int i = 0; i < 100; i++) {
+            commandProcessor.executeLine("!echo " + i);
+        }
+        spt.close();
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.sorted().collect(Collectors.toList());
+        }
+        // a crash in the middle of writing the last record
+        Path last = segments.get(segments.size() - 1);
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        // act
+        List<String> echoed = new ArrayList<>();
+        long count = ExecutionJournal.read(directory,
+                record -> echoed.add(record.getArgs(0)[0]));
+
+        // assert
+        assertTrue(segments.size() > 1);
+        assertEquals(99, count);
+        for (int i = 0; i < 99; i++) {
+            assertEquals(String.valueOf(i), echoed.get(i));
+        }
+    }
+
+    private CommandProcessor getSampleCommandProcessor(AddCommand add) {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("add", add);
+        commandManager.registerCommand("echo", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join(" ", args);
+            }
+        });
+        commandManager.registerCommand("error", new Command() {
+            @Override
+            public String call(String[] args) {
+                return "Error: always";
+            }
+        });
+        return new CommandProcessor(commandManager);
+    }
+}
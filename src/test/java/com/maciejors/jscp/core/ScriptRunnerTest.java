@@ -0,0 +1,195 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.annotations.ParallelSafe;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ScriptRunnerTest {
+
+    @ParallelSafe
+    private static class CountingEchoCommand extends Command {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String call(String[] args) {
+            calls.incrementAndGet();
+            return String.join(" ", args);
+        }
+    }
+
+    private final CountingEchoCommand echo = new CountingEchoCommand();
+
+    private final CommandManager commandManager = new CommandManager();
+
+    @Test
+    public void scriptIsExecutedLineByLine() throws IOException {
+        // arrange
+        ScriptRunner spt = new ScriptRunner(getSampleCommandProcessor());
+        Path script = createScript("!echo a\r\n!echo \"b c\"\n\n!echo d");
+
+        // act
+        String output = run(spt, script);
+
+        // assert
+        assertEquals(String.join(System.lineSeparator(), "a", "b c", "", "d", ""), output);
+    }
+
+    @Test
+    public void parallelChunksKeepOutputOrder() throws IOException {
+        // arrange
+        ScriptRunner spt = new ScriptRunner(getSampleCommandProcessor());
+        spt.setChunkSize(16);
+        spt.setParallelism(4);
+        StringBuilder script = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            script.append("!echo ").append(i).append('\n');
+            expected.append(i).append(System.lineSeparator());
+        }
+
+        // act
+        String output = run(spt, createScript(script.toString()));
+
+        // assert
+        assertEquals(expected.toString(), output);
+        assertEquals(1000, echo.calls.get());
+    }
+
+    @Test
+    public void largeChunkOutputsKeepOutputOrder() throws IOException {
+        // arrange
+        ScriptRunner spt = new ScriptRunner(getSampleCommandProcessor());
+        spt.setChunkSize(64);
+        spt.setParallelism(4);
+        String filler = "x".repeat(300_000);
+        commandManager.registerCommand("big", new Command() {
+            @Override
+            public String call(String[] args) {
+                return args[0] + filler;
+            }
+        });
+        StringBuilder script = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            script.append("!big ").append(i % 10).append('\n');
+            expected.append(i % 10).append(filler).append(System.lineSeparator());
+        }
+
+        // act
+        String output = run(spt, createScript(script.toString()));
+
+        // assert
+        assertEquals(expected.toString(), output);
+    }
+
+    @Test
+    public void resumedRunSkipsCheckpointedLines() throws IOException {
+        // arrange
+        ScriptRunner spt = new ScriptRunner(getSampleCommandProcessor());
+        Path checkpoint = Files.createTempFile("jscp", ".checkpoint");
+        Files.delete(checkpoint);
+        spt.setCheckpointFile(checkpoint);
+        spt.setCheckpointInterval(1);
+        spt.setChunkSize(8);
+        Path script = createScript("!echo a\n!fail\n!echo b\n");
+        commandManager.registerCommand("fail", new Command() {
+            @Override
+            public String call(String[] args) {
+                throw new IllegalStateException("interrupted");
+            }
+        });
+        try {
+            run(spt, script);
+        } catch (IllegalStateException err) {
+            // the run got interrupted at the second line
+        }
+        commandManager.registerCommand("fail", echo);
+
+        // act
+        String output = run(spt, script);
+
+        // assert
+        assertEquals(String.join(System.lineSeparator(), "", "b", ""), output);
+        assertEquals(3, echo.calls.get());
+    }
+
+    @Test
+    public void completedRunDeletesTheCheckpoint() throws IOException {
+        // arrange
+        ScriptRunner spt = new ScriptRunner(getSampleCommandProcessor());
+        Path checkpoint = Files.createTempFile("jscp", ".checkpoint");
+        Files.delete(checkpoint);
+        spt.setCheckpointFile(checkpoint);
+        spt.setCheckpointInterval(1);
+        Path script = createScript("!echo a\n!echo b\n");
+        run(spt, script);
+
+        // act
+        String output = run(spt, script);
+
+        // assert
+        assertEquals(String.join(System.lineSeparator(), "a", "b", ""), output);
+        assertEquals(4, echo.calls.get());
+        assertFalse(Files.exists(checkpoint));
+    }
+
+    @Test
+    public void checkpointOfModifiedScriptIsRejected() throws IOException {
+        // arrange
+        ScriptRunner spt = new ScriptRunner(getSampleCommandProcessor());
+        Path checkpoint = Files.createTempFile("jscp", ".checkpoint");
+        checkpoint.toFile().deleteOnExit();
+        Files.delete(checkpoint);
+        spt.setCheckpointFile(checkpoint);
+        spt.setCheckpointInterval(1);
+        Path script = createScript("!echo a\n!fail\n");
+        commandManager.registerCommand("fail", new Command() {
+            @Override
+            public String call(String[] args) {
+                throw new IllegalStateException("interrupted");
+            }
+        });
+        assertThrows(IllegalStateException.class, () -> run(spt, script));
+
+        // act
+        // same size, different content
+        Files.writeString(script, "!echo b\n!echo c\n");
+        Files.setLastModifiedTime(script, FileTime.fromMillis(
+                Files.getLastModifiedTime(script).toMillis() + 1000));
+
+        // assert
+        assertThrows(IOException.class, () -> run(spt, script));
+    }
+
+    private static String run(ScriptRunner runner, Path script) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (PrintStream printStream = new PrintStream(output, false, StandardCharsets.UTF_8)) {
+            runner.run(script, printStream);
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private static Path createScript(String content) throws IOException {
+        Path script = Files.createTempFile("jscp", ".script");
+        script.toFile().deleteOnExit();
+        Files.writeString(script, content);
+        return script;
+    }
+
+    private CommandProcessor getSampleCommandProcessor() {
+        commandManager.registerCommand("echo", echo);
+        return new CommandProcessor(commandManager);
+    }
+}
@@ -0,0 +1,216 @@
+package com.maciejors.jscp.core;
+
+import com.maciejors.jscp.annotations.ParallelSafe;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ShardedDispatcherTest {
+
+    /**
+     * Appends values to lists by key, without any synchronization, and
+     * returns the list of the key
+     */
+    private static class AppendCommand extends Command {
+        final Map<String, List<String>> lists = new HashMap<>();
+        final Map<String, String> threads = new HashMap<>();
+
+        @Override
+        public String call(String[] args) {
+            List<String> list;
+            synchronized (lists) {
+                list = lists.computeIfAbsent(args[0], key -> new ArrayList<>());
+                threads.merge(args[0], Thread.currentThread().getName(),
+                        (previous, current) -> previous.equals(current) ? current : "many");
+            }
+            // unsynchronized on purpose, calls with the same key are serial
+            list.add(args[1]);
+            return String.join(",", list);
+        }
+    }
+
+    @ParallelSafe
+    private static class UpperCommand extends Command {
+        @Override
+        public String call(String[] args) {
+            return String.join(" ", args).toUpperCase();
+        }
+    }
+
+    /**
+     * Waits until a few calls are running at once
+     */
+    @ParallelSafe
+    private static class MeetCommand extends Command {
+        final CountDownLatch latch;
+
+        MeetCommand(int parties) {
+            this.latch = new CountDownLatch(parties);
+        }
+
+        @Override
+        public String call(String[] args) {
+            latch.countDown();
+            try {
+                return latch.await(5, TimeUnit.SECONDS) ? "met" : "alone";
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                return "interrupted";
+            }
+        }
+    }
+
+    @Test
+    public void callsWithTheSameKeyRunInOrderOnOneShard() {
+        // arrange
+        AppendCommand append = new AppendCommand();
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("append", append);
+        ShardedDispatcher spt = new ShardedDispatcher(new CommandProcessor(commandManager), 4);
+        spt.setKeyArgument("append", 0);
+        spt.start();
+
+        // act
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            results.add(spt.submit("!append key" + (i % 8) + " " + i).toCompletableFuture());
+        }
+        String unknown = spt.submit("!missing").toCompletableFuture().join();
+        spt.close();
+
+        // assert
+        for (int key = 0; key < 8; key++) {
+            List<String> list = append.lists.get("key" + key);
+            assertEquals(25, list.size());
+            for (int j = 0; j < 25; j++) {
+                assertEquals(String.valueOf(j * 8 + key), list.get(j));
+            }
+            assertTrue(append.threads.get("key" + key).startsWith("jscp-shard-"));
+        }
+        assertTrue(results.get(199).join().endsWith(",191,199"));
+        assertEquals("Error: command not found", unknown);
+        long executed = 0;
+        for (int i = 0; i < spt.getShardCount(); i++) {
+            executed += spt.getShardStats(i).getExecuted();
+            assertEquals(0, spt.getShardStats(i).getQueueDepth());
+        }
+        assertEquals(201, executed);
+        assertThrows(IllegalStateException.class, () -> spt.submit("!append a b"));
+    }
+
+    @Test
+    public void pipelinesAndMacrosRunOnTheShardOfTheirCalls() {
+        // arrange
+        AppendCommand append = new AppendCommand();
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("append", append);
+        commandManager.registerCommand("upper", new UpperCommand());
+        ShardedDispatcher spt = new ShardedDispatcher(new CommandProcessor(commandManager), 4);
+        spt.setKeyArgument("append", 0);
+        spt.start();
+        spt.submit("def add !upper $2 ; !append $1 $2").toCompletableFuture().join();
+
+        // act
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String key = "key" + (i % 8);
+            String line = i % 3 == 0 ? "!append " + key + " v" + i
+                    : i % 3 == 1 ? "!add " + key + " v" + i
+                    : "!upper v" + i + " | !append " + key;
+            results.add(spt.submit(line).toCompletableFuture());
+        }
+        results.forEach(CompletableFuture::join);
+        String first = null;
+        String second = null;
+        for (int key = 0; key < 8 && second == null; key++) {
+            String thread = append.threads.get("key" + key);
+            if (first == null) {
+                first = "key" + key;
+            } else if (!thread.equals(append.threads.get(first))) {
+                second = "key" + key;
+            }
+        }
+        String spread = spt.submit("!append " + first + " x | !append " + second)
+                .toCompletableFuture().join();
+        spt.close();
+
+        // assert
+        for (int key = 0; key < 8; key++) {
+            assertEquals(25, append.lists.get("key" + key).size());
+            assertTrue(append.threads.get("key" + key).startsWith("jscp-shard-"));
+        }
+        assertEquals("v1", results.get(1).join());
+        assertEquals("V2", results.get(2).join());
+        assertTrue(spread.startsWith("Error"));
+        assertEquals(25, append.lists.get(first).size());
+    }
+
+    @Test
+    public void escapedKeysRunOnOneShardWithinPipelines() {
+        // arrange
+        AppendCommand append = new AppendCommand();
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("append", append);
+        commandManager.registerCommand("upper", new UpperCommand());
+        ShardedDispatcher spt = new ShardedDispatcher(new CommandProcessor(commandManager), 4);
+        spt.setKeyArgument("append", 0);
+        spt.start();
+
+        // act
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 80; i++) {
+            String key = "\"k\\\"" + (i % 8) + "\"";
+            String line = i / 8 % 2 == 0 ? "!append " + key + " v" + i
+                    : "!upper v" + i + " | !append " + key;
+            results.add(spt.submit(line).toCompletableFuture());
+        }
+        results.forEach(CompletableFuture::join);
+        spt.close();
+
+        // assert
+        for (int key = 0; key < 8; key++) {
+            assertEquals(10, append.lists.get("k\"" + key).size());
+            assertTrue(append.threads.get("k\"" + key).startsWith("jscp-shard-"));
+        }
+    }
+
+    @Test
+    public void parallelSafeCallsAreStolenByIdleShards() {
+        // arrange
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("meet", new MeetCommand(4));
+        ShardedDispatcher spt = new ShardedDispatcher(new CommandProcessor(commandManager), 4);
+        spt.setQueueCapacity(4);
+        spt.start();
+
+        // act
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(spt.submit("!meet").toCompletableFuture());
+        }
+        List<String> values = new ArrayList<>();
+        results.forEach(result -> values.add(result.join()));
+        spt.close();
+
+        // assert
+        assertEquals(List.of("met", "met", "met", "met"), values);
+        long stolen = 0;
+        long maxQueueDepth = 0;
+        for (int i = 0; i < spt.getShardCount(); i++) {
+            stolen += spt.getShardStats(i).getStolen();
+            maxQueueDepth = Math.max(maxQueueDepth, spt.getShardStats(i).getMaxQueueDepth());
+        }
+        assertEquals(3, stolen);
+        assertTrue(maxQueueDepth >= 1);
+    }
+}
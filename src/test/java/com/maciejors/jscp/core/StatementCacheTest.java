@@ -0,0 +1,120 @@
+package com.maciejors.jscp.core;
+
+import org.junit.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class StatementCacheTest {
+
+    @Test
+    public void repeatedLinesHitTheCache() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        StatementCache cache = new StatementCache(10);
+        spt.setStatementCache(cache);
+
+        // act
+        spt.executeLine("!echo a");
+        spt.executeLine("!echo a");
+        String commandOutput = spt.executeLine("!echo a");
+
+        // assert
+        assertEquals("a", commandOutput);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedStatementsGetEvicted() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        StatementCache cache = new StatementCache(2);
+        spt.setStatementCache(cache);
+
+        // act
+        spt.executeLine("!echo a");
+        spt.executeLine("!echo b");
+        spt.executeLine("!echo a");
+        spt.executeLine("!echo c");
+        spt.executeLine("!echo a");
+
+        // assert
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void replacingCommandInvalidatesCache() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.setStatementCache(new StatementCache(10));
+        spt.executeLine("!echo a");
+
+        // act
+        spt.getCommandManager().registerCommand("echo", new Command() {
+            @Override
+            public String call(String[] args) {
+                return "replaced";
+            }
+        });
+        String commandOutput = spt.executeLine("!echo a");
+
+        // assert
+        assertEquals("replaced", commandOutput);
+    }
+
+    @Test
+    public void registeringMissingCommandInvalidatesCache() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        spt.setStatementCache(new StatementCache(10));
+        spt.executeLine("!later");
+
+        // act
+        spt.getCommandManager().registerCommand("later", new Command() {
+            @Override
+            public String call(String[] args) {
+                return "found";
+            }
+        });
+        String commandOutput = spt.executeLine("!later");
+
+        // assert
+        assertEquals("found", commandOutput);
+    }
+
+    @Test
+    public void sharedCacheKeepsStatementsOfDifferentSettingsApart() {
+        // arrange
+        CommandProcessor spt = getSampleCommandProcessor();
+        CommandProcessor abbreviating = new CommandProcessor(spt.getCommandManager());
+        abbreviating.setAbbreviationsEnabled(true);
+        StatementCache cache = new StatementCache(10);
+        spt.setStatementCache(cache);
+        abbreviating.setStatementCache(cache);
+
+        // act
+        String abbreviated = abbreviating.executeLine("!ec a");
+        String notFound = spt.executeLine("!ec a");
+        abbreviating.setMaxLineLength(4);
+        String tooLong = abbreviating.executeLine("!ec a");
+
+        // assert
+        assertEquals("a", abbreviated);
+        assertEquals("Error: command not found", notFound);
+        assertEquals("Error: line too long (max 4 characters)", tooLong);
+        assertEquals(3, cache.size());
+    }
+
+    private CommandProcessor getSampleCommandProcessor() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("echo", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join(" ", args);
+            }
+        });
+        return new CommandProcessor(commandManager);
+    }
+}
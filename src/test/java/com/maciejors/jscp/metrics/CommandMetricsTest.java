@@ -0,0 +1,139 @@
+package com.maciejors.jscp.metrics;
+
+import com.maciejors.jscp.core.ArgumentView;
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.core.CommandManager;
+import com.maciejors.jscp.core.CommandProcessor;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandMetricsTest {
+
+    @Test
+    public void callsAndErrorsAreCounted() {
+        // arrange
+        CommandMetrics spt = new CommandMetrics();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.addExecutionListener(spt);
+
+        // act
+        commandProcessor.executeLine("!echo a");
+        commandProcessor.executeLine("!echo b");
+        commandProcessor.executeLine("!missing");
+        assertThrows(IllegalStateException.class,
+                () -> commandProcessor.executeLine("!fail"));
+
+        // assert
+        assertEquals(2, spt.getStats("echo").getInvocationCount());
+        assertEquals(0, spt.getStats("echo").getErrorCount());
+        assertEquals(1, spt.getStats("fail").getErrorCount());
+        assertNull(spt.getStats("missing"));
+        assertEquals("echo", spt.getAllStats().get(0).getCommandName());
+    }
+
+    @Test
+    public void commandsExecutedAnyWayAreMeasured() {
+        // arrange
+        CommandMetrics spt = new CommandMetrics();
+        CommandProfiler profiler = new CommandProfiler();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.addExecutionListener(spt);
+        commandProcessor.startProfiling(profiler);
+
+        // act
+        commandProcessor.executeAll(List.of("!echo a", "!echo b", ""));
+        commandProcessor.executeLineAsync("!echo c").toCompletableFuture().join();
+        commandProcessor.executeCommandAsync("echo", ArgumentView.of("d"))
+                .toCompletableFuture().join();
+
+        // assert
+        assertEquals(4, spt.getStats("echo").getInvocationCount());
+        assertEquals(4, profiler.getProfile("echo").getInvocationCount());
+    }
+
+    @Test
+    public void removedListenerIsNotNotified() {
+        // arrange
+        CommandMetrics spt = new CommandMetrics();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.addExecutionListener(spt);
+
+        // act
+        boolean removed = commandProcessor.removeExecutionListener(spt);
+        commandProcessor.executeLine("!echo a");
+
+        // assert
+        assertTrue(removed);
+        assertNull(spt.getStats("echo"));
+    }
+
+    @Test
+    public void statsCommandReportsCalledCommands() {
+        // arrange
+        CommandMetrics spt = new CommandMetrics();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.addExecutionListener(spt);
+        commandProcessor.getCommandManager().registerDefaultStatsCommand(spt);
+        commandProcessor.executeLine("!echo a");
+
+        // act
+        String commandOutput = commandProcessor.executeLine("!stats");
+
+        // assert
+        assertTrue(commandOutput.contains("echo"));
+        assertFalse(commandOutput.contains("fail"));
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinBucketPrecision() {
+        // arrange
+        LatencyHistogram spt = new LatencyHistogram();
+
+        // act
+        for (long value = 1; value <= 100_000; value++) {
+            spt.record(value);
+        }
+
+        // assert
+        assertEquals(100_000, spt.getCount());
+        assertEquals(100_000, spt.getMax());
+        assertEquals(50_000, spt.getValueAtPercentile(50), 50_000 * 0.07);
+        assertEquals(99_000, spt.getValueAtPercentile(99), 99_000 * 0.07);
+        assertEquals(99_900, spt.getValueAtPercentile(99.9), 99_900 * 0.07);
+    }
+
+    @Test
+    public void histogramBucketsCoverWholeRange() {
+        // arrange
+        long[] values = {0, 1, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE};
+
+        for (long value : values) {
+            // act
+            int bucket = LatencyHistogram.bucketOf(value);
+
+            // assert
+            assertTrue(LatencyHistogram.highestValueOf(bucket) >= value);
+            assertTrue(bucket == 0 || LatencyHistogram.highestValueOf(bucket - 1) < value);
+        }
+    }
+
+    private CommandProcessor getSampleCommandProcessor() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("echo", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join(" ", args);
+            }
+        });
+        commandManager.registerCommand("fail", new Command() {
+            @Override
+            public String call(String[] args) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        return new CommandProcessor(commandManager);
+    }
+}
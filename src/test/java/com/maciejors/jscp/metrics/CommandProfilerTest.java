@@ -0,0 +1,97 @@
+package com.maciejors.jscp.metrics;
+
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.core.CommandManager;
+import com.maciejors.jscp.core.CommandProcessor;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandProfilerTest {
+
+    @Test
+    public void profilingIsSwitchedAtRuntime() {
+        // arrange
+        CommandProfiler spt = new CommandProfiler();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.registerDefaultProfileCommand(spt);
+        commandProcessor.executeLine("!echo a");
+
+        // act
+        commandProcessor.executeLine("!profile on");
+        for (int i = 0; i < 3; i++) {
+            commandProcessor.executeLine("!allocate");
+        }
+        commandProcessor.executeLine("!echo b");
+        commandProcessor.executeLine("!profile off");
+        commandProcessor.executeLine("!allocate");
+        String report = commandProcessor.executeLine("!profile alloc");
+
+        // assert
+        assertFalse(commandProcessor.isProfiling());
+        CommandProfile allocate = spt.getProfile("allocate");
+        assertEquals(3, allocate.getInvocationCount());
+        assertTrue(allocate.getTotalExecutionAllocatedBytes() >= 3 * 1_000_000);
+        assertTrue(allocate.getTotalExecutionCpuNanos() > 0);
+        assertEquals(1, spt.getProfile("echo").getInvocationCount());
+        assertEquals("allocate", spt.getProfiles(ProfileOrder.ALLOCATED_BYTES)
+                .get(0).getCommandName());
+        assertTrue(report.split("\n")[1].startsWith("allocate"));
+    }
+
+    @Test
+    public void callsAreRecordedAsJfrEvents() throws IOException {
+        // arrange
+        CommandProfiler spt = new CommandProfiler();
+        CommandProcessor commandProcessor = getSampleCommandProcessor();
+        commandProcessor.startProfiling(spt);
+        Path dump = Files.createTempFile("jscp", ".jfr");
+        dump.toFile().deleteOnExit();
+
+        // act
+        try (Recording recording = new Recording()) {
+            recording.enable("com.maciejors.jscp.CommandProfile");
+            recording.start();
+            commandProcessor.executeLine("!allocate");
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        // assert
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        assertEquals(1, events.size());
+        assertEquals("allocate", events.get(0).getString("commandName"));
+        assertTrue(events.get(0).getLong("executionAllocatedBytes") >= 1_000_000);
+    }
+
+    private CommandProcessor getSampleCommandProcessor() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("echo", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join(" ", args);
+            }
+        });
+        commandManager.registerCommand("allocate", new Command() {
+            @Override
+            public String call(String[] args) {
+                byte[] buffer = new byte[1_000_000];
+                long sum = 0;
+                for (int i = 0; i < buffer.length; i += 4096) {
+                    buffer[i] = (byte) i;
+                    sum += buffer[i];
+                }
+                return String.valueOf(sum);
+            }
+        });
+        return new CommandProcessor(commandManager);
+    }
+}
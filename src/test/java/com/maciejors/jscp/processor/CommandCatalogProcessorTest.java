@@ -0,0 +1,213 @@
+package com.maciejors.jscp.processor;
+
+import com.maciejors.jscp.core.CommandCatalog;
+import com.maciejors.jscp.core.CommandManager;
+import com.maciejors.jscp.core.CommandProcessor;
+import com.maciejors.jscp.core.RegistrationResult;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandCatalogProcessorTest {
+
+    private static final String GREET_COMMAND = "package demo;\n" +
+            "@com.maciejors.jscp.annotations.RegisteredCommand(\"greet\")\n" +
+            "@com.maciejors.jscp.annotations.CommandDescription(\"Says \\\"hi\\\"\\nto someone\")\n" +
+            "public class GreetCommand extends com.maciejors.jscp.core.Command {\n" +
+            "    public static int created = 0;\n" +
+            "    public GreetCommand() { created++; }\n" +
+            "    public String call(String[] args) { return \"hi \" + args[0]; }\n" +
+            "}\n";
+
+    private static final String PING_COMMAND = "package demo.other;\n" +
+            "@com.maciejors.jscp.annotations.RegisteredCommand(\"ping\")\n" +
+            "@com.maciejors.jscp.annotations.ParallelSafe\n" +
+            "public class PingCommand extends com.maciejors.jscp.core.Command {\n" +
+            "    public String call(String[] args) { return \"pong\"; }\n" +
+            "}\n";
+
+    @Test
+    public void catalogRegistersCommandsLazily() throws Exception {
+        // arrange
+        Path output = Files.createTempDirectory("jscp-catalog");
+        List<Diagnostic<? extends JavaFileObject>> errors =
+                compile(output, GREET_COMMAND, PING_COMMAND);
+        assertTrue(errors.isEmpty(), errors::toString);
+
+        try (URLClassLoader loader = new URLClassLoader(
+                new URL[]{output.toUri().toURL()}, getClass().getClassLoader())) {
+            CommandCatalog catalog = (CommandCatalog) loader
+                    .loadClass("demo.JscpCommandCatalog")
+                    .getConstructor()
+                    .newInstance();
+            CommandManager commandManager = new CommandManager();
+            commandManager.registerDefaultHelpCommand();
+            CommandProcessor spt = new CommandProcessor(commandManager);
+
+            // act
+            RegistrationResult result = commandManager.registerCatalog(catalog);
+            String help = spt.executeLine("!help greet");
+            int createdBeforeCall = loader.loadClass("demo.GreetCommand")
+                    .getField("created").getInt(null);
+            String greeting = spt.executeLine("!greet Ala");
+            spt.executeLine("!greet Ola");
+            int createdAfterCalls = loader.loadClass("demo.GreetCommand")
+                    .getField("created").getInt(null);
+
+            // assert
+            assertEquals(List.of("greet", "ping"), result.getRegistered());
+            assertEquals("Help for greet:\n\nSays \"hi\"\nto someone", help);
+            assertEquals(0, createdBeforeCall);
+            assertEquals("hi Ala", greeting);
+            assertEquals(1, createdAfterCalls);
+            assertTrue(commandManager.findCommand("ping").isParallelSafe());
+            assertEquals("demo.JscpCommandCatalog\n", Files.readString(
+                    output.resolve("META-INF/services/com.maciejors.jscp.core.CommandCatalog")));
+        }
+    }
+
+    @Test
+    public void catalogAppliesPoliciesWithoutCreatingCommands() throws Exception {
+        // arrange
+        String countCommand = "package demo;\n" +
+                "@com.maciejors.jscp.annotations.RegisteredCommand(\"count\")\n" +
+                "@com.maciejors.jscp.annotations.Cacheable(maxEntries = 4)\n" +
+                "public class CountCommand extends com.maciejors.jscp.core.Command {\n" +
+                "    private int calls = 0;\n" +
+                "    public String call(String[] args) { return String.valueOf(++calls); }\n" +
+                "}\n";
+        String limitedCommand = "package demo;\n" +
+                "@com.maciejors.jscp.annotations.RegisteredCommand(\"limited\")\n" +
+                "@com.maciejors.jscp.annotations.CommandPolicy(permitsPerSecond = 0.5, burst = 1)\n" +
+                "public class LimitedCommand extends com.maciejors.jscp.core.Command {\n" +
+                "    public String call(String[] args) { return \"ok\"; }\n" +
+                "}\n";
+        Path output = Files.createTempDirectory("jscp-catalog");
+        List<Diagnostic<? extends JavaFileObject>> errors =
+                compile(output, countCommand, limitedCommand, GREET_COMMAND);
+        assertTrue(errors.isEmpty(), errors::toString);
+
+        try (URLClassLoader loader = new URLClassLoader(
+                new URL[]{output.toUri().toURL()}, getClass().getClassLoader())) {
+            CommandCatalog catalog = (CommandCatalog) loader
+                    .loadClass("demo.JscpCommandCatalog")
+                    .getConstructor()
+                    .newInstance();
+            CommandManager commandManager = new CommandManager();
+            CommandProcessor spt = new CommandProcessor(commandManager);
+
+            // act
+            commandManager.registerCatalog(catalog);
+            String first = spt.executeLine("!count a");
+            String memoized = spt.executeLine("!count a");
+            String allowed = spt.executeLine("!limited");
+            String limited = spt.executeLine("!limited");
+
+            // assert
+            assertEquals("1", first);
+            assertEquals("1", memoized);
+            assertEquals(1, commandManager.getCacheStats("count").getHits());
+            assertNull(commandManager.getCacheStats("greet"));
+            assertEquals("ok", allowed);
+            assertEquals("Error: rate limit exceeded", limited);
+        }
+    }
+
+    @Test
+    public void catalogIsDiscoveredAsService() throws Exception {
+        // arrange
+        Path output = Files.createTempDirectory("jscp-catalog");
+        List<Diagnostic<? extends JavaFileObject>> errors =
+                compile(output, GREET_COMMAND, PING_COMMAND);
+        assertTrue(errors.isEmpty(), errors::toString);
+        CommandManager spt = new CommandManager();
+
+        Thread thread = Thread.currentThread();
+        ClassLoader previousLoader = thread.getContextClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(
+                new URL[]{output.toUri().toURL()}, getClass().getClassLoader())) {
+            thread.setContextClassLoader(loader);
+
+            // act
+            RegistrationResult result = spt.registerDiscoveredCommands();
+
+            // assert
+            assertTrue(result.isSuccessful());
+            assertEquals("pong", spt.findCommand("ping").call(new String[0]));
+        } finally {
+            thread.setContextClassLoader(previousLoader);
+        }
+    }
+
+    @Test
+    public void invalidCommandsAreCompilationErrors() throws Exception {
+        // arrange
+        String source = "package demo;\n" +
+                "@com.maciejors.jscp.annotations.RegisteredCommand(\"not valid\")\n" +
+                "class HiddenCommand extends com.maciejors.jscp.core.Command {\n" +
+                "    HiddenCommand(String greeting) {}\n" +
+                "    public String call(String[] args) { return null; }\n" +
+                "}\n";
+
+        // act
+        List<Diagnostic<? extends JavaFileObject>> errors =
+                compile(Files.createTempDirectory("jscp-catalog"), source);
+
+        // assert
+        List<String> messages = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> error : errors) {
+            messages.add(error.getMessage(null));
+        }
+        assertEquals(3, messages.size(), messages::toString);
+        assertTrue(messages.get(0).contains("invalid command name"));
+        assertTrue(messages.get(1).contains("public top-level"));
+        assertTrue(messages.get(2).contains("no-argument constructor"));
+    }
+
+    private List<Diagnostic<? extends JavaFileObject>> compile(Path output, String... sources) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        List<JavaFileObject> files = new ArrayList<>();
+        for (String source : sources) {
+            String className = source.substring(source.indexOf("class ") + 6,
+                    source.indexOf(" extends"));
+            files.add(new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+                    JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                    return source;
+                }
+            });
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                List.of("-d", output.toString(),
+                        "-classpath", System.getProperty("java.class.path")
+                                + File.pathSeparator + output),
+                null, files);
+        task.setProcessors(List.of(new CommandCatalogProcessor()));
+        task.call();
+
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic);
+            }
+        }
+        return errors;
+    }
+}
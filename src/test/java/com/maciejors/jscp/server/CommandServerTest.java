@@ -0,0 +1,331 @@
+package com.maciejors.jscp.server;
+
+import com.maciejors.jscp.core.AsyncCommand;
+import com.maciejors.jscp.core.Command;
+import com.maciejors.jscp.core.CommandManager;
+import com.maciejors.jscp.core.CommandProcessor;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandServerTest {
+
+    @Test
+    public void sessionExecutesLines() throws IOException {
+        // arrange
+        try (CommandServer spt = getSampleCommandServer();
+             Socket socket = connect(spt)) {
+            BufferedReader reader = reader(socket);
+            Writer writer = writer(socket);
+
+            // act
+            writer.write("!echo tic tac\n!missing\n");
+            writer.flush();
+
+            // assert
+            assertEquals("tic tac", reader.readLine());
+            assertTrue(reader.readLine().startsWith("Error"));
+        }
+    }
+
+    @Test
+    public void failingCommandDoesNotEndTheSession() throws IOException {
+        // arrange
+        try (CommandServer spt = getSampleCommandServer();
+             Socket socket = connect(spt)) {
+            BufferedReader reader = reader(socket);
+            Writer writer = writer(socket);
+
+            // act
+            writer.write("!fail\n!echo still here\n");
+            writer.flush();
+
+            // assert
+            assertEquals("Error: broken", reader.readLine());
+            assertEquals("still here", reader.readLine());
+        }
+    }
+
+    @Test
+    public void sessionsShareCommandProcessor() throws IOException {
+        // arrange
+        try (CommandServer spt = getSampleCommandServer();
+             Socket first = connect(spt);
+             Socket second = connect(spt)) {
+
+            // act
+            writer(first).write("!echo first\n");
+            writer(second).write("!echo second\n");
+
+            // assert
+            assertEquals("second", reader(second).readLine());
+            assertEquals("first", reader(first).readLine());
+        }
+    }
+
+    @Test
+    public void exitCommandClosesOnlyTheSession() throws IOException {
+        // arrange
+        CommandServer spt = getSampleCommandServer();
+        spt.getCommandProcessor().getCommandManager().registerDefaultExitCommand();
+        try (spt; Socket socket = connect(spt)) {
+            BufferedReader reader = reader(socket);
+            Writer writer = writer(socket);
+
+            // act
+            writer.write("!exit\n");
+            writer.flush();
+
+            // assert
+            assertNull(reader.readLine());
+            try (Socket another = connect(spt)) {
+                writer(another).write("!echo alive\n");
+                assertEquals("alive", reader(another).readLine());
+            }
+        }
+    }
+
+    @Test
+    public void exitReachedIndirectlyClosesOnlyTheSession() throws IOException {
+        // arrange
+        CommandServer spt = new CommandServer(getSampleCommandProcessor());
+        spt.getCommandProcessor().getCommandManager().registerDefaultExitCommand();
+        spt.getCommandProcessor().setAbbreviationsEnabled(true);
+        spt.start(0);
+        try (spt; Socket abbreviated = connect(spt);
+             Socket piped = connect(spt);
+             Socket macro = connect(spt)) {
+            BufferedReader macroReader = reader(macro);
+            writer(macro).write("def q !exit\n");
+            macroReader.readLine();
+
+            // act
+            writer(abbreviated).write("!ex\n");
+            writer(piped).write("!echo a | !exit\n");
+            writer(macro).write("!q\n");
+
+            // assert
+            assertNull(reader(abbreviated).readLine());
+            assertNull(reader(piped).readLine());
+            assertNull(macroReader.readLine());
+            try (Socket another = connect(spt)) {
+                writer(another).write("!echo alive\n");
+                assertEquals("alive", reader(another).readLine());
+            }
+        }
+    }
+
+    @Test
+    public void sessionsOverTheLimitAreRejected() throws IOException {
+        // arrange
+        CommandServer spt = getSampleCommandServer();
+        spt.setMaxSessions(1);
+        try (spt; Socket first = connect(spt)) {
+            writer(first).write("!echo first\n");
+            assertEquals("first", reader(first).readLine());
+
+            // act
+            try (Socket second = connect(spt)) {
+
+                // assert
+                assertTrue(reader(second).readLine().startsWith("Error"));
+            }
+        }
+    }
+
+    @Test
+    public void idleSessionsGetClosed() throws IOException {
+        // arrange
+        CommandServer spt = new CommandServer(getSampleCommandProcessor());
+        spt.setIdleTimeout(Duration.ofMillis(100));
+        spt.start(0);
+        try (spt; Socket socket = connect(spt)) {
+
+            // act
+            String line = reader(socket).readLine();
+
+            // assert
+            assertNull(line);
+        }
+    }
+
+    @Test
+    public void idleTimeoutFitsSocketTimeout() {
+        // arrange
+        CommandServer spt = new CommandServer(getSampleCommandProcessor());
+
+        // act
+        spt.setIdleTimeout(Duration.ofNanos(1));
+
+        // assert
+        assertEquals(Duration.ofMillis(1), spt.getIdleTimeout());
+        assertThrows(IllegalArgumentException.class,
+                () -> spt.setIdleTimeout(Duration.ofDays(30)));
+        spt.setIdleTimeout(Duration.ofMillis(Integer.MAX_VALUE));
+        assertEquals(Duration.ofMillis(Integer.MAX_VALUE), spt.getIdleTimeout());
+    }
+
+    @Test
+    public void shutdownFinishesOpenSessions() throws IOException {
+        // arrange
+        CommandServer spt = getSampleCommandServer();
+        try (Socket socket = connect(spt)) {
+            writer(socket).write("!echo before\n");
+            BufferedReader reader = reader(socket);
+            assertEquals("before", reader.readLine());
+
+            // act
+            boolean finished = spt.shutdown(Duration.ofSeconds(5));
+
+            // assert
+            assertTrue(finished);
+            assertNull(reader.readLine());
+            assertEquals(0, spt.getSessionCount());
+        }
+    }
+
+    @Test
+    public void binarySessionAnswersWithStatusCodes() throws IOException {
+        // arrange
+        CommandServer spt = new CommandServer(getSampleCommandProcessor());
+        spt.setProtocol(ServerProtocol.BINARY);
+        spt.getCommandProcessor().getCommandManager().registerCommand("null", new Command() {
+            @Override
+            public String call(String[] args) {
+                return null;
+            }
+        });
+        spt.start(0);
+        try (spt; Socket socket = connect(spt)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+
+            // act
+            FrameCodec.writeRequest(out, 1, "echo", "tic tac", "\"quoted\"");
+            FrameCodec.writeRequest(out, 2, "missing");
+            FrameCodec.writeRequest(out, 3, "null");
+            out.flush();
+
+            // assert
+            FrameCodec.Response echo = FrameCodec.readResponse(in);
+            assertEquals(1, echo.getCorrelationId());
+            assertEquals(FrameStatus.OK, echo.getStatus());
+            assertEquals("tic tac \"quoted\"", echo.getValue());
+            FrameCodec.Response missing = FrameCodec.readResponse(in);
+            assertEquals(2, missing.getCorrelationId());
+            assertEquals(FrameStatus.NOT_FOUND, missing.getStatus());
+            FrameCodec.Response noValue = FrameCodec.readResponse(in);
+            assertEquals(3, noValue.getCorrelationId());
+            assertEquals(FrameStatus.NO_VALUE, noValue.getStatus());
+            assertNull(noValue.getValue());
+        }
+    }
+
+    @Test
+    public void binaryResponsesComeBackOutOfOrder() throws IOException {
+        // arrange
+        CompletableFuture<String> slowResult = new CompletableFuture<>();
+        CommandServer spt = new CommandServer(getSampleCommandProcessor());
+        spt.setProtocol(ServerProtocol.BINARY);
+        spt.getCommandProcessor().getCommandManager().registerCommand("slow", new AsyncCommand() {
+            @Override
+            public CompletionStage<String> callAsync(String[] args) {
+                return slowResult;
+            }
+        });
+        spt.start(0);
+        try (spt; Socket socket = connect(spt)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+
+            // act
+            FrameCodec.writeRequest(out, 10, "slow");
+            FrameCodec.writeRequest(out, 11, "echo", "fast");
+            out.flush();
+            FrameCodec.Response first = FrameCodec.readResponse(in);
+            slowResult.complete("slow");
+            FrameCodec.Response second = FrameCodec.readResponse(in);
+
+            // assert
+            assertEquals(11, first.getCorrelationId());
+            assertEquals("fast", first.getValue());
+            assertEquals(10, second.getCorrelationId());
+            assertEquals("slow", second.getValue());
+        }
+    }
+
+    private static Socket connect(CommandServer server) throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static Writer writer(Socket socket) throws IOException {
+        // autoflush is good enough for tests
+        OutputStreamWriter writer = new OutputStreamWriter(
+                socket.getOutputStream(), StandardCharsets.UTF_8);
+        return new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                writer.write(cbuf, off, len);
+                writer.flush();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writer.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    private static CommandServer getSampleCommandServer() throws IOException {
+        CommandServer server = new CommandServer(getSampleCommandProcessor());
+        server.start(0);
+        return server;
+    }
+
+    private static CommandProcessor getSampleCommandProcessor() {
+        CommandManager commandManager = new CommandManager();
+        commandManager.registerCommand("echo", new Command() {
+            @Override
+            public String call(String[] args) {
+                return String.join(" ", args);
+            }
+        });
+        commandManager.registerCommand("fail", new Command() {
+            @Override
+            public String call(String[] args) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        return new CommandProcessor(commandManager);
+    }
+}